@@ -7,6 +7,7 @@ import org.werelate.parser.WikiReader;
 import org.werelate.util.SharedUtils;
 import org.werelate.parser.StructuredDataParser;
 import org.werelate.utils.Util;
+import org.werelate.utils.WikiTextScanner;
 
 import java.io.*;
 import java.util.regex.Pattern;
@@ -27,7 +28,6 @@ public class ProduceFamilyDuplicates extends StructuredDataParser
 
    private static final Pattern FAMILY_NAME_PATTERN = Pattern.compile("([^ ]*)\\s+(.*?)\\s+and\\s+([^ ]*)\\s+(.*)");
    private static final Pattern PERSON_NAME_PATTERN = Pattern.compile("([^ ]*)\\s+(.*)");
-   private static final Pattern NOMERGE_PATTERN = Pattern.compile("\\{\\{nomerge\\s*\\|(.*?)\\}\\}", Pattern.CASE_INSENSITIVE);
 
    private TreeMap<String,List<String>> duplicateMap;
    private HashMap<String, Integer> pageIdMap;
@@ -210,20 +210,21 @@ public class ProduceFamilyDuplicates extends StructuredDataParser
          }
       }
       else if (title.startsWith("Family talk:") || title.startsWith("Person talk:")) {
-         String namespaceColon = null;
-         Matcher m = NOMERGE_PATTERN.matcher(text);
-         while (m.find()) {
-            String nomergeTitle = Util.standardizeWikiLink(m.group(1));
-            if (namespaceColon == null) {
-               namespaceColon = (title.startsWith("Family talk:") ? "Family:" : "Person:");
-               title = namespaceColon + title.substring("Family talk:".length());
-            }
-            if (!nomergeTitle.startsWith(namespaceColon)) {
-               nomergeTitle = namespaceColon + nomergeTitle;
+         final String namespaceColon = (title.startsWith("Family talk:") ? "Family:" : "Person:");
+         final String pageTitle = namespaceColon + title.substring("Family talk:".length());
+         // {{nomerge|title}}
+         WikiTextScanner.scan(text, new WikiTextScanner.Visitor() {
+            public void template(WikiTextScanner.Template template) {
+               if (template.getParamCount() > 0 && template.nameEqualsIgnoreCase("nomerge")) {
+                  String nomergeTitle = Util.standardizeWikiLink(template.getArguments());
+                  if (!nomergeTitle.startsWith(namespaceColon)) {
+                     nomergeTitle = namespaceColon + nomergeTitle;
+                  }
+                  nomerges.add(pageTitle+"|"+nomergeTitle);
+                  nomerges.add(nomergeTitle+"|"+pageTitle);
+               }
             }
-            nomerges.add(title+"|"+nomergeTitle);
-            nomerges.add(nomergeTitle+"|"+title);
-         }
+         });
       }
    }
 
@@ -9,6 +9,7 @@ import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.util.EncodingUtil;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
+import org.werelate.utils.Patterns;
 import org.werelate.utils.Util;
 
 import java.util.regex.Pattern;
@@ -48,6 +49,7 @@ public class PageEditor {
    private String title;
    private String contents;
    boolean loggedIn;
+   private int postCount;
    protected Map<String, String> variables;
    private HttpClient client;
 
@@ -63,6 +65,7 @@ public class PageEditor {
       this.title = null;
       this.contents = null;
       this.loggedIn = false;
+      this.postCount = 0;
       this.variables = new HashMap<String, String>();
 
       resetHttpClient();
@@ -107,9 +110,14 @@ public class PageEditor {
     * @return
     */
    public String readVariable(Pattern p, boolean isRequired) {
-      Matcher m = p.matcher(contents);
-      if (m.find()) {
-         return Util.unencodeXML(m.group(1)); // we need to unencode just HTML entities, but this works fine
+      Matcher m = Patterns.matcher(p, contents);
+      try {
+         if (Patterns.find(m)) {
+            return Util.unencodeXML(m.group(1)); // we need to unencode just HTML entities, but this works fine
+         }
+      }
+      finally {
+         Patterns.release(m);
       }
       if (isRequired) {
          throw new RuntimeException("Pattern not found: " + p + " on page: "+title);
@@ -121,16 +129,35 @@ public class PageEditor {
       return readVariable(p, true);
    }
 
+   /**
+    * @return pattern whose group 1 is the value of the named input field
+    */
+   public static Pattern inputPattern(String name) {
+      return Patterns.get("<input [^>]*?name=\"" + name + "\"[^>]*?value=\"(.*?)\"[^/]*/>");
+   }
+
+   /**
+    * @return pattern whose group 1 is the selected option of the named select field
+    */
+   public static Pattern selectPattern(String name) {
+      return Patterns.get("<select [^>]*?name=\"" + name + "\".*?<option value=\"([^\"]*)\" selected>", Pattern.DOTALL);
+   }
+
    public String readSelectVariable(Pattern p, boolean isRequired) {
-      Matcher m = p.matcher(contents);
-      if (m.find()) {
-         if (m.group(0).contains("</select>")) {
-            return ""; // no option selected
-         }
-         else {
-            return Util.unencodeXML(m.group(1));
+      Matcher m = Patterns.matcher(p, contents);
+      try {
+         if (Patterns.find(m)) {
+            if (m.group(0).contains("</select>")) {
+               return ""; // no option selected
+            }
+            else {
+               return Util.unencodeXML(m.group(1));
+            }
          }
       }
+      finally {
+         Patterns.release(m);
+      }
       if (isRequired) {
          throw new RuntimeException("Pattern not found: " + p + " on page: "+title);
       }
@@ -290,6 +317,7 @@ public class PageEditor {
          String url = constructUrl(title, action, extraParams);
          for (int i = 0; i < MAX_RETRIES; i++) {
             if (doPostHttp(url)) {
+               postCount++;
                return;
             }
             reset();
@@ -300,6 +328,13 @@ public class PageEditor {
       logger.error("Post failed: " + title);
    }
 
+   /**
+    * @return number of successful posts made by this editor
+    */
+   public int getPostCount() {
+      return postCount;
+   }
+
    private void reset() {
       Util.sleep(RETRY_WAIT_MILLIS);
       logout();
@@ -0,0 +1,98 @@
+package org.werelate.parser;
+
+import org.werelate.utils.BZip2InputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * A multistream bzip2 wikipedia dump (pages-articles-multistream.xml.bz2) and its index (pages-articles-multistream-index.txt[.bz2]).
+ * Each stream in the dump is an independent bzip2 stream holding about 100 pages, and each index line is offset:pageId:title,
+ * where offset is the byte offset of the stream holding the page. The first stream holds the siteinfo header and no pages.
+ */
+public class MultistreamDump {
+   private String dumpFile;
+   private String indexFile;
+
+   public MultistreamDump(String dumpFile, String indexFile) {
+      this.dumpFile = dumpFile;
+      this.indexFile = indexFile;
+   }
+
+   public String getDumpFile() {
+      return dumpFile;
+   }
+
+   /**
+    * Return the sorted offsets of the streams that hold the specified titles, or of every stream holding pages if titles is null
+    */
+   public long[] getOffsets(Set<String> titles) throws IOException {
+      InputStream is = new BufferedInputStream(new FileInputStream(indexFile), 65536);
+      if (indexFile.endsWith(".bz2")) {
+         is = new BZip2InputStream(is, true);
+      }
+      BufferedReader in = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+      long[] offsets = new long[1024];
+      int numOffsets = 0;
+      long prevOffset = -1;
+      String line;
+      while ((line = in.readLine()) != null) {
+         int colon = line.indexOf(':');
+         int colon2 = (colon < 0 ? -1 : line.indexOf(':', colon + 1));
+         if (colon2 < 0) {
+            throw new IOException("Invalid index line: "+line);
+         }
+         // the titles in a stream are consecutive, so most duplicate offsets are dropped here
+         if (titles == null || titles.contains(line.substring(colon2 + 1))) {
+            long offset = Long.parseLong(line.substring(0, colon));
+            if (offset != prevOffset) {
+               if (numOffsets == offsets.length) {
+                  offsets = Arrays.copyOf(offsets, numOffsets * 2);
+               }
+               offsets[numOffsets++] = offset;
+               prevOffset = offset;
+            }
+         }
+      }
+      in.close();
+
+      offsets = Arrays.copyOf(offsets, numOffsets);
+      Arrays.sort(offsets);
+      int numDistinct = 0;
+      for (int i = 0; i < offsets.length; i++) {
+         if (numDistinct == 0 || offsets[i] != offsets[numDistinct - 1]) {
+            offsets[numDistinct++] = offsets[i];
+         }
+      }
+      return Arrays.copyOf(offsets, numDistinct);
+   }
+
+   /**
+    * Decompress the stream at the specified offset and return the page elements in it, or an empty string if it has none
+    */
+   public String readPages(long offset) throws IOException {
+      FileInputStream fis = new FileInputStream(dumpFile);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 20);
+      try {
+         fis.getChannel().position(offset);
+         InputStream in = new BZip2InputStream(new BufferedInputStream(fis, 65536), false);
+         byte[] buf = new byte[65536];
+         int n;
+         while ((n = in.read(buf, 0, buf.length)) > 0) {
+            bytes.write(buf, 0, n);
+         }
+      }
+      finally {
+         fis.close();
+      }
+      String text = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+      int start = text.indexOf("<page>");
+      int end = text.lastIndexOf("</page>");
+      if (start < 0 || end < start) {
+         return "";
+      }
+      return text.substring(start, end + "</page>".length());
+   }
+}
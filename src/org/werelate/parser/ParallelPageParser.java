@@ -0,0 +1,135 @@
+package org.werelate.parser;
+
+import nu.xom.ParsingException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes pages to another parser on that parser's own thread, in the order they were read.
+ * Up to QUEUE_SIZE pages are buffered, so a slow parser holds up the reader only once it falls that far behind.
+ */
+public class ParallelPageParser implements WikiPageParser {
+   private static final Logger logger = LogManager.getLogger(ParallelPageParser.class);
+   private static final int QUEUE_SIZE = 1000;
+
+   private static class Page {
+      final String title;
+      final String text;
+      final int pageId;
+      final int latestRevId;
+      final String username;
+      final String timestamp;
+      final String comment;
+
+      Page(String title, String text, int pageId, int latestRevId, String username, String timestamp, String comment) {
+         this.title = title;
+         this.text = text;
+         this.pageId = pageId;
+         this.latestRevId = latestRevId;
+         this.username = username;
+         this.timestamp = timestamp;
+         this.comment = comment;
+      }
+   }
+
+   private static final Page END = new Page(null, null, 0, 0, null, null, null);
+
+   private final WikiPageParser parser;
+   private final BlockingQueue<Page> queue;
+   private final Thread worker;
+   private volatile RuntimeException failure;
+   private final ReaderMetrics.ParserStats stats;
+   private boolean finished;
+
+   public ParallelPageParser(WikiPageParser parser) {
+      this.parser = parser;
+      this.queue = new ArrayBlockingQueue<Page>(QUEUE_SIZE);
+      this.failure = null;
+      this.stats = new ReaderMetrics.ParserStats(ReaderMetrics.getName(parser));
+      this.finished = false;
+      this.worker = new Thread(parser.getClass().getSimpleName()) {
+         public void run() {
+            work();
+         }
+      };
+      worker.setDaemon(true);
+      worker.start();
+   }
+
+   private void work() {
+      try {
+         for (Page page = queue.take(); page != END; page = queue.take()) {
+            // same handling as WikiReader
+            long start = System.nanoTime();
+            boolean error = true;
+            try {
+               parser.parse(page.title, page.text, page.pageId, page.latestRevId, page.username, page.timestamp, page.comment);
+               error = false;
+            } catch (IOException e) {
+               logger.error("IOException: " + e);
+            } catch (ParsingException e) {
+               logger.error("Parsing exception for title: " + page.title + " - " + e);
+            }
+            finally {
+               stats.record(System.nanoTime() - start, error);
+            }
+         }
+      }
+      catch (InterruptedException e) {
+         logger.warn("Interrupted: " + worker.getName());
+      }
+      catch (Throwable e) {
+         failure = (e instanceof RuntimeException ? (RuntimeException)e : new RuntimeException(e));
+      }
+   }
+
+   // the worker stops taking pages if the parser throws, so don't wait on a full queue after that
+   private void enqueue(Page page) throws IOException {
+      try {
+         while (failure == null && !queue.offer(page, 1, TimeUnit.SECONDS)) {
+         }
+      }
+      catch (InterruptedException e) {
+         throw new IOException("Interrupted", e);
+      }
+      if (failure != null) {
+         throw failure;
+      }
+   }
+
+   public void parse(String title, String text, int pageId, int latestRevId, String username, String timestamp, String comment) throws IOException, ParsingException {
+      enqueue(new Page(title, text, pageId, latestRevId, username, timestamp, comment));
+   }
+
+   /**
+    * Time spent by the wrapped parser on its thread
+    */
+   public ReaderMetrics.ParserStats getStats() {
+      return stats;
+   }
+
+   /**
+    * Wait for the parser to finish the pages that have been read; WikiReader calls this at the end of a read.
+    * No more pages can be parsed after this.
+    */
+   public void finish() throws IOException {
+      if (!finished) {
+         finished = true;
+         enqueue(END);
+         try {
+            worker.join();
+         }
+         catch (InterruptedException e) {
+            throw new IOException("Interrupted", e);
+         }
+      }
+      if (failure != null) {
+         throw failure;
+      }
+   }
+}
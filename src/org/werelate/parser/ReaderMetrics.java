@@ -0,0 +1,370 @@
+package org.werelate.parser;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.werelate.utils.Util;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and timing of one WikiReader read, for sizing hardware and finding the slowest parser.
+ * Records the pages and input bytes read, pages per namespace, the time spent in each parser,
+ * the time the XML parser takes outside the parsers, and GC and heap use.
+ * A progress line is logged every LOG_INTERVAL_SECONDS, and a JSON summary at the end of the read.
+ * If the system property werelate.metrics names a file, the summary is also written there;
+ * if werelate.metricsJmx is true, the metrics are registered as an MBean while the read runs.
+ */
+public class ReaderMetrics implements ReaderMetricsMBean {
+   public static final String FILE_PROPERTY = "werelate.metrics";
+   public static final String JMX_PROPERTY = "werelate.metricsJmx";
+   public static final int LOG_INTERVAL_SECONDS = 60;
+   private static final Logger logger = LogManager.getLogger(ReaderMetrics.class);
+   private static final AtomicInteger READS = new AtomicInteger();
+
+   /**
+    * Pages and time of one parser; updated by the thread the parser runs on
+    */
+   public static class ParserStats {
+      private final String name;
+      private final AtomicLong pages = new AtomicLong();
+      private final AtomicLong nanos = new AtomicLong();
+      private final AtomicLong errors = new AtomicLong();
+      // time the reader spent handing pages to a parser that runs on its own thread
+      private final AtomicLong queueWaitNanos = new AtomicLong();
+
+      public ParserStats(String name) {
+         this.name = name;
+      }
+
+      public String getName() {
+         return name;
+      }
+
+      public long getPages() {
+         return pages.get();
+      }
+
+      public long getNanos() {
+         return nanos.get();
+      }
+
+      public void record(long nanos, boolean error) {
+         pages.incrementAndGet();
+         this.nanos.addAndGet(nanos);
+         if (error) {
+            errors.incrementAndGet();
+         }
+      }
+
+      void recordQueueWait(long nanos) {
+         queueWaitNanos.addAndGet(nanos);
+      }
+   }
+
+   private final long startNanos;
+   private volatile long endNanos;
+   private final AtomicLong pages = new AtomicLong();
+   private final AtomicLong bytesRead = new AtomicLong();
+   private final AtomicLong dispatchNanos = new AtomicLong();
+   private final AtomicLong inputWaitNanos = new AtomicLong();
+   private final Map<String,AtomicLong> namespacePages = new ConcurrentHashMap<String,AtomicLong>();
+   private final List<ParserStats> parsers = new CopyOnWriteArrayList<ParserStats>();
+   private final long startGcCount;
+   private final long startGcMillis;
+   private long nextLogNanos;
+   private ObjectName mbeanName;
+
+   /**
+    * Start timing a read
+    */
+   public ReaderMetrics() {
+      startNanos = System.nanoTime();
+      endNanos = 0;
+      startGcCount = getGcCount();
+      startGcMillis = getGcMillis();
+      nextLogNanos = startNanos + LOG_INTERVAL_SECONDS * 1000000000L;
+      if (Boolean.getBoolean(JMX_PROPERTY)) {
+         try {
+            mbeanName = new ObjectName("org.werelate:type=WikiReader,read=" + READS.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, mbeanName);
+         }
+         catch (JMException e) {
+            logger.warn("Unable to register reader metrics: " + e);
+            mbeanName = null;
+         }
+      }
+   }
+
+   static String getName(WikiPageParser parser) {
+      String name = parser.getClass().getSimpleName();
+      return name.length() > 0 ? name : parser.getClass().getName();
+   }
+
+   /**
+    * Track a parser; a ParallelPageParser keeps its own stats, which are cumulative over reads
+    */
+   public ParserStats addParser(WikiPageParser parser) {
+      ParserStats stats = (parser instanceof ParallelPageParser ? ((ParallelPageParser)parser).getStats() : new ParserStats(getName(parser)));
+      parsers.add(stats);
+      return stats;
+   }
+
+   /**
+    * @return the stream, counting the bytes read from it
+    */
+   public InputStream count(InputStream in) {
+      return new FilterInputStream(in) {
+         public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+               bytesRead.incrementAndGet();
+            }
+            return b;
+         }
+
+         public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+               bytesRead.addAndGet(n);
+            }
+            return n;
+         }
+      };
+   }
+
+   public void addBytesRead(long bytes) {
+      bytesRead.addAndGet(bytes);
+   }
+
+   /**
+    * Count a page, whether or not it is passed to the parsers
+    */
+   public void pageRead(String title) {
+      pages.incrementAndGet();
+      String namespace = Util.splitNamespaceTitle(title)[0];
+      AtomicLong count = namespacePages.get(namespace);
+      if (count == null) {
+         count = new AtomicLong();
+         namespacePages.put(namespace, count);
+      }
+      count.incrementAndGet();
+      long now = System.nanoTime();
+      if (now >= nextLogNanos) {
+         nextLogNanos = now + LOG_INTERVAL_SECONDS * 1000000000L;
+         logger.info(getProgress());
+      }
+   }
+
+   /**
+    * Add the time spent passing a page to the parsers
+    */
+   public void addDispatchNanos(long nanos) {
+      dispatchNanos.addAndGet(nanos);
+   }
+
+   /**
+    * Add the time spent waiting for input, e.g., for a dump stream to be decompressed
+    */
+   public void addInputWaitNanos(long nanos) {
+      inputWaitNanos.addAndGet(nanos);
+   }
+
+   /**
+    * Stop timing, log the summary, and write it to the werelate.metrics file if set
+    */
+   public void finish() {
+      endNanos = System.nanoTime();
+      String summary = getSummaryJson();
+      logger.info(summary);
+      String file = System.getProperty(FILE_PROPERTY);
+      if (file != null) {
+         try {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            out.println(summary);
+            out.close();
+         }
+         catch (IOException e) {
+            logger.warn("Unable to write " + file + ": " + e);
+         }
+      }
+      if (mbeanName != null) {
+         try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+         }
+         catch (JMException e) {
+            logger.warn("Unable to unregister reader metrics: " + e);
+         }
+         mbeanName = null;
+      }
+   }
+
+   private static long getGcCount() {
+      long count = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+         count += Math.max(gc.getCollectionCount(), 0);
+      }
+      return count;
+   }
+
+   private static long getGcMillis() {
+      long millis = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+         millis += Math.max(gc.getCollectionTime(), 0);
+      }
+      return millis;
+   }
+
+   private long getElapsedNanos() {
+      return (endNanos != 0 ? endNanos : System.nanoTime()) - startNanos;
+   }
+
+   private double perSecond(long n) {
+      long nanos = getElapsedNanos();
+      return nanos > 0 ? n * 1e9 / nanos : 0.0;
+   }
+
+   public long getElapsedMillis() {
+      return getElapsedNanos() / 1000000;
+   }
+
+   public long getPages() {
+      return pages.get();
+   }
+
+   public double getPagesPerSecond() {
+      return perSecond(pages.get());
+   }
+
+   /**
+    * @return bytes of the pages file, or decompressed chars for a multistream dump
+    */
+   public long getBytesRead() {
+      return bytesRead.get();
+   }
+
+   public double getBytesPerSecond() {
+      return perSecond(bytesRead.get());
+   }
+
+   /**
+    * @return time reading that was spent neither in the parsers nor waiting for input
+    */
+   public long getXmlParseMillis() {
+      return (getElapsedNanos() - dispatchNanos.get() - inputWaitNanos.get()) / 1000000;
+   }
+
+   public long getDispatchMillis() {
+      return dispatchNanos.get() / 1000000;
+   }
+
+   public long getInputWaitMillis() {
+      return inputWaitNanos.get() / 1000000;
+   }
+
+   /**
+    * @return the parser that has taken the most time, or null if there are none
+    */
+   public ParserStats getSlowestParser() {
+      ParserStats slowest = null;
+      for (ParserStats stats : parsers) {
+         if (slowest == null || stats.getNanos() > slowest.getNanos()) {
+            slowest = stats;
+         }
+      }
+      return slowest;
+   }
+
+   private String getProgress() {
+      MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+      StringBuilder buf = new StringBuilder();
+      buf.append(String.format("pages=%d (%.0f/s) read=%.1f MB (%.1f MB/s) xml=%ds parsers=%ds inputWait=%ds heap=%d/%d MB gc=%d (%d ms)",
+              getPages(), getPagesPerSecond(), getBytesRead() / 1e6, getBytesPerSecond() / 1e6,
+              getXmlParseMillis() / 1000, getDispatchMillis() / 1000, getInputWaitMillis() / 1000,
+              heap.getUsed() >> 20, heap.getCommitted() >> 20, getGcCount() - startGcCount, getGcMillis() - startGcMillis));
+      ParserStats slowest = getSlowestParser();
+      if (slowest != null) {
+         buf.append(" slowest=").append(slowest.getName()).append(' ').append(slowest.getNanos() / 1000000000L).append('s');
+      }
+      return buf.toString();
+   }
+
+   private static void appendJsonString(StringBuilder buf, String s) {
+      buf.append('"');
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         if (c == '"' || c == '\\') {
+            buf.append('\\').append(c);
+         }
+         else if (c < ' ') {
+            buf.append(String.format("\\u%04x", (int)c));
+         }
+         else {
+            buf.append(c);
+         }
+      }
+      buf.append('"');
+   }
+
+   public String getSummaryJson() {
+      MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+      StringBuilder buf = new StringBuilder();
+      buf.append("{\"elapsedMillis\":").append(getElapsedMillis());
+      buf.append(",\"pages\":").append(getPages());
+      buf.append(",\"pagesPerSecond\":").append(Math.round(getPagesPerSecond()));
+      buf.append(",\"bytesRead\":").append(getBytesRead());
+      buf.append(",\"bytesPerSecond\":").append(Math.round(getBytesPerSecond()));
+      buf.append(",\"xmlParseMillis\":").append(getXmlParseMillis());
+      buf.append(",\"dispatchMillis\":").append(getDispatchMillis());
+      buf.append(",\"inputWaitMillis\":").append(getInputWaitMillis());
+      buf.append(",\"gcCount\":").append(getGcCount() - startGcCount);
+      buf.append(",\"gcMillis\":").append(getGcMillis() - startGcMillis);
+      buf.append(",\"heapUsedBytes\":").append(heap.getUsed());
+      buf.append(",\"heapCommittedBytes\":").append(heap.getCommitted());
+      buf.append(",\"heapMaxBytes\":").append(heap.getMax());
+      buf.append(",\"namespaces\":{");
+      boolean first = true;
+      for (Map.Entry<String,AtomicLong> entry : new TreeMap<String,AtomicLong>(namespacePages).entrySet()) {
+         if (!first) {
+            buf.append(',');
+         }
+         first = false;
+         appendJsonString(buf, entry.getKey());
+         buf.append(':').append(entry.getValue().get());
+      }
+      buf.append("},\"parsers\":[");
+      List<ParserStats> stats = new ArrayList<ParserStats>(parsers);
+      for (int i = 0; i < stats.size(); i++) {
+         ParserStats parser = stats.get(i);
+         if (i > 0) {
+            buf.append(',');
+         }
+         buf.append("{\"name\":");
+         appendJsonString(buf, parser.getName());
+         buf.append(",\"pages\":").append(parser.getPages());
+         buf.append(",\"millis\":").append(parser.getNanos() / 1000000);
+         buf.append(",\"errors\":").append(parser.errors.get());
+         buf.append(",\"queueWaitMillis\":").append(parser.queueWaitNanos.get() / 1000000);
+         buf.append('}');
+      }
+      buf.append("]}");
+      return buf.toString();
+   }
+}
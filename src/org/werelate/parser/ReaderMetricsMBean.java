@@ -0,0 +1,16 @@
+package org.werelate.parser;
+
+/**
+ * JMX view of a WikiReader run; see ReaderMetrics
+ */
+public interface ReaderMetricsMBean {
+   public long getElapsedMillis();
+   public long getPages();
+   public double getPagesPerSecond();
+   public long getBytesRead();
+   public double getBytesPerSecond();
+   public long getXmlParseMillis();
+   public long getDispatchMillis();
+   public long getInputWaitMillis();
+   public String getSummaryJson();
+}
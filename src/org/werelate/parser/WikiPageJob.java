@@ -0,0 +1,81 @@
+package org.werelate.parser;
+
+import nu.xom.ParsingException;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A parser to run over a pages.xml dump, and what to do with its results once the dump has been read.
+ * Several jobs can share one scan of the dump; see org.werelate.scripts.RunJobs.
+ */
+public abstract class WikiPageJob {
+   private WikiPageParser parser;
+
+   protected WikiPageJob(WikiPageParser parser) {
+      this.parser = parser;
+   }
+
+   public WikiPageParser getParser() {
+      return parser;
+   }
+
+   /**
+    * Called after every page has been passed to the parser
+    */
+   public abstract void finish() throws IOException;
+
+   /**
+    * Read the pages file once, skipping redirects, passing each page to every job, then finish the jobs in order.
+    * In parallel, each job's parser runs on its own thread and sees the pages in dump order;
+    * jobs run in parallel must not share mutable state.
+    */
+   public static void run(String pagesFile, List<WikiPageJob> jobs, boolean parallel) throws IOException, ParsingException {
+      WikiReader wikiReader = new WikiReader();
+      wikiReader.setSkipRedirects(true);
+      List<ParallelPageParser> parallelParsers = new ArrayList<ParallelPageParser>();
+      for (WikiPageJob job : jobs) {
+         if (parallel) {
+            ParallelPageParser parallelParser = new ParallelPageParser(job.getParser());
+            parallelParsers.add(parallelParser);
+            wikiReader.addWikiPageParser(parallelParser);
+         }
+         else {
+            wikiReader.addWikiPageParser(job.getParser());
+         }
+      }
+      InputStream in = new FileInputStream(pagesFile);
+      try {
+         // a successful read finishes the parallel parsers
+         wikiReader.read(in);
+      }
+      catch (Throwable e) {
+         // stop the parser threads, keeping their failures with the one that ended the read
+         for (ParallelPageParser parallelParser : parallelParsers) {
+            try {
+               parallelParser.finish();
+            }
+            catch (Throwable finishFailure) {
+               if (finishFailure != e && finishFailure != e.getCause()) {
+                  e.addSuppressed(finishFailure);
+               }
+            }
+         }
+         throw e;
+      }
+      finally {
+         in.close();
+      }
+      for (WikiPageJob job : jobs) {
+         job.finish();
+      }
+   }
+
+   public static void run(String pagesFile, WikiPageJob job) throws IOException, ParsingException {
+      run(pagesFile, Collections.singletonList(job), false);
+   }
+}
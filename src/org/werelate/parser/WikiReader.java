@@ -8,8 +8,17 @@ import org.werelate.utils.Util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.FileInputStream;
+import java.io.StringReader;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -36,10 +45,16 @@ public class WikiReader extends NodeFactory {
    private String comment;
    private int cnt;
    private List<WikiPageParser> parsers;
+   // stats of each parser for the current read
+   private List<ReaderMetrics.ParserStats> parserStats;
+   private ReaderMetrics metrics;
    private boolean skipRedirects;
+   private Set<String> titleFilter;
 
     public WikiReader() {
       parsers = new ArrayList<WikiPageParser>();
+      parserStats = new ArrayList<ReaderMetrics.ParserStats>();
+      metrics = null;
       inTitle = false;
       inText = false;
       inRevId = false;
@@ -182,6 +197,7 @@ public class WikiReader extends NodeFactory {
          if (++cnt % 100000 == 0) {
             System.out.print(".");
          }
+         metrics.pageRead(title);
 
          Matcher m = Util.REDIRECT_PATTERN.matcher(latestText);
          if (title.length() == 0) {
@@ -190,16 +206,34 @@ public class WikiReader extends NodeFactory {
          else if (skipRedirects && m.lookingAt()) {
             // logger.info("skipping redirect: " + title);
          }
+         else if (titleFilter != null && !titleFilter.contains(title)) {
+            // other pages in the same stream as a wanted page
+         }
          else {
-            for (WikiPageParser parser:parsers) {
+            long dispatchStart = System.nanoTime();
+            for (int i = 0; i < parsers.size(); i++) {
+               WikiPageParser parser = parsers.get(i);
+               long start = System.nanoTime();
+               boolean error = true;
                try {
                   parser.parse(title, latestText, Integer.parseInt(pageId), latestRevId, username, timestamp, comment);
+                  error = false;
                } catch (IOException e) {
                   logger.error("IOException: " + e);
                } catch (ParsingException e) {
                   logger.error("Parsing exception for title: " + title + " - " + e);
                }
+               finally {
+                  long nanos = System.nanoTime() - start;
+                  if (parser instanceof ParallelPageParser) {
+                     parserStats.get(i).recordQueueWait(nanos);
+                  }
+                  else {
+                     parserStats.get(i).record(nanos, error);
+                  }
+               }
             }
+            metrics.addDispatchNanos(System.nanoTime() - dispatchStart);
          }
       }
       inTitle = false;
@@ -229,9 +263,99 @@ public class WikiReader extends NodeFactory {
    public void read(InputStream in) throws ParsingException, IOException {
       title = null;
       cnt = 0;
+      startMetrics();
       System.out.print("Indexing");
-      Builder builder = new Builder(this);
-      builder.build(in);
+      try {
+         Builder builder = new Builder(this);
+         builder.build(metrics.count(in));
+         finishParallelParsers();
+      }
+      finally {
+         metrics.finish();
+      }
+      System.out.println();
+   }
+
+   private void startMetrics() {
+      metrics = new ReaderMetrics();
+      parserStats.clear();
+      for (WikiPageParser parser : parsers) {
+         parserStats.add(metrics.addParser(parser));
+      }
+   }
+
+   // wait for parsers running on their own threads, so the metrics include all of their time
+   private void finishParallelParsers() throws IOException {
+      long start = System.nanoTime();
+      for (WikiPageParser parser : parsers) {
+         if (parser instanceof ParallelPageParser) {
+            ((ParallelPageParser)parser).finish();
+         }
+      }
+      metrics.addDispatchNanos(System.nanoTime() - start);
+   }
+
+   /**
+    * @return metrics of the current or most recent read, or null if nothing has been read
+    */
+   public ReaderMetrics getMetrics() {
+      return metrics;
+   }
+
+   /**
+    * Read the pages with the specified titles from a multistream dump, or every page if titles is null.
+    * Only the streams holding the titles are decompressed, on numThreads threads;
+    * the pages are passed to the parsers on this thread in dump order.
+    */
+   public void read(final MultistreamDump dump, Set<String> titles, int numThreads) throws ParsingException, IOException {
+      long[] offsets = dump.getOffsets(titles);
+      title = null;
+      cnt = 0;
+      titleFilter = titles;
+      startMetrics();
+      System.out.print("Indexing");
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      Deque<Future<String>> pending = new ArrayDeque<Future<String>>();
+      try {
+         Builder builder = new Builder(this);
+         int next = 0;
+         while (next < offsets.length || pending.size() > 0) {
+            // keep a few streams decompressing ahead of the parser
+            while (next < offsets.length && pending.size() < numThreads * 2) {
+               final long offset = offsets[next++];
+               pending.add(executor.submit(new Callable<String>() {
+                  public String call() throws IOException {
+                     return dump.readPages(offset);
+                  }
+               }));
+            }
+            String pages;
+            long waitStart = System.nanoTime();
+            try {
+               pages = pending.remove().get();
+               metrics.addInputWaitNanos(System.nanoTime() - waitStart);
+            }
+            catch (InterruptedException e) {
+               throw new IOException("Interrupted reading " + dump.getDumpFile());
+            }
+            catch (ExecutionException e) {
+               if (e.getCause() instanceof IOException) {
+                  throw (IOException)e.getCause();
+               }
+               throw new RuntimeException(e.getCause());
+            }
+            metrics.addBytesRead(pages.length());
+            if (pages.length() > 0) {
+               builder.build(new StringReader("<mediawiki>" + pages + "</mediawiki>"));
+            }
+         }
+         finishParallelParsers();
+      }
+      finally {
+         executor.shutdownNow();
+         titleFilter = null;
+         metrics.finish();
+      }
       System.out.println();
    }
 }
@@ -0,0 +1,281 @@
+package org.werelate.places;
+
+import org.werelate.scripts.GeneratePlaceAbbrevs;
+import org.werelate.utils.ExternalStringSorter;
+import org.werelate.utils.MappedIndex;
+import org.werelate.utils.OrderedOutputExecutor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Local replacement for the /placestandardize server: looks up place names in a memory-mapped index built from place_abbrevs.tsv.
+ * Place names are normalized with GeneratePlaceAbbrevs.cleanAbbrev, and each abbrev maps to its titles in priority order (lowest first).
+ *
+ * File layout: header, key records sorted by abbrev bytes, title bytes, key record offsets, title offsets.
+ * A key record is the abbrev length (short), the abbrev bytes, the number of matches (int), then (title number, priority) int pairs.
+ * lookup and standardize read the key records and titles straight from the mapped buffer and keep no state between calls,
+ * which is what lets standardize(BufferedReader, Writer, int) run its batches against one index on several threads.
+ */
+public class PlaceAbbrevIndex {
+   private static final int MAGIC = 0x50414958;        // PAIX
+   private static final int VERSION = 1;
+   private static final int HEADER_SIZE = 24;
+   private static final int BATCH_SIZE = 1000;
+
+   private ByteBuffer buf;
+   private int numKeys;
+   private int keyOffsetsPos;
+   private int numTitles;
+   private int titleOffsetsPos;
+
+   public static class Match {
+      public final String title;
+      public final int priority;
+
+      public Match(String title, int priority) {
+         this.title = title;
+         this.priority = priority;
+      }
+   }
+
+   public PlaceAbbrevIndex(String indexFile) throws IOException {
+      buf = MappedIndex.map(indexFile);
+      if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+         throw new IOException("Not a place abbrev index: "+indexFile);
+      }
+      numKeys = buf.getInt(8);
+      keyOffsetsPos = buf.getInt(12);
+      numTitles = buf.getInt(16);
+      titleOffsetsPos = buf.getInt(20);
+   }
+
+   public int getNumKeys() {
+      return numKeys;
+   }
+
+   public int getNumTitles() {
+      return numTitles;
+   }
+
+   private int findRecord(String abbrev) {
+      byte[] query = abbrev.getBytes(StandardCharsets.UTF_8);
+      int lo = 0;
+      int hi = numKeys - 1;
+      while (lo <= hi) {
+         int mid = (lo + hi) >>> 1;
+         int record = buf.getInt(keyOffsetsPos + 4 * mid);
+         int c = MappedIndex.compareKey(buf, record, query);
+         if (c < 0) {
+            lo = mid + 1;
+         }
+         else if (c > 0) {
+            hi = mid - 1;
+         }
+         else {
+            return record;
+         }
+      }
+      return -1;
+   }
+
+   private String getTitle(int titleNumber) {
+      int start = buf.getInt(titleOffsetsPos + 4 * titleNumber);
+      int end = buf.getInt(titleOffsetsPos + 4 * (titleNumber + 1));
+      byte[] bytes = new byte[end - start];
+      for (int i = 0; i < bytes.length; i++) {
+         bytes[i] = buf.get(start + i);
+      }
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   /**
+    * Return up to maxMatches titles for an abbrev that has already been cleaned with cleanAbbrev, best match first
+    */
+   public List<Match> lookup(String abbrev, int maxMatches) {
+      List<Match> matches = new ArrayList<Match>();
+      int record = findRecord(abbrev);
+      if (record >= 0) {
+         int pos = record + 2 + (buf.getShort(record) & 0xffff);
+         int numMatches = Math.min(buf.getInt(pos), maxMatches);
+         pos += 4;
+         for (int i = 0; i < numMatches; i++) {
+            matches.add(new Match(getTitle(buf.getInt(pos)), buf.getInt(pos + 4)));
+            pos += 8;
+         }
+      }
+      return matches;
+   }
+
+   /**
+    * Return the title of the best match for the place name, with spaces instead of underscores, or null if there is no match
+    */
+   public String standardize(String place) {
+      String abbrev = GeneratePlaceAbbrevs.cleanAbbrev(place);
+      if (abbrev.length() == 0) {
+         return null;
+      }
+      List<Match> matches = lookup(abbrev, 1);
+      return matches.size() == 0 ? null : matches.get(0).title.replace('_', ' ');
+   }
+
+   private class StandardizeBatch implements Callable<String> {
+      private final List<String> places;
+      private final Set<String> errors;
+
+      StandardizeBatch(List<String> places, Set<String> errors) {
+         this.places = places;
+         this.errors = errors;
+      }
+
+      public String call() {
+         StringBuilder out = new StringBuilder();
+         for (String place : places) {
+            String title = standardize(place);
+            if (title == null) {
+               synchronized (errors) {
+                  errors.add(place);
+               }
+               title = "";
+            }
+            out.append(place).append('|').append(title).append('\n');
+         }
+         return out.toString();
+      }
+   }
+
+   /**
+    * Standardize each line of in, writing place|title lines to out in input order.
+    * Places without a match are written with an empty title and returned.
+    */
+   public Set<String> standardize(BufferedReader in, Writer out, int numThreads) throws IOException {
+      Set<String> errors = new TreeSet<String>();
+      OrderedOutputExecutor executor = new OrderedOutputExecutor(numThreads, out);
+      List<String> batch = new ArrayList<String>();
+      while (in.ready()) {
+         batch.add(in.readLine());
+         if (batch.size() == BATCH_SIZE) {
+            executor.submit(new StandardizeBatch(batch, errors));
+            batch = new ArrayList<String>();
+         }
+      }
+      if (batch.size() > 0) {
+         executor.submit(new StandardizeBatch(batch, errors));
+      }
+      executor.finish();
+      return errors;
+   }
+
+   private static void appendPadded(StringBuilder sb, int n) {
+      String s = Integer.toString(n);
+      for (int i = s.length(); i < 10; i++) {
+         sb.append('0');
+      }
+      sb.append(s);
+   }
+
+   /**
+    * Build an index file from place_abbrevs.tsv, sorting the rows externally if they exceed memoryBudget bytes
+    */
+   public static void build(String abbrevsFile, String indexFile, long memoryBudget, File tempDir) throws IOException {
+      // number the titles, and sort abbrev, priority, title number
+      Map<String,Integer> titleNumbers = new HashMap<String,Integer>();
+      List<String> titles = new ArrayList<String>();
+      ExternalStringSorter sorter = new ExternalStringSorter(memoryBudget, tempDir);
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(abbrevsFile), "UTF-8"));
+      StringBuilder sb = new StringBuilder();
+      while (in.ready()) {
+         String line = in.readLine();
+         // abbrev, name, primary name, title, priority, lat, lon, types
+         String[] fields = line.split("\t");
+         if (fields.length < 5 || fields[0].length() == 0) {
+            continue;
+         }
+         Integer titleNumber = titleNumbers.get(fields[3]);
+         if (titleNumber == null) {
+            titleNumber = titles.size();
+            titleNumbers.put(fields[3], titleNumber);
+            titles.add(fields[3]);
+         }
+         sb.setLength(0);
+         sb.append(fields[0]).append('\t');
+         appendPadded(sb, Integer.parseInt(fields[4]));
+         sb.append('\t').append(titleNumber.intValue());
+         sorter.add(sb.toString());
+      }
+      in.close();
+      titleNumbers = null;
+
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 65536));
+      out.write(new byte[HEADER_SIZE]);
+      int[] keyOffsets = new int[1024];
+      int numKeys = 0;
+      String key = null;
+      List<int[]> matches = new ArrayList<int[]>();
+      ExternalStringSorter.Merger merger = sorter.merge();
+      // tab sorts before every character of an abbrev, so the abbrevs come out in the same order as their bytes
+      for (String s = merger.next(); ; s = merger.next()) {
+         int tab = (s == null ? -1 : s.indexOf('\t'));
+         String abbrev = (s == null ? null : s.substring(0, tab));
+         if (key != null && !key.equals(abbrev)) {
+            if (numKeys == keyOffsets.length) {
+               keyOffsets = Arrays.copyOf(keyOffsets, numKeys * 2);
+            }
+            keyOffsets[numKeys++] = MappedIndex.checkOffset(out.size());
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(keyBytes.length);
+            out.write(keyBytes);
+            out.writeInt(matches.size());
+            for (int[] match : matches) {
+               out.writeInt(match[0]);
+               out.writeInt(match[1]);
+            }
+            matches.clear();
+         }
+         if (s == null) {
+            break;
+         }
+         key = abbrev;
+         int tab2 = s.indexOf('\t', tab + 1);
+         matches.add(new int[] {Integer.parseInt(s.substring(tab2 + 1)), Integer.parseInt(s.substring(tab + 1, tab2))});
+      }
+      merger.close();
+      sorter.delete();
+
+      int[] titleOffsets = new int[titles.size() + 1];
+      for (int i = 0; i < titles.size(); i++) {
+         titleOffsets[i] = MappedIndex.checkOffset(out.size());
+         out.write(titles.get(i).getBytes(StandardCharsets.UTF_8));
+      }
+      titleOffsets[titles.size()] = MappedIndex.checkOffset(out.size());
+      int keyOffsetsPos = MappedIndex.checkOffset(out.size());
+      for (int i = 0; i < numKeys; i++) {
+         out.writeInt(keyOffsets[i]);
+      }
+      int titleOffsetsPos = MappedIndex.checkOffset(out.size());
+      for (int offset : titleOffsets) {
+         out.writeInt(offset);
+      }
+      out.close();
+
+      RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+      raf.writeInt(MAGIC);
+      raf.writeInt(VERSION);
+      raf.writeInt(numKeys);
+      raf.writeInt(keyOffsetsPos);
+      raf.writeInt(titles.size());
+      raf.writeInt(titleOffsetsPos);
+      raf.close();
+   }
+
+   // 0=place_abbrevs.tsv 1=index file [2=memory budget in MB 3=temp dir]
+   public static void main(String[] args) throws IOException {
+      long memoryBudget = (args.length > 2 ? Long.parseLong(args[2]) : 256) * 1024 * 1024;
+      build(args[0], args[1], memoryBudget, args.length > 3 ? new File(args[3]) : null);
+      PlaceAbbrevIndex index = new PlaceAbbrevIndex(args[1]);
+      System.out.println("abbrevs="+index.getNumKeys()+" titles="+index.getNumTitles());
+   }
+}
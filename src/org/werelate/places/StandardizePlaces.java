@@ -31,6 +31,16 @@ public class StandardizePlaces
    private XPathExpression placeTitleExpression;
    private XPathExpression errorExpression;
    private Map<String,String> redirects;
+   private PlaceAbbrevIndex index;
+
+   /**
+    * Standardize places locally using an index built by PlaceAbbrevIndex instead of the place server
+    */
+   public StandardizePlaces(PlaceAbbrevIndex index)
+   {
+      this.index = index;
+      redirects = new HashMap<String,String>();
+   }
 
    public StandardizePlaces(String placeServer) throws ParserConfigurationException, XPathExpressionException
    {
@@ -75,6 +85,19 @@ public class StandardizePlaces
    public Map<String,String> getStandardizedPlaceNames(Set<String> names, PrintWriter err) throws IOException, SAXException, XPathExpressionException
    {
       Map<String,String> result = new HashMap<String,String>();
+      if (index != null) {
+         for (String name : names) {
+            String placeTitle = index.standardize(name);
+            if (placeTitle == null) {
+               if (err != null) {
+                  err.println(name);
+               }
+               placeTitle = "";
+            }
+            result.put(name, getRedirTarget(placeTitle));
+         }
+         return result;
+      }
       String query = Util.join("|", names);
       String url = "http://"+placeServer+"/placestandardize";
       PostMethod m = new PostMethod(url);
@@ -116,13 +139,19 @@ public class StandardizePlaces
       return result;
    }
 
-   // 0=places to standardize 1=place redirs 2=output 3=errors out
+   // 0=places to standardize 1=place redirs 2=output 3=errors out [4=place abbrev index to standardize locally]
    public static void main(String[] args) throws IOException, ParserConfigurationException, XPathExpressionException, SAXException
    {
       BufferedReader in = new BufferedReader(new FileReader(args[0]));
       PrintWriter out = new PrintWriter(args[2]);
       PrintWriter err = new PrintWriter(args[3]);
-      StandardizePlaces sp = new StandardizePlaces("index.werelate.org/solr/werelate");
+      StandardizePlaces sp;
+      if (args.length > 4) {
+         sp = new StandardizePlaces(new PlaceAbbrevIndex(args[4]));
+      }
+      else {
+         sp = new StandardizePlaces("index.werelate.org/solr/werelate");
+      }
       sp.loadRedirects(args[1]);
       Set<String> names = new HashSet<String>();
 
@@ -68,23 +68,9 @@ public class AnalyzeAuthors
                !(line.indexOf("Church of Jesus Christ of Latter-day Saints") >= 0 || line.indexOf("Genealogical Society of Utah") >= 0)));
    }
 
-   // 0=authors, 1=non-author-phrases 2=cutoff 3=authors-out 4=non-authors-out 5=unknown-authors-out 6=unknown-words-out
-   public static void main(String[] args)
-           throws IOException
-   {
-      CountsCollector ccAuthors = new CountsCollector();
-      CountsCollector ccNonAuthors = new CountsCollector();
-      CountsCollector ccUnknown = new CountsCollector();
-      CountsCollector ccUnknownWords = new CountsCollector();
-
-      Set<String> nonAuthorPhrases = new HashSet<String>();
-      BufferedReader napReader = new BufferedReader(new FileReader(args[1]));
-      while (napReader.ready()) {
-         nonAuthorPhrases.add(napReader.readLine().toLowerCase());
-      }
-      napReader.close();
-
-      BufferedReader in = new BufferedReader(new FileReader(args[0]));
+   private static void countAuthors(String filename, CountsCollector ccAuthors, CountsCollector ccNonAuthors,
+                                    CountsCollector ccUnknown, CountsCollector ccUnknownWords) throws IOException {
+      BufferedReader in = new BufferedReader(new FileReader(filename));
       while (in.ready()) {
          boolean foundAuthor = false;
          boolean foundNonAuthor = false;
@@ -110,6 +96,46 @@ public class AnalyzeAuthors
          }
       }
       in.close();
+   }
+
+   // 0=authors, 1=non-author-phrases 2=cutoff 3=authors-out 4=non-authors-out 5=unknown-authors-out 6=unknown-words-out
+   // [7=approximate: number of entries to keep per output; authors is read twice to recount them exactly]
+   public static void main(String[] args)
+           throws IOException
+   {
+      CountsCollector ccAuthors;
+      CountsCollector ccNonAuthors;
+      CountsCollector ccUnknown;
+      CountsCollector ccUnknownWords;
+      if (args.length > 7) {
+         int capacity = Integer.parseInt(args[7]);
+         ccAuthors = CountsCollector.approximate(capacity);
+         ccNonAuthors = CountsCollector.approximate(capacity);
+         ccUnknown = CountsCollector.approximate(capacity);
+         ccUnknownWords = CountsCollector.approximate(capacity);
+      }
+      else {
+         ccAuthors = new CountsCollector();
+         ccNonAuthors = new CountsCollector();
+         ccUnknown = new CountsCollector();
+         ccUnknownWords = new CountsCollector();
+      }
+
+      Set<String> nonAuthorPhrases = new HashSet<String>();
+      BufferedReader napReader = new BufferedReader(new FileReader(args[1]));
+      while (napReader.ready()) {
+         nonAuthorPhrases.add(napReader.readLine().toLowerCase());
+      }
+      napReader.close();
+
+      countAuthors(args[0], ccAuthors, ccNonAuthors, ccUnknown, ccUnknownWords);
+      if (args.length > 7) {
+         ccAuthors.beginRecount();
+         ccNonAuthors.beginRecount();
+         ccUnknown.beginRecount();
+         ccUnknownWords.beginRecount();
+         countAuthors(args[0], ccAuthors, ccNonAuthors, ccUnknown, ccUnknownWords);
+      }
 
       int cutoff = Integer.parseInt(args[2]);
       ccAuthors.writeSorted(false, cutoff, new PrintWriter(args[3]));
@@ -1,7 +1,7 @@
 package org.werelate.scripts;
 
 import org.werelate.parser.StructuredDataParser;
-import org.werelate.parser.WikiReader;
+import org.werelate.parser.WikiPageJob;
 import org.werelate.utils.CountsCollector;
 import org.werelate.utils.Util;
 
@@ -38,16 +38,18 @@ public class AnalyzePlaces extends StructuredDataParser
 
    // Generate various lists of places
    // 0=pages.xml 1=types.txt
+   public static WikiPageJob newJob(final String[] args) {
+      final AnalyzePlaces ap = new AnalyzePlaces();
+      return new WikiPageJob(ap) {
+         public void finish() throws IOException {
+            ap.cc.writeSorted(false, 0, new PrintWriter(new FileWriter(args[1])));
+         }
+      };
+   }
+
    public static void main(String[] args)
            throws IOException, ParsingException
    {
-      WikiReader wikiReader = new WikiReader();
-      wikiReader.setSkipRedirects(true);
-      AnalyzePlaces ap = new AnalyzePlaces();
-      wikiReader.addWikiPageParser(ap);
-      InputStream in = new FileInputStream(args[0]);
-      wikiReader.read(in);
-      in.close();
-      ap.cc.writeSorted(false, 0, new PrintWriter(new FileWriter(args[1])));
+      WikiPageJob.run(args[0], newJob(args));
    }
 }
@@ -1,7 +1,7 @@
 package org.werelate.scripts;
 
 import org.werelate.parser.StructuredDataParser;
-import org.werelate.parser.WikiReader;
+import org.werelate.parser.WikiPageJob;
 import org.werelate.utils.Util;
 import org.werelate.utils.CountsCollector;
 
@@ -60,17 +60,19 @@ public class AnalyzeSourceTitles extends StructuredDataParser
    }
 
    // pages.xml us_sources
+   public static WikiPageJob newJob(String[] args) throws IOException {
+      final PrintWriter out = new PrintWriter(args[1]);
+      final AnalyzeSourceTitles ast = new AnalyzeSourceTitles(out);
+      return new WikiPageJob(ast) {
+         public void finish() {
+            ast.cc.writeSorted(false, 100, out);
+         }
+      };
+   }
+
    public static void main(String[] args)
            throws IOException, ParsingException
    {
-      PrintWriter out = new PrintWriter(args[1]);
-      WikiReader wikiReader = new WikiReader();
-      wikiReader.setSkipRedirects(true);
-      AnalyzeSourceTitles ast = new AnalyzeSourceTitles(out);
-      wikiReader.addWikiPageParser(ast);
-      InputStream in = new FileInputStream(args[0]);
-      wikiReader.read(in);
-      in.close();
-      ast.cc.writeSorted(false, 100, out);
+      WikiPageJob.run(args[0], newJob(args));
    }
 }
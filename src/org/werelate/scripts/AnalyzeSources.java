@@ -1,7 +1,7 @@
 package org.werelate.scripts;
 
 import org.werelate.parser.StructuredDataParser;
-import org.werelate.parser.WikiReader;
+import org.werelate.parser.WikiPageJob;
 import org.werelate.utils.Util;
 import org.werelate.utils.CountsCollector;
 
@@ -66,15 +66,16 @@ public class AnalyzeSources extends StructuredDataParser
    }
 
    // pages.xml wlhSources.txt authors.txt ancestryUrls.txt reviewTitles.html periodicals.txt deleteTitles.txt
+   public static WikiPageJob newJob(String[] args) throws IOException {
+      return new WikiPageJob(new AnalyzeSources()) {
+         public void finish() {
+         }
+      };
+   }
+
    public static void main(String[] args)
            throws IOException, ParsingException
    {
-      WikiReader wikiReader = new WikiReader();
-      wikiReader.setSkipRedirects(true);
-      AnalyzeSources as = new AnalyzeSources();
-      wikiReader.addWikiPageParser(as);
-      InputStream in = new FileInputStream(args[0]);
-      wikiReader.read(in);
-      in.close();
+      WikiPageJob.run(args[0], newJob(args));
    }
 }
@@ -9,7 +9,7 @@ import nu.xom.Element;
 import nu.xom.Elements;
 import nu.xom.ParsingException;
 import org.werelate.parser.StructuredDataParser;
-import org.werelate.parser.WikiReader;
+import org.werelate.parser.WikiPageJob;
 import org.werelate.utils.CountsCollector;
 import org.werelate.utils.Util;
 
@@ -43,16 +43,18 @@ public class CountEventTypes extends StructuredDataParser
 
    // Generate list of event_fact types
    // 0=pages.xml 1=types.txt
+   public static WikiPageJob newJob(final String[] args) {
+      final CountEventTypes p = new CountEventTypes();
+      return new WikiPageJob(p) {
+         public void finish() throws IOException {
+            p.cc.writeSorted(false, 0, new PrintWriter(new FileWriter(args[1])));
+         }
+      };
+   }
+
    public static void main(String[] args)
            throws IOException, ParsingException
    {
-      WikiReader wikiReader = new WikiReader();
-      wikiReader.setSkipRedirects(true);
-      CountEventTypes p = new CountEventTypes();
-      wikiReader.addWikiPageParser(p);
-      InputStream in = new FileInputStream(args[0]);
-      wikiReader.read(in);
-      in.close();
-      p.cc.writeSorted(false, 0, new PrintWriter(new FileWriter(args[1])));
+      WikiPageJob.run(args[0], newJob(args));
    }
 }
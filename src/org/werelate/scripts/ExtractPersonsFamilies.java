@@ -4,7 +4,7 @@ import nu.xom.Element;
 import nu.xom.Elements;
 import nu.xom.ParsingException;
 import org.werelate.parser.StructuredDataParser;
-import org.werelate.parser.WikiReader;
+import org.werelate.parser.WikiPageJob;
 import org.werelate.utils.Util;
 
 import java.io.*;
@@ -14,10 +14,19 @@ import java.util.List;
 public class ExtractPersonsFamilies extends StructuredDataParser {
    PrintWriter personsOut;
    PrintWriter familiesOut;
+   FamilyTreeColumns columns;
 
    public ExtractPersonsFamilies(String personsPath, String familiesPath) throws IOException {
        personsOut = new PrintWriter(new FileWriter(personsPath));
        familiesOut = new PrintWriter(new FileWriter(familiesPath));
+       columns = null;
+   }
+
+   /**
+    * Also write the persons and families as column tables in the specified directory
+    */
+   public void setColumnsDir(File dir) throws IOException {
+      columns = new FamilyTreeColumns(dir);
    }
 
    public void parse(String title, String text, int pageId, int latestRevId, String username, String timestamp, String comment) throws IOException, ParsingException
@@ -30,9 +39,15 @@ public class ExtractPersonsFamilies extends StructuredDataParser {
                 Element root = parseText(structuredData).getRootElement();
                 if (title.startsWith("Person:")) {
                     outputPerson(pageId, title, root);
+                    if (columns != null) {
+                       columns.addPerson(pageId, title, root);
+                    }
                 }
                  else {
                     outputFamily(pageId, title, root);
+                    if (columns != null) {
+                       columns.addFamily(pageId, title, root);
+                    }
                 }
              }
           }
@@ -129,7 +144,7 @@ public class ExtractPersonsFamilies extends StructuredDataParser {
         familiesOut.println(pageId + "\t" + title + "\t" + husbandTitle + "\t" + wifeTitle + "\t" + Util.join("\t", childTitles));
     }
 
-   private String getStandard(String text) {
+   static String getStandard(String text) {
        if (text == null) {
            return null;
        }
@@ -140,24 +155,32 @@ public class ExtractPersonsFamilies extends StructuredDataParser {
        return text;
    }
 
-   public void close()
+   public void close() throws IOException
    {
       personsOut.close();
        familiesOut.close();
+      if (columns != null) {
+         columns.close();
+      }
    }
 
    // Generate list of persons(id, title, given, surname, bdate, bplace) families(husbandids, wifeids, childids)
-   // 0=pages.xml 1=persons 2=families
+   // 0=pages.xml 1=persons 2=families [3=directory for column tables; see FamilyTreeColumns]
+   public static WikiPageJob newJob(String[] args) throws IOException {
+      final ExtractPersonsFamilies self = new ExtractPersonsFamilies(args[1], args[2]);
+      if (args.length > 3) {
+         self.setColumnsDir(new File(args[3]));
+      }
+      return new WikiPageJob(self) {
+         public void finish() throws IOException {
+            self.close();
+         }
+      };
+   }
+
    public static void main(String[] args)
            throws IOException, ParsingException
    {
-      WikiReader wikiReader = new WikiReader();
-      wikiReader.setSkipRedirects(true);
-      ExtractPersonsFamilies self = new ExtractPersonsFamilies(args[1], args[2]);
-      wikiReader.addWikiPageParser(self);
-      InputStream in = new FileInputStream(args[0]);
-      wikiReader.read(in);
-      in.close();
-      self.close();
+      WikiPageJob.run(args[0], newJob(args));
    }
 }
@@ -2,7 +2,11 @@ package org.werelate.scripts;
 
 import org.werelate.parser.StructuredDataParser;
 import org.werelate.parser.WikiReader;
+import org.werelate.utils.IntGraph;
+import org.werelate.utils.Romanizer;
 import org.werelate.utils.Util;
+import org.werelate.utils.WikiTextScanner;
+import org.werelate.utils.WordIndexBuilder;
 
 import java.io.*;
 import java.text.DecimalFormat;
@@ -20,6 +24,8 @@ public class ExtractPlaces extends StructuredDataParser
    private Map<Integer,Place> placeMap;
    private Map<String,Integer> titleMap;
    private Map<String,String> redirectMap;
+   private Map<String,String> redirectTargets;     // redirect title -> final target, or null if the redirects loop
+   private Set<Integer> cyclicPlaces;              // places whose locatedIn chain never reaches a top-level place
    private Set<String> linkedPlacesSet;
    private Map<String,Integer> linkedPlacesMap;
 
@@ -216,14 +222,10 @@ public class ExtractPlaces extends StructuredDataParser
            "zone"
    ));
 
-   // {{wikipedia-notice|wikipedia page name}}
-   private static final Pattern WIKIPEDIA_PATTERN = Pattern.compile("\\{\\{wikipedia-notice\\|(.+?)\\}\\}", Pattern.CASE_INSENSITIVE);
-   // {{moreinfo wikipedia|wikipedia page name}}
-   private static final Pattern WIKIPEDIA2_PATTERN = Pattern.compile("\\{\\{moreinfo wikipedia\\|(.+?)\\}\\}", Pattern.CASE_INSENSITIVE);
-   // {{source-getty|id}}
-   private static final Pattern GETTY_PATTERN = Pattern.compile("\\{\\{source-getty\\|(.+?)\\}\\}", Pattern.CASE_INSENSITIVE);
-   // {{source-fhlc|id}}
-   private static final Pattern FHLC_PATTERN = Pattern.compile("\\{\\{source-fhlc\\|(.+?)\\}\\}", Pattern.CASE_INSENSITIVE);
+   // source templates and their labels: {{wikipedia-notice|wikipedia page name}}, {{moreinfo wikipedia|wikipedia page name}},
+   // {{source-getty|id}}, {{source-fhlc|id}}; the first moreinfo wikipedia is used only if there's no wikipedia-notice
+   private static final String[] SOURCE_TEMPLATES = {"wikipedia-notice", "moreinfo wikipedia", "source-getty", "source-fhlc"};
+   private static final String[] SOURCE_LABELS = {"wikipedia", "wikipedia", "getty", "fhlc"};
 
    private static class Place {
       String title;
@@ -255,6 +257,7 @@ public class ExtractPlaces extends StructuredDataParser
       redirectMap = new HashMap<String,String>();
       linkedPlacesSet = new HashSet<String>();
       linkedPlacesMap = new HashMap<String, Integer>();
+      cyclicPlaces = new HashSet<Integer>();
    }
 
    private static String noQuote(String place) {
@@ -282,13 +285,25 @@ public class ExtractPlaces extends StructuredDataParser
       return source;
    }
 
-   private static boolean addSource(Pattern p, String label, String text, List<String> sources) {
-      Matcher m = p.matcher(text);
-      if (m.find()) {
-         sources.add(label+":"+m.group(1));
-         return true;
+   private static void addSources(String text, List<String> sources) {
+      final String[] values = new String[SOURCE_TEMPLATES.length];
+      WikiTextScanner.scan(text, new WikiTextScanner.Visitor() {
+         public void template(WikiTextScanner.Template template) {
+            for (int i = 0; i < SOURCE_TEMPLATES.length; i++) {
+               if (values[i] == null && template.nameEqualsIgnoreCase(SOURCE_TEMPLATES[i])) {
+                  String value = template.getArguments();
+                  if (value.length() > 0) {
+                     values[i] = value;
+                  }
+               }
+            }
+         }
+      });
+      for (int i = 0; i < values.length; i++) {
+         if (values[i] != null && (i != 1 || values[0] == null)) {
+            sources.add(SOURCE_LABELS[i]+":"+values[i]);
+         }
       }
-      return false;
    }
 
    public void parse(String title, String text, int pageId, int latestRevId, String username, String timestamp, String comment) throws IOException, ParsingException
@@ -375,11 +390,7 @@ public class ExtractPlaces extends StructuredDataParser
                p.longitude = getLatLon(root.getFirstChildElement("longitude"), false);
 
                // add sources
-               if (!addSource(WIKIPEDIA_PATTERN, "wikipedia", unstructuredData, p.sources)) {
-                  addSource(WIKIPEDIA2_PATTERN, "wikipedia", unstructuredData, p.sources);
-               }
-               addSource(GETTY_PATTERN, "getty", unstructuredData, p.sources);
-               addSource(FHLC_PATTERN, "fhlc", unstructuredData, p.sources);
+               addSources(unstructuredData, p.sources);
 
                // add to maps
                placeMap.put(pageId, p);
@@ -440,7 +451,7 @@ public class ExtractPlaces extends StructuredDataParser
    }
 
    private Set<String> getNameTokens(String name) {
-      name = Util.romanize(name.toLowerCase());
+      name = Romanizer.LOWERCASE_ROMANIZE.normalize(name);
       String[] tokens = name.split("[^a-z0-9]+");
       StringBuilder buf = new StringBuilder();
       Set<String> result = new TreeSet<String>();
@@ -479,26 +490,22 @@ public class ExtractPlaces extends StructuredDataParser
       return result;
    }
 
-   private boolean addNames(int id, String name, Map<String,Set<Integer>> map) {
+   private boolean addNames(int id, String name, WordIndexBuilder index) {
       Set<String> tokens = getNameTokens(name);
       for (String token : tokens) {
-         Set<Integer> ids = map.get(token);
-         if (ids == null) {
-            ids = new TreeSet<Integer>();
-            map.put(token, ids);
-         }
-         ids.add(id);
+         index.add(token, id);
       }
       return (tokens.size() > 0);
    }
 
-   public Map<String,Set<Integer>> generateWordMap() {
-      Map<String,Set<Integer>> map = new TreeMap<String, Set<Integer>>();
+   // places are visited in id order, so each word's ids are added in order
+   public WordIndexBuilder generateWordIndex() {
+      WordIndexBuilder index = new WordIndexBuilder();
 
       for (Map.Entry<Integer,Place> entry : placeMap.entrySet()) {
          int id = entry.getKey();
          Place p = entry.getValue();
-         if (!addNames(id, p.name, map)) {
+         if (!addNames(id, p.name, index)) {
             logger.error("Primary name token not found for: " + p.name + ", " + p.locatedIn);
          }
          for (String altName : p.altNames) {
@@ -506,26 +513,26 @@ public class ExtractPlaces extends StructuredDataParser
 //            if (pos >= 0) {
 //               altName = altName.substring(0,pos);
 //            }
-            addNames(id, altName, map);
+            addNames(id, altName, index);
          }
       }
-      return map;
+      return index;
    }
 
-   public int getPlaceId(String title) {
+   // return 0 for an empty title, -1 if the title isn't found
+   private int findPlaceId(String title) {
       if (title == null || title.length() == 0) {
          return 0;
       }
+      String target = getFinalRedirectTarget(title);
+      Integer id = (target == null ? null : titleMap.get(target));
+      return (id == null ? -1 : id);
+   }
 
-      int cnt = 0;
-      while (redirectMap.get(title) != null && cnt <= 3) {
-         title = redirectMap.get(title);
-         cnt++;
-      }
-      Integer id = titleMap.get(title);
-      if (id == null) {
+   public int getPlaceId(String title) {
+      int id = findPlaceId(title);
+      if (id < 0) {
          logger.error("Title not found: " + title);
-         return -1;
       }
       return id;
    }
@@ -546,83 +553,133 @@ public class ExtractPlaces extends StructuredDataParser
       }
    }
 
-   private boolean containsCycle(int id, String otherTitle, int level) {
-      if (level >= 10) {
-         return false;
-      }
-
-      int otherId = getPlaceId(otherTitle);
-      if (otherId == 0) { // not found
-         logger.warn("id not found for title "+otherTitle);
-         return false;
-      }
-      Place other = placeMap.get(otherId);
-      if (other == null) { // not found
-         logger.warn("place not found for id "+otherId+" title "+otherTitle);
-         return false;
+   /**
+    * Build a graph of the places and their locatedIn and alsoLocatedIn links, with titles resolved to places once.
+    * Remove alsoLocatedIns that lead back to the place (the link and the place are in the same strongly-connected component),
+    * and remember places whose locatedIn chain loops, so the export doesn't walk them forever.
+    */
+   private void validateHierarchy() {
+      int[] ids = new int[placeMap.size()];
+      Place[] places = new Place[ids.length];
+      int n = 0;
+      for (Map.Entry<Integer, Place> entry : placeMap.entrySet()) {
+         ids[n] = entry.getKey();
+         places[n] = entry.getValue();
+         n++;
       }
 
-      // check same id
-      if (id == otherId) {
-         return true;
-      }
-      // check locatedIn and alsoLocatedIns
-      if (other.locatedIn != null && !other.locatedIn.isEmpty() && containsCycle(id, other.locatedIn, level+1)) {
-         return true;
-      }
-      for (String ali : other.alsoLocatedIns) {
-         if (containsCycle(id, ali, level+1)) {
-            return true;
+      IntGraph graph = new IntGraph(n);
+      int[] locatedIns = new int[n];
+      int[][] alis = new int[n][];
+      for (int i = 0; i < n; i++) {
+         locatedIns[i] = getNode(ids, findPlaceId(places[i].locatedIn));
+         if (locatedIns[i] >= 0) {
+            graph.addEdge(i, locatedIns[i]);
+         }
+         alis[i] = new int[places[i].alsoLocatedIns.size()];
+         for (int j = 0; j < alis[i].length; j++) {
+            int aliId = findPlaceId(places[i].alsoLocatedIns.get(j));
+            alis[i][j] = (aliId == 0 ? -2 : getNode(ids, aliId));
+            if (alis[i][j] >= 0) {
+               graph.addEdge(i, alis[i][j]);
+            }
          }
       }
 
-      return false;
-   }
-
-   private void removeCyclicAlsoLocatedIns() {
-      Map<Integer,Set<String>> removals = new HashMap<Integer,Set<String>>();
-
-      for (Map.Entry<Integer, Place> entry : placeMap.entrySet()) {
-         int id = entry.getKey();
-         Place p = entry.getValue();
-         for (String ali : p.alsoLocatedIns) {
-            if (getPlaceId(ali) == 0 || containsCycle(id, ali, 0)) {
-               Set<String> alis = removals.get(id);
-               if (alis == null) {
-                  alis = new HashSet<String>();
-                  removals.put(id, alis);
+      // remove cyclic alsoLocatedIns
+      int[] components = graph.getComponents();
+      for (int i = 0; i < n; i++) {
+         Place p = places[i];
+         List<String> keep = null;
+         for (int j = 0; j < alis[i].length; j++) {
+            String ali = p.alsoLocatedIns.get(j);
+            if (alis[i][j] == -2 || (alis[i][j] >= 0 && components[alis[i][j]] == components[i])) {
+               logger.warn("Removing cycle from "+p.name+", "+p.locatedIn+" to "+ali);
+               if (keep == null) {
+                  keep = new ArrayList<String>(p.alsoLocatedIns.subList(0, j));
                }
-               alis.add(ali);
+            }
+            else if (keep != null) {
+               keep.add(ali);
             }
          }
+         if (keep != null) {
+            p.alsoLocatedIns = keep;
+         }
       }
 
-      for (Map.Entry<Integer, Set<String>> entry : removals.entrySet()) {
-         int id = entry.getKey();
-         Place p = placeMap.get(id);
-         for (String ali : entry.getValue()) {
-            logger.warn("Removing cycle from "+p.name+", "+p.locatedIn+" to "+ali);
-            p.alsoLocatedIns.remove(ali);
+      // find places whose locatedIn chain loops; 0=not visited 1=on the current chain 2=reaches the top 3=loops
+      byte[] states = new byte[n];
+      int[] chain = new int[n];
+      for (int i = 0; i < n; i++) {
+         int len = 0;
+         int node = i;
+         while (node >= 0 && states[node] == 0) {
+            states[node] = 1;
+            chain[len++] = node;
+            node = locatedIns[node];
+         }
+         byte state = (node < 0 || states[node] == 2 ? (byte)2 : (byte)3);
+         for (int j = 0; j < len; j++) {
+            states[chain[j]] = state;
+            if (state == 3) {
+               cyclicPlaces.add(ids[chain[j]]);
+            }
          }
       }
    }
 
-   private String getFinalRedirectTarget(String title, int max) {
-      int i = 0;
-      while (redirectMap.containsKey(title)) {
-         // avoid infinite redirect loops
-         if (++i > max) {
-            return null;
+   // return the index of the place in ids, or -1
+   private static int getNode(int[] ids, int placeId) {
+      int node = (placeId > 0 ? Arrays.binarySearch(ids, placeId) : -1);
+      return (node >= 0 ? node : -1);
+   }
+
+   /**
+    * Resolve every redirect to its final target in one pass, remembering the target of each redirect on the way
+    */
+   private void resolveRedirects() {
+      redirectTargets = new HashMap<String,String>();
+      List<String> chain = new ArrayList<String>();
+      Set<String> seen = new HashSet<String>();
+      for (String title : redirectMap.keySet()) {
+         chain.clear();
+         seen.clear();
+         String target = title;
+         while (true) {
+            if (redirectTargets.containsKey(target)) {
+               target = redirectTargets.get(target);
+               break;
+            }
+            String next = redirectMap.get(target);
+            if (next == null) {
+               break;
+            }
+            // avoid infinite redirect loops
+            if (!seen.add(target)) {
+               target = null;
+               break;
+            }
+            chain.add(target);
+            target = next;
+         }
+         for (String redirect : chain) {
+            redirectTargets.put(redirect, target);
          }
-         title = redirectMap.get(title);
       }
-      return title;
    }
 
+   // return null if the redirects loop
+   private String getFinalRedirectTarget(String title) {
+      if (redirectTargets == null) {
+         resolveRedirects();
+      }
+      return redirectTargets.containsKey(title) ? redirectTargets.get(title) : title;
+   }
 
    private void addCountsToRedirectTargets() {
       for (String title : redirectMap.keySet()) {
-         String target = getFinalRedirectTarget(title, 10);
+         String target = getFinalRedirectTarget(title);
          if (target != null) {
             Integer count = linkedPlacesMap.containsKey(title) ? linkedPlacesMap.get(title) : 0;
             linkedPlacesMap.put(target, (linkedPlacesMap.containsKey(target) ? linkedPlacesMap.get(target) : 0) + count);
@@ -631,7 +688,7 @@ public class ExtractPlaces extends StructuredDataParser
    }
 
    // Generate various lists of places
-   // args array: 0=pages.xml 1=place_words.tsv 2=places.tsv 3=linkedplaces.tsv
+   // args array: 0=pages.xml 1=place_words.tsv 2=places.tsv 3=linkedplaces.tsv [4=place_words index, readable by WordIndex]
    public static void main(String[] args)
            throws IOException, ParsingException
    {
@@ -643,18 +700,28 @@ public class ExtractPlaces extends StructuredDataParser
       wikiReader.read(in);
       in.close();
 
-      self.removeCyclicAlsoLocatedIns();
+      self.resolveRedirects();
+      self.validateHierarchy();
       self.addCountsToRedirectTargets();
 
-      Map<String,Set<Integer>> wordMap = self.generateWordMap();
+      WordIndexBuilder wordIndex = self.generateWordIndex();
       PrintWriter out = new PrintWriter(args[1], "UTF-8");
-      for (Map.Entry<String,Set<Integer>> entry : wordMap.entrySet()) {
-         String word = entry.getKey();
-         Set<Integer> ids = entry.getValue();
-         if (ids.size() > 1000) {
-            logger.warn("large id list: " + word + "=" + ids.size());
+      StringBuilder idsBuf = new StringBuilder();
+      for (String word : wordIndex.getWords()) {
+         int[] ids = wordIndex.getIds(word);
+         if (ids.length > 1000) {
+            logger.warn("large id list: " + word + "=" + ids.length);
+         }
+         idsBuf.setLength(0);
+         idsBuf.append('[');
+         for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+               idsBuf.append(',');
+            }
+            idsBuf.append(ids[i]);
          }
-         String idsString = "["+Util.join(",",ids)+"]";
+         idsBuf.append(']');
+         String idsString = idsBuf.toString();
          if (word.length() > 191) {
             logger.error("word too long: "+ word);
          }
@@ -666,6 +733,11 @@ public class ExtractPlaces extends StructuredDataParser
          }
       }
       out.close();
+      if (args.length > 4) {
+         // unlike the tsv, which is loaded into a table, the index keeps long words and id lists
+         wordIndex.writeBinary(args[4]);
+      }
+      wordIndex = null;
 
       out = new PrintWriter(args[2], "UTF-8");
       Map<Integer,Place> placeMap = self.getPlaceMap();
@@ -683,6 +755,10 @@ public class ExtractPlaces extends StructuredDataParser
             logger.error("Bad locatedInId for: " + placeId);
             continue;
          }
+         if (self.cyclicPlaces.contains(placeId)) {
+            logger.error("Cyclic locatedIn for: " + placeId);
+            continue;
+         }
 
          List<Integer> aliIds = new ArrayList<Integer>();
          for (String ali : p.alsoLocatedIns) {
@@ -1,7 +1,7 @@
 package org.werelate.scripts;
 
 import org.werelate.parser.StructuredDataParser;
-import org.werelate.parser.WikiReader;
+import org.werelate.parser.WikiPageJob;
 import org.werelate.source.Source;
 import org.werelate.utils.Util;
 
@@ -207,27 +207,29 @@ public class ExtractSources extends StructuredDataParser
 
    // Generate list of sources
    // args array: 0=pages.xml 1=sources.tsv 2=source_counts.tsv
+   public static WikiPageJob newJob(final String[] args) throws IOException {
+      // write sources.tsv
+      PrintWriter pw = new PrintWriter(args[1], "UTF-8");
+      final ExtractSources self = new ExtractSources(pw);
+      return new WikiPageJob(self) {
+         public void finish() throws IOException {
+            self.close();
+
+            // write source_counts.tsv
+            self.addCountsToRedirectTargets();
+            PrintWriter pw = new PrintWriter(args[2], "UTF-8");
+            for (String source : self.linkedSourcesMap.keySet()) {
+                int count = self.linkedSourcesMap.get(source);
+                pw.printf("%s\t%d\n", source, count);
+            }
+            pw.close();
+         }
+      };
+   }
+
    public static void main(String[] args)
            throws IOException, ParsingException
    {
-      WikiReader wikiReader = new WikiReader();
-      wikiReader.setSkipRedirects(true);
-      // write sources.tsv
-      PrintWriter pw = new PrintWriter(args[1], "UTF-8");
-      ExtractSources self = new ExtractSources(pw);
-      wikiReader.addWikiPageParser(self);
-      InputStream in = new FileInputStream(args[0]);
-      wikiReader.read(in);
-      in.close();
-      self.close();
-
-      // write source_counts.tsv
-      self.addCountsToRedirectTargets();
-      pw = new PrintWriter(args[2], "UTF-8");
-      for (String source : self.linkedSourcesMap.keySet()) {
-          int count = self.linkedSourcesMap.get(source);
-          pw.printf("%s\t%d\n", source, count);
-      }
-      pw.close();
+      WikiPageJob.run(args[0], newJob(args));
    }
 }
@@ -0,0 +1,166 @@
+package org.werelate.scripts;
+
+import nu.xom.Element;
+import nu.xom.Elements;
+import org.werelate.utils.ColumnTableReader;
+import org.werelate.utils.ColumnTableWriter;
+import org.werelate.utils.StringIntHashMap;
+import org.werelate.utils.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes Person and Family structured data as column tables (see ColumnTableWriter), one subdirectory per table:
+ *   persons: ints id (page id), title (person_titles id), birth_date, death_date, birth_place, death_place; strings given, surname
+ *   families: ints id (page id); strings title
+ *   edges: ints family (page id), role (HUSBAND, WIFE, or CHILD), person (person_titles id)
+ *   person_titles: strings title, without the Person: namespace; the row number is the id
+ *   places: strings place, the standard name before any |; the row number is the id
+ * Dates are Util.getDateSortKeyInt: yyyymmdd, with 00 for an unknown month or day, and 0 if there's no year.
+ * Places are -1 if missing. Names are romanized. Only the first name, birth, and death of a person are kept.
+ */
+public class FamilyTreeColumns {
+   public static final String PERSONS = "persons";
+   public static final String FAMILIES = "families";
+   public static final String EDGES = "edges";
+   public static final String PERSON_TITLES = "person_titles";
+   public static final String PLACES = "places";
+
+   public static final int HUSBAND = 0;
+   public static final int WIFE = 1;
+   public static final int CHILD = 2;
+
+   private File dir;
+   private ColumnTableWriter persons;
+   private ColumnTableWriter families;
+   private ColumnTableWriter edges;
+   // dictionaries: name -> id + 1, in id order
+   private StringIntHashMap personTitleIds;
+   private List<String> personTitles;
+   private StringIntHashMap placeIds;
+   private List<String> places;
+
+   public FamilyTreeColumns(File dir) throws IOException {
+      this.dir = dir;
+      persons = new ColumnTableWriter(new File(dir, PERSONS),
+              new String[] {"id", "title", "birth_date", "death_date", "birth_place", "death_place"},
+              new String[] {"given", "surname"});
+      families = new ColumnTableWriter(new File(dir, FAMILIES), new String[] {"id"}, new String[] {"title"});
+      edges = new ColumnTableWriter(new File(dir, EDGES), new String[] {"family", "role", "person"}, new String[0]);
+      personTitleIds = new StringIntHashMap();
+      personTitles = new ArrayList<String>();
+      placeIds = new StringIntHashMap();
+      places = new ArrayList<String>();
+   }
+
+   private static int getId(String name, StringIntHashMap ids, List<String> names) {
+      int id = ids.get(name) - 1;
+      if (id < 0) {
+         id = names.size();
+         names.add(name);
+         ids.put(name, id + 1);
+      }
+      return id;
+   }
+
+   private int getPlaceId(String place) {
+      place = ExtractPersonsFamilies.getStandard(place);
+      return Util.isEmpty(place) ? -1 : getId(place, placeIds, places);
+   }
+
+   public void addPerson(int pageId, String title, Element root) throws IOException {
+      String given = null;
+      String surname = null;
+      Element name = root.getFirstChildElement("name");
+      if (name != null) {
+         given = name.getAttributeValue("given");
+         surname = name.getAttributeValue("surname");
+      }
+      int birthDate = 0;
+      int deathDate = 0;
+      int birthPlace = -1;
+      int deathPlace = -1;
+      boolean foundBirth = false;
+      boolean foundDeath = false;
+      Elements eventFacts = root.getChildElements("event_fact");
+      for (int i = 0; i < eventFacts.size(); i++) {
+         Element eventFact = eventFacts.get(i);
+         String type = eventFact.getAttributeValue("type");
+         if (!foundBirth && "Birth".equals(type)) {
+            birthDate = Util.getDateSortKeyInt(eventFact.getAttributeValue("date"));
+            birthPlace = getPlaceId(eventFact.getAttributeValue("place"));
+            foundBirth = true;
+         }
+         else if (!foundDeath && "Death".equals(type)) {
+            deathDate = Util.getDateSortKeyInt(eventFact.getAttributeValue("date"));
+            deathPlace = getPlaceId(eventFact.getAttributeValue("place"));
+            foundDeath = true;
+         }
+      }
+      int titleId = getId(title.substring("Person:".length()), personTitleIds, personTitles);
+      persons.addRow(new int[] {pageId, titleId, birthDate, deathDate, birthPlace, deathPlace},
+                     new String[] {Util.isEmpty(given) ? "" : Util.romanize(given), Util.isEmpty(surname) ? "" : Util.romanize(surname)});
+   }
+
+   private void addEdges(int pageId, Element root, String elementName, int role) throws IOException {
+      Elements members = root.getChildElements(elementName);
+      for (int i = 0; i < members.size(); i++) {
+         String personTitle = members.get(i).getAttributeValue("title");
+         if (!Util.isEmpty(personTitle)) {
+            edges.addRow(new int[] {pageId, role, getId(personTitle, personTitleIds, personTitles)}, null);
+         }
+      }
+   }
+
+   public void addFamily(int pageId, String title, Element root) throws IOException {
+      families.addRow(new int[] {pageId}, new String[] {title.substring("Family:".length())});
+      addEdges(pageId, root, "husband", HUSBAND);
+      addEdges(pageId, root, "wife", WIFE);
+      addEdges(pageId, root, "child", CHILD);
+   }
+
+   private void writeDictionary(String table, String column, List<String> names) throws IOException {
+      ColumnTableWriter writer = new ColumnTableWriter(new File(dir, table), new String[0], new String[] {column});
+      String[] row = new String[1];
+      for (String name : names) {
+         row[0] = name;
+         writer.addRow(null, row);
+      }
+      writer.close();
+   }
+
+   public void close() throws IOException {
+      persons.close();
+      families.close();
+      edges.close();
+      writeDictionary(PERSON_TITLES, "title", personTitles);
+      writeDictionary(PLACES, "place", places);
+   }
+
+   public static ColumnTableReader open(File dir, String table) throws IOException {
+      return new ColumnTableReader(new File(dir, table));
+   }
+
+   // List the persons born in a range of years
+   // 0=columns dir 1=from year 2=to year
+   public static void main(String[] args) throws IOException
+   {
+      File dir = new File(args[0]);
+      final String[] places = open(dir, PLACES).readStrings("place");
+      final PrintWriter out = new PrintWriter(System.out);
+      open(dir, PERSONS).scan(new String[] {"id", "given", "surname", "birth_date", "birth_place"},
+              "birth_date", Integer.parseInt(args[1]) * 10000, Integer.parseInt(args[2]) * 10000 + 9999,
+              new ColumnTableReader.RowHandler() {
+         public void handle(ColumnTableReader.Row row) {
+            int place = row.getInt(4);
+            out.println(row.getInt(0) + "\t" + row.getString(1) + "\t" + row.getString(2) + "\t" + row.getInt(3) + "\t" +
+                        (place >= 0 ? places[place] : ""));
+         }
+      });
+      out.flush();
+   }
+}
@@ -0,0 +1,145 @@
+package org.werelate.scripts;
+
+import org.werelate.utils.LongIntHashMap;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compact in-memory copy of gedcom_sources.tsv and gedcom_user.tsv for GenerateSourceMatches.
+ * Gedcom ids are parsed to longs, sources are held in column arrays, and rows are found through
+ * open-addressing indexes instead of a HashMap keyed by a concatenated gedcomId|srcKey string.
+ */
+public class GedcomSourceTable implements GenerateSourceMatches.GedcomLookup {
+   private static final int INITIAL_CAPACITY = 1024;
+
+   // gedcom_sources columns
+   private int numSources;
+   private long[] gedcomIds;
+   private String[] srcKeys;
+   private String[] authors;
+   private String[] titles;
+   private String[] abbrevs;
+   // hash of (gedcomId, srcKey) -> most recent row with that hash; earlier rows with the same hash are chained through nextRows
+   private LongIntHashMap sourceIndex;
+   private int[] nextRows;
+
+   // gedcom_user: gedcomId -> userId
+   private int numUsers;
+   private long[] userIds;
+   private LongIntHashMap userIndex;
+
+   public GedcomSourceTable() {
+      numSources = 0;
+      gedcomIds = new long[INITIAL_CAPACITY];
+      srcKeys = new String[INITIAL_CAPACITY];
+      authors = new String[INITIAL_CAPACITY];
+      titles = new String[INITIAL_CAPACITY];
+      abbrevs = new String[INITIAL_CAPACITY];
+      nextRows = new int[INITIAL_CAPACITY];
+      sourceIndex = new LongIntHashMap(INITIAL_CAPACITY, -1);
+      numUsers = 0;
+      userIds = new long[INITIAL_CAPACITY];
+      userIndex = new LongIntHashMap(INITIAL_CAPACITY, -1);
+   }
+
+   static long parseId(String s) {
+      try {
+         return Long.parseLong(s);
+      } catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+   private static long sourceHash(long gedcomId, String srcKey) {
+      return gedcomId * 0x9E3779B97F4A7C15L + srcKey.hashCode();
+   }
+
+   // gedcom_sources: gedcom_id, src_key, author, title, abbrev
+   public void readSources(String filename) throws IOException {
+      BufferedReader in = new BufferedReader(new FileReader(filename));
+      while (in.ready()) {
+         String line = in.readLine();
+         String[] fields = line.split("\t");
+         long gedcomId = (fields.length > 3 ? parseId(fields[0]) : -1);
+         if (gedcomId >= 0) {
+            addSource(gedcomId, fields[1], fields[2], fields[3], fields.length > 4 ? fields[4] : "");
+         }
+         else {
+            System.out.println("gedcom_sources invalid line = "+line);
+         }
+      }
+      in.close();
+   }
+
+   private void addSource(long gedcomId, String srcKey, String author, String title, String abbrev) {
+      if (numSources == gedcomIds.length) {
+         int capacity = numSources * 2;
+         gedcomIds = Arrays.copyOf(gedcomIds, capacity);
+         srcKeys = Arrays.copyOf(srcKeys, capacity);
+         authors = Arrays.copyOf(authors, capacity);
+         titles = Arrays.copyOf(titles, capacity);
+         abbrevs = Arrays.copyOf(abbrevs, capacity);
+         nextRows = Arrays.copyOf(nextRows, capacity);
+      }
+      gedcomIds[numSources] = gedcomId;
+      srcKeys[numSources] = srcKey;
+      authors[numSources] = author;
+      titles[numSources] = title;
+      abbrevs[numSources] = abbrev;
+      // later rows shadow earlier rows with the same key
+      nextRows[numSources] = sourceIndex.put(sourceHash(gedcomId, srcKey), numSources);
+      numSources++;
+   }
+
+   // gedcom_user: gedcom_id, user_id
+   public void readUsers(String filename) throws IOException {
+      BufferedReader in = new BufferedReader(new FileReader(filename));
+      while (in.ready()) {
+         String line = in.readLine();
+         String[] fields = line.split("\t");
+         long gedcomId = (fields.length > 1 ? parseId(fields[0]) : -1);
+         long userId = (fields.length > 1 ? parseId(fields[1]) : -1);
+         if (gedcomId >= 0 && userId >= 0) {
+            int row = userIndex.get(gedcomId);
+            if (row < 0) {
+               if (numUsers == userIds.length) {
+                  userIds = Arrays.copyOf(userIds, numUsers * 2);
+               }
+               row = numUsers++;
+               userIndex.put(gedcomId, row);
+            }
+            userIds[row] = userId;
+         }
+         else {
+            System.out.println("gedcom_user invalid line = "+line);
+         }
+      }
+      in.close();
+   }
+
+   public int getNumSources() {
+      return numSources;
+   }
+
+   public String getUserId(String gedcomId) {
+      long id = parseId(gedcomId);
+      int row = (id >= 0 ? userIndex.get(id) : -1);
+      return row < 0 ? null : Long.toString(userIds[row]);
+   }
+
+   public GenerateSourceMatches.GedcomSource getSource(String gedcomId, String srcKey) {
+      long id = parseId(gedcomId);
+      if (id < 0) {
+         return null;
+      }
+      for (int row = sourceIndex.get(sourceHash(id, srcKey)); row >= 0; row = nextRows[row]) {
+         if (gedcomIds[row] == id && srcKeys[row].equals(srcKey)) {
+            return new GenerateSourceMatches.GedcomSource(gedcomId, srcKey, authors[row], titles[row], abbrevs[row]);
+         }
+      }
+      return null;
+   }
+}
@@ -2,12 +2,17 @@ package org.werelate.scripts;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.werelate.utils.LongIntHashMap;
+import org.werelate.utils.OrderedOutputExecutor;
+import org.werelate.utils.Patterns;
+import org.werelate.utils.Romanizer;
 import org.werelate.utils.Util;
 
 import java.io.*;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,8 +41,18 @@ public class GeneratePlaceAbbrevs {
       Set<String> alsoLocatedInIds;
       double lat;
       double lon;
+      String title;                                // cached by getTitle
+      List<PathNode> chains;                       // cached by getChains
+      int chainsState = CHAINS_UNKNOWN;
+      List<Place> sameTitle;                       // later places with the same title, written along with this place
+      boolean duplicateTitle;                      // written along with the first place having this title
    }
 
+   private static final int CHAINS_UNKNOWN = 0;
+   private static final int CHAINS_IN_PROGRESS = 1;
+   private static final int CHAINS_DONE = 2;
+   private static final int CHAINS_CYCLIC = 3;
+
    public static Place constructPlace(String line) {
       String[] fields = line.split("\t");
       Place p = new Place();
@@ -77,26 +92,131 @@ public class GeneratePlaceAbbrevs {
       return p;
    }
 
+   /**
+    * Immutable list of place names from a place up to (but not including) the root.
+    * Places share the nodes for their common ancestors, so a county's path is stored once for all places in the county.
+    */
+   private static class PathNode {
+      static final PathNode ROOT = new PathNode(null, null, 0);
+
+      final String name;
+      final PathNode next;
+      final int length;
+      final int priority;                          // sum of the priorities of the edges from this place to the root
+      private String suffix;
+
+      PathNode(String name, PathNode next, int priority) {
+         this.name = name;
+         this.next = next;
+         this.length = (next == null ? 0 : next.length + 1);
+         this.priority = priority;
+      }
+
+      // ", name, next name, ..."
+      String getSuffix() {
+         if (suffix == null) {
+            suffix = ", " + name + (next == ROOT ? "" : next.getSuffix());
+         }
+         return suffix;
+      }
+   }
+
    private static class Ancestor {
-      List<String> path;
+      PathNode path;
       int priority;
-      Ancestor(List<String> path, int priority) {
+      Ancestor(PathNode path, int priority) {
          this.path = path;
          this.priority = priority;
       }
    }
 
    public static String getTitle(Map<String, Place> placeMap, Place p) {
-      StringBuilder buf = new StringBuilder();
-      buf.append(p.name);
-      while (!"0".equals(p.locatedInId)) {
-         p = placeMap.get(p.locatedInId);
-         buf.append(", ");
+      if (p.title == null) {
+         StringBuilder buf = new StringBuilder();
          buf.append(p.name);
+         Place q = p;
+         while (!"0".equals(q.locatedInId)) {
+            q = placeMap.get(q.locatedInId);
+            if (q.title != null) {
+               buf.append(", ");
+               buf.append(q.title);
+               break;
+            }
+            buf.append(", ");
+            buf.append(q.name);
+         }
+         p.title = buf.toString();
       }
-      return buf.toString();
+      return p.title;
+   }
+
+   private static final int MAX_PATH_LENGTH = 7;
+   private static final List<PathNode> ROOT_CHAINS = Collections.singletonList(PathNode.ROOT);
+
+   /**
+    * Return every located-in/also-located-in chain from the specified place up to the root, in the order getAncestors generates them.
+    * Chains are memoized per place and share their tails with the chains of the place's parents.
+    * Returns null if the place reaches an also-located-in cycle, in which case the chains depend on the recursion depth
+    */
+   private static List<PathNode> getChains(Map<String, Place> placeMap, String placeId) {
+      if ("0".equals(placeId)) {
+         return ROOT_CHAINS;
+      }
+      Place p = placeMap.get(placeId);
+      if (p.chainsState == CHAINS_DONE) {
+         return p.chains;
+      }
+      if (p.chainsState != CHAINS_UNKNOWN) {
+         p.chainsState = CHAINS_CYCLIC;
+         return null;
+      }
+      p.chainsState = CHAINS_IN_PROGRESS;
+
+      // is this place linked-to from anyone in WeRelate?
+      int unlinkedPriority = linkedPlaces.contains(getTitle(placeMap, p)) ? 0 : UNLINKED_PRIORITY;
+      List<PathNode> chains = new ArrayList<PathNode>();
+      if (!addChains(placeMap, p, p.locatedInId, unlinkedPriority + STD_PRIORITY, chains)) {
+         return null;
+      }
+      if (!"0".equals(p.locatedInId)) {
+         for (String ali : p.alsoLocatedInIds) {
+            if (!ali.equals(p.locatedInId) && !addChains(placeMap, p, ali, unlinkedPriority + ALI_PRIORITY, chains)) {
+               return null;
+            }
+         }
+      }
+      p.chains = chains;
+      p.chainsState = CHAINS_DONE;
+      return chains;
+   }
+
+   private static boolean addChains(Map<String, Place> placeMap, Place p, String parentId, int priority, List<PathNode> chains) {
+      List<PathNode> parentChains = getChains(placeMap, parentId);
+      if (parentChains == null) {
+         p.chainsState = CHAINS_CYCLIC;
+         return false;
+      }
+      for (PathNode parentChain : parentChains) {
+         if (parentChain.length < MAX_PATH_LENGTH) {
+            chains.add(new PathNode(p.name, parentChain, priority + parentChain.priority));
+         }
+      }
+      return true;
+   }
+
+   public static List<Ancestor> getAncestors(Map<String, Place> placeMap, Place p) {
+      List<PathNode> chains = getChains(placeMap, p.id);
+      if (chains == null) {
+         return getAncestors(placeMap, p.id, 0, 0);
+      }
+      List<Ancestor> results = new ArrayList<Ancestor>(chains.size());
+      for (PathNode chain : chains) {
+         results.add(new Ancestor(chain.next, chain.priority + (chain.length - 1) * LEVEL_PRIORITY));  // recursion-1 to match Place.php
+      }
+      return results;
    }
 
+   // used only for places that reach an also-located-in cycle
    public static List<Ancestor> getAncestors(Map<String, Place> placeMap, String placeId, int priority, int recursion) {
       List<Ancestor> results = new ArrayList<Ancestor>();
 
@@ -105,7 +225,7 @@ public class GeneratePlaceAbbrevs {
       }
 
       if ("0".equals(placeId)) {
-         results.add(new Ancestor(new ArrayList<String>(), priority + (recursion-1) * LEVEL_PRIORITY));  // changed to recursion-1 to match Place.php Feb 2022 JB
+         results.add(new Ancestor(PathNode.ROOT, priority + (recursion-1) * LEVEL_PRIORITY));  // changed to recursion-1 to match Place.php Feb 2022 JB
          return results;
       }
 
@@ -125,9 +245,9 @@ public class GeneratePlaceAbbrevs {
       }
 
       for (Ancestor ancestor : ancestors) {
-         List<String> path = new ArrayList<String>(ancestor.path);
+         PathNode path = ancestor.path;
          if (recursion > 0) {
-            path.add(0, p.name);
+            path = new PathNode(p.name, path, 0);
          }
          results.add(new Ancestor(path, priority + ancestor.priority));
       }
@@ -136,6 +256,7 @@ public class GeneratePlaceAbbrevs {
 
    public static final Pattern LOWERCASE_PATTERN = Pattern.compile("\\(([^)]*)");
    public static final Pattern CITY_PATTERN = Pattern.compile("\\(Independent City\\)|\\(City Of\\)");
+   private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
 
    // standardize a few things and remove ()'s
    public static String clean(String s) {
@@ -145,21 +266,16 @@ public class GeneratePlaceAbbrevs {
          m.appendReplacement(sb, "("+Util.toMixedCase(m.group(1)));
       }
       m.appendTail(sb);
-      s = sb.toString();
-      return CITY_PATTERN.matcher(s).replaceAll("(City)")
+      s = Patterns.replaceAll(sb.toString(), CITY_PATTERN, "(City)")
               .replace('(', ' ')
-              .replace(')', ' ')
-              .replaceAll("\\s+", " ")
-              .replaceAll(" ,", ",")
+              .replace(')', ' ');
+      return Patterns.replaceAll(s, WHITESPACE_PATTERN, " ")
+              .replace(" ,", ",")
               .trim();
    }
 
    public static String cleanAbbrev(String s) {
-      return Util.romanize(clean(s).toLowerCase())
-              .replaceAll("'", "")
-              .replaceAll("[^a-z0-9]", " ")
-              .replaceAll("\\s+", " ")
-              .trim();
+      return Romanizer.WORDS.normalize(clean(s));
    }
 
    public static int countChars(String s, char ch) {
@@ -172,15 +288,29 @@ public class GeneratePlaceAbbrevs {
       return count;
    }
 
-   private static HashSet<String> seenAbbrevTitles = new HashSet<String>();
    //   private static int id = 1;                     // commented out Feb 2022 by Janet Bjorndahl
 
-   public static void write(PrintWriter out, String abbrev, String name, String primaryName, String title, int priority, double lat, double lon, String types) {
+   private static final ThreadLocal<NumberFormat> NUMBER_FORMAT = new ThreadLocal<NumberFormat>() {
+      protected NumberFormat initialValue() {
+         NumberFormat nf = DecimalFormat.getInstance();
+         nf.setMaximumIntegerDigits(3);
+         nf.setMinimumIntegerDigits(1);
+         nf.setMaximumFractionDigits(6);
+         nf.setMinimumFractionDigits(1);
+         return nf;
+      }
+   };
+
+   // 64-bit FNV-1a hash of abbrev|title
+   private static long fingerprint(String abbrev, String title) {
+      return Util.fnv1a(Util.fnv1a(Util.fnv1a(abbrev), "|"), title);
+   }
+
+   public static void write(StringBuilder out, LongIntHashMap seenAbbrevTitles, String abbrev, String name, String primaryName, String title, int priority, double lat, double lon, String types) {
       // track so we avoid duplicates
-      if (seenAbbrevTitles.contains(abbrev+"|"+title)) {
+      if (seenAbbrevTitles.put(fingerprint(abbrev, title), 1) != 0) {
          return;
       }
-      seenAbbrevTitles.add(abbrev + "|" + title);
       if (abbrev.length() > 191) {
          logger.error("abbrev too long: "+ abbrev);
          return;
@@ -189,40 +319,94 @@ public class GeneratePlaceAbbrevs {
          logger.error("types too long: "+ types);
          return;
       }
-      NumberFormat nf = DecimalFormat.getInstance();
-      nf.setMaximumIntegerDigits(3);
-      nf.setMinimumIntegerDigits(1);
-      nf.setMaximumFractionDigits(6);
-      nf.setMinimumFractionDigits(1);
+      NumberFormat nf = NUMBER_FORMAT.get();
 
       // following statement changed Feb 2022 to match table structure (id removed, priority moved earlier, types added) Janet Bjorndahl
-      out.printf("%s\t%s\t%s\t%s\t%d\t%s\t%s\t%s\n", abbrev, name, primaryName, title, priority, nf.format(lat), nf.format(lon), types);
+      out.append(abbrev).append('\t').append(name).append('\t').append(primaryName).append('\t').append(title).append('\t')
+         .append(priority).append('\t').append(nf.format(lat)).append('\t').append(nf.format(lon)).append('\t').append(types).append('\n');
    }
 
-   public static void writeAbbrevs(PrintWriter out, String name, String primaryName, List<String> path, String title, int priority, double lat, double lon, String types) {
+   public static void writeAbbrevs(StringBuilder out, LongIntHashMap seenAbbrevTitles, String name, String primaryName, PathNode path, String title, int priority, double lat, double lon, String types) {
       title = title.replace(' ', '_');
 
-      if (path.size() == 0) {
-         write(out, cleanAbbrev(name), clean(name), clean(primaryName), title, priority, lat, lon, types);  // types added Feb 2022 JB
+      if (path == PathNode.ROOT) {
+         write(out, seenAbbrevTitles, cleanAbbrev(name), clean(name), clean(primaryName), title, priority, lat, lon, types);  // types added Feb 2022 JB
          return;
       }
 
-      String suffix =  ", " + Util.join(", ", path);
+      String suffix = path.getSuffix();
       String primaryFullName = clean(primaryName + suffix);
       String fullName = clean(name + suffix);
 
-      for (int i = 0; i < path.size(); i++) {
-         suffix = ", " + Util.join(", ", path.subList(i, path.size()));
+      for (PathNode node = path; node != PathNode.ROOT; node = node.next) {
+         suffix = node.getSuffix();
          String abbrev = cleanAbbrev(name + suffix);
-         write(out, abbrev, fullName, primaryFullName, title, priority, lat, lon, types);       // types added Feb 2022 JB
+         write(out, seenAbbrevTitles, abbrev, fullName, primaryFullName, title, priority, lat, lon, types);       // types added Feb 2022 JB
          if (name.indexOf('(') > 0) {
             abbrev = cleanAbbrev(name.substring(0, name.indexOf('(')) + suffix);
-            write(out, abbrev, fullName, primaryFullName, title, priority, lat, lon, types);    // types added Feb 2022 JB
+            write(out, seenAbbrevTitles, abbrev, fullName, primaryFullName, title, priority, lat, lon, types);    // types added Feb 2022 JB
+         }
+      }
+   }
+
+   public static void writePlaceAbbrevs(StringBuilder out, LongIntHashMap seenAbbrevTitles, Map<String,Place> placeMap, Place p) {
+      String title = getTitle(placeMap, p);
+      String types = Util.join(", ", p.types);    // added Feb 2022 by Janet Bjorndahl
+
+      // it's rare, but possible for two places to have the same constructed title because of missing spaces in the real page title
+      // skip these if it happens
+//      if (seenTitles.contains(title)) {
+//         System.out.println("Skipping "+title);
+//         return;
+//      }
+//      seenTitles.add(title);
+
+      // get ancestors
+      int namePriority;
+      List<Ancestor> ancestors = getAncestors(placeMap, p);
+      for (Ancestor ancestor : ancestors) {
+         // write primary name
+         namePriority = countChars(p.name, ' ') * NAMEWORD_PRIORITY;
+         writeAbbrevs(out, seenAbbrevTitles, p.name, p.name, ancestor.path, title, namePriority + ancestor.priority, p.lat, p.lon, types);  // types added Feb 2022 by Janet Bjorndahl
+         // write alt names
+         for (String altName : p.altNames) {
+            if (altName.length() > 0) { // ignore empty alt names
+//                   !altName.equals(altName.toUpperCase())) { // commented out to include abbrevs to match Place.php (Feb 2022 JB)
+               namePriority = countChars(altName, ' ') * NAMEWORD_PRIORITY;
+               writeAbbrevs(out, seenAbbrevTitles, altName, p.name, ancestor.path, title, namePriority + ALT_PRIORITY + ancestor.priority, p.lat, p.lon, types);  // types added Feb 2022 JB
+            }
+         }
+      }
+   }
+
+   private static final int BATCH_SIZE = 1000;
+
+   private static class PlaceBatch implements Callable<String> {
+      private final Map<String,Place> placeMap;
+      private final List<Place> places;
+
+      PlaceBatch(Map<String,Place> placeMap, List<Place> places) {
+         this.placeMap = placeMap;
+         this.places = places;
+      }
+
+      public String call() {
+         StringBuilder out = new StringBuilder();
+         // abbrev|title duplicates can only occur between places with the same title, and those are written in the same batch
+         LongIntHashMap seenAbbrevTitles = new LongIntHashMap(places.size() * 16, 0);
+         for (Place p : places) {
+            writePlaceAbbrevs(out, seenAbbrevTitles, placeMap, p);
+            if (p.sameTitle != null) {
+               for (Place q : p.sameTitle) {
+                  writePlaceAbbrevs(out, seenAbbrevTitles, placeMap, q);
+               }
+            }
          }
+         return out.toString();
       }
    }
 
-   // 0=places.tsv 1=linkedplaces.tsv 2=place_abbrevs.tsv
+   // 0=places.tsv 1=linkedplaces.tsv 2=place_abbrevs.tsv [3=threads]
    public static void main(String[] args) throws IOException {
       Map<String,Place> placeMap = new HashMap<String,Place>();
       HashSet<String> seenTitles = new HashSet<String>();
@@ -249,46 +433,53 @@ public class GeneratePlaceAbbrevs {
       in.close();
 
 
+      // cache titles and ancestor chains before the places are shared between threads,
+      // and attach places whose title is a duplicate to the first place with that title
+      Map<String,Place> titlePlaces = new HashMap<String,Place>();
+      for (String id : placeMap.keySet()) {
+         Place p = placeMap.get(id);
+         getChains(placeMap, id);
+         String title = getTitle(placeMap, p).replace(' ', '_');
+         Place first = titlePlaces.get(title);
+         if (first == null) {
+            titlePlaces.put(title, p);
+         }
+         else {
+            if (first.sameTitle == null) {
+               first.sameTitle = new ArrayList<Place>();
+            }
+            first.sameTitle.add(p);
+            p.duplicateTitle = true;
+         }
+      }
+      titlePlaces = null;
+
       PrintWriter out = new PrintWriter(args[2], "UTF-8");
+      int numThreads = (args.length > 3 ? Integer.parseInt(args[3]) : Util.getDefaultThreads());
+      OrderedOutputExecutor executor = new OrderedOutputExecutor(numThreads, out);
 
       // for each place in map
+      List<Place> batch = new ArrayList<Place>();
       for (String id : placeMap.keySet()) {
          Place p = placeMap.get(id);
-         String title = getTitle(placeMap, p);
-         String types = Util.join(", ", p.types);    // added Feb 2022 by Janet Bjorndahl
-
 //         if (!"173773".equals(id)) {
 //            continue;
 //         }
-//         if (!"Norfolk (independent city), Virginia, United States".equals(title)) {
+//         if (!"Norfolk (independent city), Virginia, United States".equals(getTitle(placeMap, p))) {
 //            continue;
 //         }
-
-         // it's rare, but possible for two places to have the same constructed title because of missing spaces in the real page title
-         // skip these if it happens
-//         if (seenTitles.contains(title)) {
-//            System.out.println("Skipping "+title);
-//            continue;
-//         }
-//         seenTitles.add(title);
-
-         // get ancestors
-         int namePriority;
-         List<Ancestor> ancestors = getAncestors(placeMap, p.id, 0, 0);
-         for (Ancestor ancestor : ancestors) {
-            // write primary name
-            namePriority = countChars(p.name, ' ') * NAMEWORD_PRIORITY;
-            writeAbbrevs(out, p.name, p.name, ancestor.path, title, namePriority + ancestor.priority, p.lat, p.lon, types);  // types added Feb 2022 by Janet Bjorndahl
-            // write alt names
-            for (String altName : p.altNames) {
-               if (altName.length() > 0) { // ignore empty alt names
-//                   !altName.equals(altName.toUpperCase())) { // commented out to include abbrevs to match Place.php (Feb 2022 JB)
-                  namePriority = countChars(altName, ' ') * NAMEWORD_PRIORITY;
-                  writeAbbrevs(out, altName, p.name, ancestor.path, title, namePriority + ALT_PRIORITY + ancestor.priority, p.lat, p.lon, types);  // types added Feb 2022 JB
-               }
+         if (!p.duplicateTitle) {
+            batch.add(p);
+            if (batch.size() == BATCH_SIZE) {
+               executor.submit(new PlaceBatch(placeMap, batch));
+               batch = new ArrayList<Place>();
             }
          }
       }
+      if (batch.size() > 0) {
+         executor.submit(new PlaceBatch(placeMap, batch));
+      }
+      executor.finish();
       out.close();
    }
 }
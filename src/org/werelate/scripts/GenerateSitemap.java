@@ -2,21 +2,35 @@ package org.werelate.scripts;
 
 import nu.xom.*;
 import org.werelate.parser.StructuredDataParser;
-import org.werelate.parser.WikiReader;
+import org.werelate.parser.WikiPageJob;
 import org.werelate.utils.Util;
 
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.text.Normalizer;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 public class GenerateSitemap extends StructuredDataParser {
    private static final int MAX_URLS = 25000;
+   private static final int MAX_PENDING_SITEMAPS = 4;
+   private static final int BUFFER_SIZE = 65536;
    private static final String WERELATE_ORG = "www.werelate.org";
    private static final String PATH_PREFIX = "/wiki/";
    private static final String SITEMAP_PREFIX = "/sitemap/";
    private static final String XMLNS = "http://www.sitemaps.org/schemas/sitemap/0.9";
+   private static final String LOC_PREFIX = "https://" + WERELATE_ORG + PATH_PREFIX;
+   // characters the multi-argument URI constructor leaves unquoted in a path
+   private static final String LEGAL_PATH_CHARS = "_-!.~'()*,;:$&+=/@";
+   private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
    private static final String[] INDEXED_NAMESPACES_ARRAY = {
            "Person", "Portal", // article
@@ -25,82 +39,243 @@ public class GenerateSitemap extends StructuredDataParser {
    private static final Set<String> INDEXED_NAMESPACES = new HashSet<String>(Arrays.asList(INDEXED_NAMESPACES_ARRAY));
 
    private File outputDir;
-   private List<String> titles;
+   private String[] titles;
+   private String[] timestamps;
+   private int[] lengths;
+   private int numUrls;
    private int numSitemaps = 0;
+   private ThreadPoolExecutor writerPool;
+   // pending writes by sitemap number
+   private Map<Integer,Future<Void>> writes;
+   private SitemapManifest manifest;
 
    public GenerateSitemap(String outputDir) {
+      this(outputDir, null);
+   }
+
+   /**
+    * If a manifest is given, titles are recorded in the manifest during the scan and only changed sitemaps are rewritten
+    */
+   public GenerateSitemap(String outputDir, SitemapManifest manifest) {
       this.outputDir = new File(outputDir);
-      this.titles = new ArrayList<String>(MAX_URLS);
+      this.manifest = manifest;
+      if (manifest == null) {
+         newChunk();
+      }
+      // compress finished sitemaps in the background; when the writers fall behind the reader writes the chunk itself
+      int numThreads = Math.max(1, Util.getDefaultThreads() - 1);
+      this.writerPool = new ThreadPoolExecutor(numThreads, numThreads, 30L, TimeUnit.SECONDS,
+              new ArrayBlockingQueue<Runnable>(MAX_PENDING_SITEMAPS), new ThreadPoolExecutor.CallerRunsPolicy());
+      this.writerPool.allowCoreThreadTimeOut(true);
+      this.writes = new TreeMap<Integer,Future<Void>>();
+   }
+
+   private void newChunk() {
+      titles = new String[MAX_URLS];
+      timestamps = new String[MAX_URLS];
+      lengths = new int[MAX_URLS];
+      numUrls = 0;
+   }
+
+   private class SitemapWriter implements Callable<Void> {
+      private final File file;
+      private final String[] titles;
+      private final String[] timestamps;
+      private final int[] lengths;
+      private final int numUrls;
+
+      SitemapWriter(File file, String[] titles, String[] timestamps, int[] lengths, int numUrls) {
+         this.file = file;
+         this.titles = titles;
+         this.timestamps = timestamps;
+         this.lengths = lengths;
+         this.numUrls = numUrls;
+      }
+
+      public Void call() throws IOException {
+         writeSitemap(file, titles, timestamps, lengths, numUrls);
+         return null;
+      }
    }
 
    private void writeSitemap() {
-      // write titles
-      Element urlset = new Element("urlset", XMLNS);
-      for (String titleTimestamp : titles) {
-         String[] fields = titleTimestamp.split("\\|");
-         if (fields.length != 3) {
-            logger.warn("Invalid titleTimestamp="+titleTimestamp);
-            continue;
-         }
-         String title = fields[0];
-         String timestamp = fields[1];
-         int length = Integer.parseInt(fields[2]);
-         try {
-            Element url = new Element("url", XMLNS);
-            Element loc = new Element("loc", XMLNS);
-            URI uri = new URI("https", WERELATE_ORG, PATH_PREFIX + title.replace(' ','_'), null);
-            loc.appendChild(uri.toASCIIString());
-            url.appendChild(loc);
-            Element lastmod = new Element("lastmod", XMLNS);
-            lastmod.appendChild(timestamp);
-            url.appendChild(lastmod);
-            Element changefreq = new Element("changefreq", XMLNS);
-            changefreq.appendChild(title.equals("Main Page") || title.startsWith("Portal:") ? "weekly" : "yearly");
-            url.appendChild(changefreq);
-            Element priority = new Element("priority", XMLNS);
-            String[] namespaceTitle = Util.splitNamespaceTitle(title);
-            String ns = namespaceTitle[0];
-            double level = 0.1;
-            double lenBoost = (double)length / 10000.0;
-            if (title.equals("Main Page") || ns.equals("Portal")) {
-               level = 1.0;
-            }
-            else if (ns.length() == 0 || ns.equals("Person")) {
-               level = Math.min(0.5 + lenBoost, 0.9);
-            }
-            else if (ns.equals("Family") || ns.equals("Transcript")) {
-               level = Math.min(0.3 + lenBoost, 0.7);
-            }
-            else { // source, repo, surname
-               level = Math.min(0.1 + lenBoost, 0.5);
+      File file = new File(outputDir,"map"+numSitemaps+".xml.gz");
+      writes.put(numSitemaps, writerPool.submit(new SitemapWriter(file, titles, timestamps, lengths, numUrls)));
+      numSitemaps++;
+      newChunk();
+   }
+
+   /**
+    * Stream a gzip-compressed sitemap for the specified titles to the specified file
+    */
+   static void writeSitemap(File file, String[] titles, String[] timestamps, int[] lengths, int numUrls) throws IOException {
+      Writer out = new BufferedWriter(new OutputStreamWriter(
+              new GZIPOutputStream(new FileOutputStream(file), BUFFER_SIZE), "UTF-8"), BUFFER_SIZE);
+      StringBuilder loc = new StringBuilder();
+      try {
+         out.write(XML_HEADER);
+         out.write("<urlset xmlns=\"");
+         out.write(XMLNS);
+         out.write("\">\n");
+         for (int i = 0; i < numUrls; i++) {
+            String title = titles[i];
+            loc.setLength(0);
+            if (!appendLoc(loc, title)) {
+               logger.warn("Invalid title="+title);
+               continue;
             }
-            priority.appendChild(Double.toString(Math.round(level*100)/100.0));
-            url.appendChild(priority);
-            urlset.appendChild(url);
-         } catch (URISyntaxException e) {
-            logger.warn("Invalid title="+title);
+            out.write("<url><loc>");
+            out.append(loc);
+            out.write("</loc><lastmod>");
+            out.write(timestamps[i]);
+            out.write("</lastmod><changefreq>");
+            out.write(title.equals("Main Page") || title.startsWith("Portal:") ? "weekly" : "yearly");
+            out.write("</changefreq><priority>");
+            out.write(getPriority(title, lengths[i]));
+            out.write("</priority></url>\n");
+         }
+         out.write("</urlset>\n");
+      }
+      finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Append the xml-escaped url for the specified title; equivalent to new URI("https", WERELATE_ORG, PATH_PREFIX+title, null).toASCIIString()
+    * @return false if the title cannot be encoded
+    */
+   static boolean appendLoc(StringBuilder buf, String title) {
+      if (!Util.isAscii(title)) {
+         title = Normalizer.normalize(title, Normalizer.Form.NFC);
+      }
+      buf.append(LOC_PREFIX);
+      for (int i = 0; i < title.length(); i++) {
+         char c = title.charAt(i);
+         if (c == ' ') {
+            buf.append('_');
+         }
+         else if (c == '&') {
+            buf.append("&amp;");
+         }
+         else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || LEGAL_PATH_CHARS.indexOf(c) >= 0) {
+            buf.append(c);
+         }
+         else if (c < 0x80) {
+            appendEscaped(buf, c);
+         }
+         else if (c < 0x800) {
+            appendEscaped(buf, 0xC0 | (c >> 6));
+            appendEscaped(buf, 0x80 | (c & 0x3F));
+         }
+         else if (!Character.isSurrogate(c)) {
+            appendEscaped(buf, 0xE0 | (c >> 12));
+            appendEscaped(buf, 0x80 | ((c >> 6) & 0x3F));
+            appendEscaped(buf, 0x80 | (c & 0x3F));
+         }
+         else if (Character.isHighSurrogate(c) && i+1 < title.length() && Character.isLowSurrogate(title.charAt(i+1))) {
+            int cp = Character.toCodePoint(c, title.charAt(++i));
+            appendEscaped(buf, 0xF0 | (cp >> 18));
+            appendEscaped(buf, 0x80 | ((cp >> 12) & 0x3F));
+            appendEscaped(buf, 0x80 | ((cp >> 6) & 0x3F));
+            appendEscaped(buf, 0x80 | (cp & 0x3F));
+         }
+         else {
+            return false; // unpaired surrogate
          }
       }
+      return true;
+   }
 
-      Document doc = new Document(urlset);
+   private static void appendEscaped(StringBuilder buf, int b) {
+      buf.append('%');
+      buf.append(HEX_DIGITS[(b >> 4) & 0x0F]);
+      buf.append(HEX_DIGITS[b & 0x0F]);
+   }
 
-      File file = null;
-      try {
-         file = new File(outputDir,"map"+numSitemaps+".xml");
-         Serializer serializer = new Serializer(new FileOutputStream(file), "UTF-8");
-         serializer.write(doc);
-      } catch (IOException e) {
-         logger.warn("IO exception writing "+file);
+   /**
+    * Only titles in the main or indexed namespaces reach the sitemap, so the namespace prefix determines the level
+    */
+   private static String getPriority(String title, int length) {
+      double level;
+      double lenBoost = (double)length / 10000.0;
+      if (title.equals("Main Page") || title.startsWith("Portal:")) {
+         level = 1.0;
       }
-      numSitemaps++;
+      else if (title.startsWith("Family:") || title.startsWith("Transcript:")) {
+         level = Math.min(0.3 + lenBoost, 0.7);
+      }
+      else if (title.startsWith("Source:") || title.startsWith("Repository:") || title.startsWith("Surname:")) {
+         level = Math.min(0.1 + lenBoost, 0.5);
+      }
+      else { // main, person
+         level = Math.min(0.5 + lenBoost, 0.9);
+      }
+      return Double.toString(Math.round(level*100)/100.0);
+   }
+
+   /**
+    * Rewrite the sitemaps whose titles were added, removed, or modified since the manifest was saved;
+    * finishSitemaps sets their lastmod once they have been written
+    */
+   private void writeChangedSitemaps() {
+      manifest.finish(MAX_URLS);
+      for (int i = 0; i < manifest.getNumFiles(); i++) {
+         if (manifest.isDirty(i)) {
+            int fileSize = manifest.getFileSize(i);
+            String[] fileTitles = new String[fileSize];
+            String[] fileTimestamps = new String[fileSize];
+            int[] fileLengths = new int[fileSize];
+            manifest.getFileEntries(i, fileTitles, fileTimestamps, fileLengths);
+            File file = new File(outputDir,"map"+i+".xml.gz");
+            writes.put(i, writerPool.submit(new SitemapWriter(file, fileTitles, fileTimestamps, fileLengths, fileSize)));
+         }
+      }
+      numSitemaps = manifest.getNumFiles();
    }
 
-   private void writeSitemapIndex() {
-      if (titles.size() > 0) {
+   /**
+    * Wait for the sitemap writes, and set the lastmod of each sitemap that was written
+    * @throws IOException if any sitemap could not be written; the manifest should not be saved then
+    */
+   private void finishSitemaps(String timestamp) throws IOException {
+      if (numUrls > 0) {
          writeSitemap();
       }
+      writerPool.shutdown();
+      IOException failure = null;
+      for (Map.Entry<Integer,Future<Void>> write : writes.entrySet()) {
+         int i = write.getKey();
+         try {
+            write.getValue().get();
+            if (manifest != null) {
+               manifest.setLastmod(i, timestamp);
+            }
+         } catch (InterruptedException e) {
+            throw new IOException("Interrupted writing sitemaps", e);
+         } catch (ExecutionException e) {
+            logger.error("Error writing map"+i+".xml.gz: "+e.getCause());
+            if (failure == null) {
+               failure = new IOException("Error writing map"+i+".xml.gz", e.getCause());
+            }
+            else {
+               failure.addSuppressed(e.getCause());
+            }
+         }
+      }
+      writes.clear();
+      if (failure != null) {
+         throw failure;
+      }
+   }
+
+   private void writeSitemapIndex() throws IOException {
       SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
       String timestamp = format.format(new Date()).replaceFirst("(\\d\\d)(\\d\\d)$", "$1:$2");
+      if (manifest != null) {
+         writeChangedSitemaps();
+      }
+      finishSitemaps(timestamp);
 
       Element sitemapindex = new Element("sitemapindex", XMLNS);
       for (int i = 0; i < numSitemaps; i++) {
@@ -111,7 +286,7 @@ public class GenerateSitemap extends StructuredDataParser {
             loc.appendChild(uri.toASCIIString());
             sitemap.appendChild(loc);
             Element lastmod = new Element("lastmod", XMLNS);
-            lastmod.appendChild(timestamp);
+            lastmod.appendChild(manifest == null ? timestamp : manifest.getLastmod(i));
             sitemap.appendChild(lastmod);
             sitemapindex.appendChild(sitemap);
          } catch (URISyntaxException e) {
@@ -136,25 +311,38 @@ public class GenerateSitemap extends StructuredDataParser {
       String[] namespaceTitle = Util.splitNamespaceTitle(title);
       if ((namespaceTitle[0].length() == 0 || INDEXED_NAMESPACES.contains(namespaceTitle[0])) &&
           text.indexOf("{{wikipedia-notice") < 0) { // google doesn't like copied content
-         titles.add(title+"|"+timestamp+"|"+text.length());
-         if (titles.size() == MAX_URLS) {
+         if (manifest != null) {
+            manifest.update(title, timestamp, text.length());
+            return;
+         }
+         titles[numUrls] = title;
+         timestamps[numUrls] = timestamp;
+         lengths[numUrls] = text.length();
+         if (++numUrls == MAX_URLS) {
             writeSitemap();
-            titles.clear();
          }
       }
    }
 
    // args[0] = pages.xml
    // args[1] = sitemap directory
+   // args[2] = (optional) sitemap manifest; if present, rewrite only the sitemaps that changed since the manifest was saved
+   public static WikiPageJob newJob(String[] args) throws IOException {
+      final File manifestFile = (args.length > 2 ? new File(args[2]) : null);
+      final SitemapManifest manifest = (manifestFile != null ? SitemapManifest.load(manifestFile) : null);
+      final GenerateSitemap self = new GenerateSitemap(args[1], manifest);
+      return new WikiPageJob(self) {
+         public void finish() throws IOException {
+            self.writeSitemapIndex();
+            if (manifest != null) {
+               manifest.save(manifestFile);
+            }
+         }
+      };
+   }
+
    public static void main(String[] args) throws IOException, ParsingException
    {
-      WikiReader wikiReader = new WikiReader();
-      wikiReader.setSkipRedirects(true);
-      GenerateSitemap self = new GenerateSitemap(args[1]);
-      wikiReader.addWikiPageParser(self);
-      InputStream in = new FileInputStream(args[0]);
-      wikiReader.read(in);
-      in.close();
-      self.writeSitemapIndex();
+      WikiPageJob.run(args[0], newJob(args));
    }
 }
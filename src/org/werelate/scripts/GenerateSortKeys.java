@@ -5,7 +5,9 @@ import org.supercsv.io.CsvMapWriter;
 import org.supercsv.io.ICsvMapWriter;
 import org.supercsv.prefs.CsvPreference;
 import org.werelate.parser.StructuredDataParser;
-import org.werelate.parser.WikiReader;
+import org.werelate.parser.WikiPageJob;
+import org.werelate.utils.ExternalStringSorter;
+import org.werelate.utils.Romanizer;
 import org.werelate.utils.Util;
 import org.werelate.util.SharedUtils;
 
@@ -19,6 +21,17 @@ public class GenerateSortKeys extends StructuredDataParser {
    private static final String[] FIELDS = {"key", "value"};
 
    private SortedSet<String> sortKeys = new TreeSet<String>();
+   private ExternalStringSorter sorter = null;
+
+   public GenerateSortKeys() {
+   }
+
+   /**
+    * Spill sorted runs of keys to temp files whenever approximately memoryBudget bytes of keys have been buffered
+    */
+   public GenerateSortKeys(long memoryBudget, File tempDir) {
+      sorter = new ExternalStringSorter(memoryBudget, tempDir);
+   }
 
    // keep in sync with PersonPageIndexer in indexer project
    private void appendAttr(String attr, StringBuilder buf) {
@@ -61,11 +74,7 @@ public class GenerateSortKeys extends StructuredDataParser {
 
    // keep in sync with TitleSorter in indexer project
    private String generateSortKey(String title) {
-      title = Util.romanize(title);
-      if (title.length() > 80) {
-         title = title.substring(0, 80);
-      }
-      return title.toLowerCase().trim();
+      return Romanizer.SORT_KEY.normalize(title, 80);
    }
 
    public void parse(String title, String text, int pageId, int latestRevId, String username, String timestamp, String comment) throws IOException, ParsingException
@@ -84,37 +93,79 @@ public class GenerateSortKeys extends StructuredDataParser {
       }
 
       String sortKey = generateSortKey(namespaceTitle[1]);
-      sortKeys.add(sortKey);
+      if (sorter != null) {
+         sorter.add(sortKey);
+      }
+      else {
+         sortKeys.add(sortKey);
+      }
    }
 
    public void writeSortKeys(String filename) throws IOException {
       PrintWriter out = new PrintWriter(new FileWriter(filename));
       Map<String,String> row = new HashMap<String,String>();
 
-      // determine gap between keys
-      int gaps = sortKeys.size()+1;
-      long space = (long)Integer.MAX_VALUE - (long)Integer.MIN_VALUE;
-      int gapSize = (int)(space / gaps);
-      int value = Integer.MIN_VALUE;
-      for (String key : sortKeys) {
-         value += gapSize;
-         // mysql uses \ as an escape character, so double it
-         out.println(key.replace("\\", "\\\\")+"\t"+Integer.toString(value));
+      try {
+         // determine gap between keys
+         int gaps = (sorter != null ? sorter.countDistinct() : sortKeys.size())+1;
+         long space = (long)Integer.MAX_VALUE - (long)Integer.MIN_VALUE;
+         int gapSize = (int)(space / gaps);
+         int value = Integer.MIN_VALUE;
+         if (sorter != null) {
+            ExternalStringSorter.Merger merger = sorter.merge();
+            try {
+               String key;
+               while ((key = merger.next()) != null) {
+                  value += gapSize;
+                  writeSortKey(out, key, value);
+               }
+            }
+            finally {
+               merger.close();
+            }
+         }
+         else {
+            for (String key : sortKeys) {
+               value += gapSize;
+               writeSortKey(out, key, value);
+            }
+         }
+      }
+      finally {
+         // remove the run files even if the write failed
+         if (sorter != null) {
+            sorter.delete();
+         }
+         out.close();
       }
-      out.close();
+   }
+
+   private void writeSortKey(PrintWriter out, String key, int value) {
+      // mysql uses \ as an escape character, so double it
+      out.println(key.replace("\\", "\\\\")+"\t"+Integer.toString(value));
    }
 
    // args[0] = pages.xml
    // args[1] = output.csv
+   // args[2] = (optional) memory budget in MB for buffering keys; if present, sort keys externally using temp files
+   // args[3] = (optional) temp directory for the external sort
+   public static WikiPageJob newJob(final String[] args) {
+      final GenerateSortKeys self;
+      if (args.length > 2) {
+         self = new GenerateSortKeys(Long.parseLong(args[2]) * 1024 * 1024, args.length > 3 ? new File(args[3]) : null);
+      }
+      else {
+         self = new GenerateSortKeys();
+      }
+      return new WikiPageJob(self) {
+         public void finish() throws IOException {
+            self.writeSortKeys(args[1]);
+         }
+      };
+   }
+
    public static void main(String[] args) throws IOException, ParsingException
    {
-      WikiReader wikiReader = new WikiReader();
-      wikiReader.setSkipRedirects(true);
-      GenerateSortKeys self = new GenerateSortKeys();
-      wikiReader.addWikiPageParser(self);
-      InputStream in = new FileInputStream(args[0]);
-      wikiReader.read(in);
-      in.close();
-      self.writeSortKeys(args[1]);
+      WikiPageJob.run(args[0], newJob(args));
    }
 }
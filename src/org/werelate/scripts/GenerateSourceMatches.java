@@ -5,14 +5,17 @@ package org.werelate.scripts;
  * Date: 10/23/15
  */
 
+import org.werelate.utils.OrderedOutputExecutor;
+import org.werelate.utils.PhraseReplacer;
+import org.werelate.utils.TextNormalizer;
 import org.werelate.utils.Util;
 
 import java.io.*;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
 
 public class GenerateSourceMatches {
+   private static final int BATCH_SIZE = 10000;
 
    static class GedcomSource {
       String gedcomId;
@@ -110,26 +113,13 @@ public class GenerateSourceMatches {
            {""}
    };
 
-   static class PatternReplacement {
-      Pattern pattern;
-      String replacement;
-      PatternReplacement(Pattern pattern, String replacement) {
-         this.pattern = pattern;
-         this.replacement = replacement;
-      }
-   }
-   private static final List<PatternReplacement> ABBREV_REPLACEMENTS = new ArrayList<PatternReplacement>();
+   private static final PhraseReplacer ABBREV_REPLACER = new PhraseReplacer();
 
    static {
       for (String[] abbrev : ABBREVS) {
          String replacement = abbrev[0];
          for (int j = 1; j < abbrev.length; j++) {
-            String p = "\\b"+abbrev[j].replace(".", "\\.");
-            if (!p.endsWith(".")) {
-               p += "\\b";
-            }
-            Pattern pattern = Pattern.compile(p);
-            ABBREV_REPLACEMENTS.add(new PatternReplacement(pattern, replacement));
+            ABBREV_REPLACER.add(abbrev[j], replacement, true, !abbrev[j].endsWith("."));
          }
       }
    }
@@ -149,49 +139,30 @@ public class GenerateSourceMatches {
            "county", "township",
            "available", "ca", "database", "digital", "i0", "images", "inc", "online"   // ca=circa
    };
-   private static final Pattern STOP_WORDS_PATTERN;
+   private static final PhraseReplacer WORD_REPLACER = new PhraseReplacer();
 
    static {
-      StringBuffer buf = new StringBuffer();
+      // handle find a grave
+      WORD_REPLACER.add("find a grave", "findagrave", true, true);
+      // remove stopwords
       for (String word : STOP_WORDS) {
-         if (buf.length() > 0) {
-            buf.append("|");
-         }
-         buf.append(word);
+         WORD_REPLACER.add(word, "", true, true);
       }
-      STOP_WORDS_PATTERN = Pattern.compile("\\b("+buf.toString()+")\\b");
    }
 
+   private static final TextNormalizer CLEANER = new TextNormalizer(ABBREV_REPLACER, CUT_WORDS, WORD_REPLACER);
+
+   /**
+    * Convert abbrevs, cut after cut-words, romanize, remove all single-letters except a A I, lowercase,
+    * remove 's, remove stopwords, and remove everything except a-z0-9
+    * <p>
+    * The results are match keys. Since the single-pass normalizer, an abbrev that directly follows another expanded abbrev
+    * is expanded too: "U.S.Co. Records" cleans to "unitedstatescountyrecords", where the regex version gave
+    * "unitedstatescorecords". Regenerate gedcom_source_matches.tsv, and anything else keyed on clean() output from
+    * before that change, rather than mixing the two.
+    */
    static String clean(String s) {
-      // convert Abbrevs
-      for (PatternReplacement pr : ABBREV_REPLACEMENTS) {
-         s = pr.pattern.matcher(s).replaceAll(pr.replacement);
-      }
-
-      // cut after cut-words
-      for (String cut : CUT_WORDS) {
-         int pos = s.lastIndexOf(cut);
-         if (pos > 0) {
-            s = s.substring(0, pos);
-         }
-      }
-
-      // romanize
-      s = Util.romanize(s);
-      // remove all single-letters except a A I
-      s = s.replaceAll("\\b[b-zB-HJ-Z]\\b", "");
-      // lowercase
-      s = s.toLowerCase();
-      // remove 's convert all non-alpha-numeric to space; convert mutliple spaces to a single space
-      s = s.replaceAll("'", "").replaceAll("[^a-z0-9]", " ").replaceAll("\\s+", " ");
-      // handle find a grave
-      s = s.replaceAll("\\bfind a grave\\b", "findagrave");
-      // remove stopwords
-      s = STOP_WORDS_PATTERN.matcher(s).replaceAll("");
-      // remove all spaces
-      s = s.replaceAll("\\s+", "");
-
-      return s;
+      return CLEANER.normalize(s);
    }
 
    static String truncate(String s, int len) {
@@ -205,17 +176,223 @@ public class GenerateSourceMatches {
       return gedcomId + "|" + srcKey;
    }
 
-   static void write(PrintWriter out, String userId, String source, String sourceType, String title) {
-      out.printf("%s\t%s\t%s\t%s\n", userId, source, sourceType, title);
+   static void write(StringBuilder out, String userId, String source, String sourceType, String title) {
+      out.append(userId).append('\t').append(source).append('\t').append(sourceType).append('\t').append(title).append('\n');
    }
 
-   // 0=gedcom_sources.tsv 1=gedcom_key_title.tsv 2=gedcom_user.tsv 3=gedcom_source_matches.tsv (out)
-   public static void main(String[] args) throws IOException {
+   /**
+    * Finds the user and sources for a gedcom
+    */
+   interface GedcomLookup {
+      /**
+       * @return the user id, or null if not found
+       */
+      String getUserId(String gedcomId);
+
+      /**
+       * @return the source, or null if not found
+       */
+      GedcomSource getSource(String gedcomId, String srcKey);
+   }
+
+   static class HashMapLookup implements GedcomLookup {
+      private final Map<String,GedcomUser> gedcomUsers;
+      private final Map<String,GedcomSource> gedcomSources;
+
+      HashMapLookup(Map<String,GedcomUser> gedcomUsers, Map<String,GedcomSource> gedcomSources) {
+         this.gedcomUsers = gedcomUsers;
+         this.gedcomSources = gedcomSources;
+      }
+
+      public String getUserId(String gedcomId) {
+         GedcomUser gu = gedcomUsers.get(gedcomId);
+         return gu == null ? null : gu.userId;
+      }
+
+      public GedcomSource getSource(String gedcomId, String srcKey) {
+         return gedcomSources.get(getGedcomSourceKey(gedcomId, srcKey));
+      }
+   }
+
+   static void writeMatches(StringBuilder out, String line, GedcomLookup lookup) {
+      String[] fields = line.split("\t");
+      GedcomKeyTitle gkt = new GedcomKeyTitle(fields[0], fields[1], fields[2]);
+
+      // get user_id
+      String userId = lookup.getUserId(gkt.gedcomId);
+      if (userId == null) {
+         userId = "0";
+      }
+
+      // get gedcomSource
+      GedcomSource gs = lookup.getSource(gkt.gedcomId, gkt.srcKey);
+      if (gs == null) {
+         System.out.println("Gedcom source not found "+ gkt.gedcomId +" " + gkt.srcKey);
+         return;
+      }
+
+      String author = clean(gs.author);
+      String title = clean(gs.title);
+      String abbrev = clean(gs.abbrev);
+      String pageTitle = gkt.title.replace(' ', '_');
+
+      if (author.length() > 0) {
+         if (title.length() > 0) {
+            write(out, userId, truncate(author + title, 255), "AT", pageTitle);
+         }
+         if (abbrev.length() > 0) {
+            write(out, userId, truncate(author + abbrev, 255), "AA", pageTitle);
+         }
+      }
+      if (title.length() > 0) {
+         write(out, userId, truncate(title, 255), "T", pageTitle);
+      }
+      if (abbrev.length() > 0) {
+         write(out, userId, truncate(abbrev, 255), "A", pageTitle);
+      }
+   }
+
+   private static class MatchBatch implements Callable<String> {
+      private final List<String> lines;
+      private final GedcomLookup lookup;
+
+      MatchBatch(List<String> lines, GedcomLookup lookup) {
+         this.lines = lines;
+         this.lookup = lookup;
+      }
+
+      public String call() {
+         StringBuilder out = new StringBuilder();
+         for (String line : lines) {
+            writeMatches(out, line, lookup);
+         }
+         return out.toString();
+      }
+   }
+
+   /**
+    * Reads a tsv file whose first column is a gedcom id, checking that the file is sorted by gedcom id
+    */
+   static class SortedTsvReader {
+      private BufferedReader in;
+      private String filename;
+      private String line;
+      private long gedcomId;
+
+      SortedTsvReader(String filename) throws IOException {
+         this.filename = filename;
+         this.in = new BufferedReader(new FileReader(filename));
+         this.gedcomId = -1;
+         advance();
+      }
+
+      private void advance() throws IOException {
+         line = (in.ready() ? in.readLine() : null);
+         if (line != null) {
+            int pos = line.indexOf('\t');
+            long id = GedcomSourceTable.parseId(pos >= 0 ? line.substring(0, pos) : line);
+            if (id >= 0) {
+               if (id < gedcomId) {
+                  throw new IOException(filename + " is not sorted by gedcom id at line = " + line);
+               }
+               gedcomId = id;
+            }
+            else {
+               gedcomId = Math.max(gedcomId, 0);
+            }
+         }
+      }
+
+      /**
+       * @return the line at the head of the file, or null at end of file
+       */
+      String peek() {
+         return line;
+      }
+
+      /**
+       * @return the gedcom id of the line at the head of the file; if the id is invalid, the id of the previous line
+       */
+      long peekId() {
+         return gedcomId;
+      }
+
+      String next() throws IOException {
+         String result = line;
+         advance();
+         return result;
+      }
+
+      void close() throws IOException {
+         in.close();
+      }
+   }
+
+   /**
+    * Join the three files, which must be sorted by gedcom id, holding only a batch of gedcoms in memory at a time
+    */
+   static void mergeJoin(String sourcesFile, String keyTitleFile, String usersFile, OrderedOutputExecutor executor) throws IOException {
+      SortedTsvReader keyTitles = new SortedTsvReader(keyTitleFile);
+      SortedTsvReader sources = new SortedTsvReader(sourcesFile);
+      SortedTsvReader users = new SortedTsvReader(usersFile);
+      List<String> batch = new ArrayList<String>(BATCH_SIZE);
+      HashMap<String,GedcomSource> gedcomSources = new HashMap<String,GedcomSource>();
+      HashMap<String,GedcomUser> gedcomUsers = new HashMap<String,GedcomUser>();
+      while (keyTitles.peek() != null) {
+         long gedcomId = keyTitles.peekId();
+
+         // gedcom_user: gedcom_id, user_id
+         while (users.peek() != null && users.peekId() <= gedcomId) {
+            String line = users.next();
+            String[] fields = line.split("\t");
+            if (fields.length > 1) {
+               GedcomUser gu = new GedcomUser(fields[0], fields[1]);
+               gedcomUsers.put(gu.gedcomId, gu);
+            }
+            else {
+               System.out.println("gedcom_user invalid line = "+line);
+            }
+         }
 
+         // gedcom_sources: gedcom_id, src_key, author, title, abbrev
+         while (sources.peek() != null && sources.peekId() <= gedcomId) {
+            String line = sources.next();
+            String[] fields = line.split("\t");
+            if (fields.length > 3) {
+               GedcomSource gs = new GedcomSource(fields[0], fields[1], fields[2], fields[3], fields.length > 4 ? fields[4] : "");
+               gedcomSources.put(getGedcomSourceKey(gs.gedcomId, gs.srcKey), gs);
+            }
+            else {
+               System.out.println("gedcom_sources invalid line = "+line);
+            }
+         }
+
+         // gedcom_key_title: gedcom_id, src_key, page_title
+         while (keyTitles.peek() != null && keyTitles.peekId() == gedcomId) {
+            batch.add(keyTitles.next());
+         }
+
+         // start a new batch only between gedcoms
+         if (batch.size() >= BATCH_SIZE) {
+            executor.submit(new MatchBatch(batch, new HashMapLookup(gedcomUsers, gedcomSources)));
+            batch = new ArrayList<String>(BATCH_SIZE);
+            gedcomSources = new HashMap<String,GedcomSource>();
+            gedcomUsers = new HashMap<String,GedcomUser>();
+         }
+      }
+      if (batch.size() > 0) {
+         executor.submit(new MatchBatch(batch, new HashMapLookup(gedcomUsers, gedcomSources)));
+      }
+      keyTitles.close();
+      sources.close();
+      users.close();
+   }
+
+   static GedcomLookup readHashMaps(String sourcesFile, String usersFile) throws IOException {
       // gedcom_sources: gedcom_id, src_key, author, title, abbrev
       System.out.println("Read gedcom_sources");
       HashMap<String,GedcomSource> gedcomSources = new HashMap<String,GedcomSource>();
-      BufferedReader in = new BufferedReader(new FileReader(args[0]));
+      BufferedReader in = new BufferedReader(new FileReader(sourcesFile));
       while (in.ready()) {
          String line = in.readLine();
          String[] fields = line.split("\t");
@@ -232,7 +409,7 @@ public class GenerateSourceMatches {
       // gedcom_user: gedcom_id, user_id
       System.out.println("Read gedcom_user");
       HashMap<String,GedcomUser> gedcomUsers = new HashMap<String,GedcomUser>();
-      in = new BufferedReader(new FileReader(args[2]));
+      in = new BufferedReader(new FileReader(usersFile));
       while (in.ready()) {
          String line = in.readLine();
          String[] fields = line.split("\t");
@@ -246,51 +423,60 @@ public class GenerateSourceMatches {
       }
       in.close();
 
+      return new HashMapLookup(gedcomUsers, gedcomSources);
+   }
+
+   static GedcomLookup readCompact(String sourcesFile, String usersFile) throws IOException {
+      GedcomSourceTable table = new GedcomSourceTable();
+      System.out.println("Read gedcom_sources");
+      table.readSources(sourcesFile);
+      System.out.println("Read gedcom_user");
+      table.readUsers(usersFile);
+      return table;
+   }
+
+   // 0=gedcom_sources.tsv 1=gedcom_key_title.tsv 2=gedcom_user.tsv 3=gedcom_source_matches.tsv (out) 4=number of threads (optional)
+   // 5=join mode (optional): hash (default) holds the sources in HashMaps; compact holds them in column arrays;
+   //   merge streams all three files, which must be sorted by gedcom id, without loading them
+   public static void main(String[] args) throws IOException {
+      String joinMode = (args.length > 5 ? args[5] : "hash");
+      GedcomLookup lookup = null;
+      if (joinMode.equals("hash")) {
+         lookup = readHashMaps(args[0], args[2]);
+      }
+      else if (joinMode.equals("compact")) {
+         lookup = readCompact(args[0], args[2]);
+      }
+      else if (!joinMode.equals("merge")) {
+         throw new IllegalArgumentException("Unknown join mode: " + joinMode);
+      }
+
       // write user_id, source, source_type (AT, AA, T, A), title
       PrintWriter out = new PrintWriter(new FileWriter(args[3]));
+      int numThreads = (args.length > 4 ? Integer.parseInt(args[4]) : Util.getDefaultThreads());
+      OrderedOutputExecutor executor = new OrderedOutputExecutor(numThreads, out);
 
       // gedcom_key_title: gedcom_id, src_key, page_title
       System.out.println("Read gedcom_key_title");
-      in = new BufferedReader(new FileReader(args[1]));
-      while (in.ready()) {
-         String[] fields = in.readLine().split("\t");
-         GedcomKeyTitle gkt = new GedcomKeyTitle(fields[0], fields[1], fields[2]);
-
-         // get user_id
-         String userId = "0";
-         GedcomUser gu = gedcomUsers.get(gkt.gedcomId);
-         if (gu != null) {
-            userId = gu.userId;
-         }
-
-         // get gedcomSource
-         GedcomSource gs = gedcomSources.get(getGedcomSourceKey(gkt.gedcomId, gkt.srcKey));
-         if (gs == null) {
-            System.out.println("Gedcom source not found "+ gkt.gedcomId +" " + gkt.srcKey);
-            continue;
-         }
-
-         String author = clean(gs.author);
-         String title = clean(gs.title);
-         String abbrev = clean(gs.abbrev);
-         String pageTitle = gkt.title.replace(' ', '_');
-
-         if (author.length() > 0) {
-            if (title.length() > 0) {
-               write(out, userId, truncate(author + title, 255), "AT", pageTitle);
-            }
-            if (abbrev.length() > 0) {
-               write(out, userId, truncate(author + abbrev, 255), "AA", pageTitle);
+      if (lookup == null) {
+         mergeJoin(args[0], args[1], args[2], executor);
+      }
+      else {
+         BufferedReader in = new BufferedReader(new FileReader(args[1]));
+         List<String> batch = new ArrayList<String>(BATCH_SIZE);
+         while (in.ready()) {
+            batch.add(in.readLine());
+            if (batch.size() == BATCH_SIZE) {
+               executor.submit(new MatchBatch(batch, lookup));
+               batch = new ArrayList<String>(BATCH_SIZE);
             }
          }
-         if (title.length() > 0) {
-            write(out, userId, truncate(title, 255), "T", pageTitle);
-         }
-         if (abbrev.length() > 0) {
-            write(out, userId, truncate(abbrev, 255), "A", pageTitle);
+         if (batch.size() > 0) {
+            executor.submit(new MatchBatch(batch, lookup));
          }
+         in.close();
       }
-      in.close();
+      executor.finish();
 
       out.close();
    }
@@ -0,0 +1,67 @@
+package org.werelate.scripts;
+
+import nu.xom.ParsingException;
+import org.werelate.parser.WikiPageJob;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs several scripts over a single read of pages.xml.
+ * Each line of the job file names a script with a newJob method (in org.werelate.scripts unless qualified),
+ * followed by the arguments its main takes after pages.xml, separated by whitespace; # starts a comment.
+ * For example:
+ *   CountEventTypes eventTypes.txt
+ *   ExtractSources sources.tsv source_counts.tsv
+ */
+public class RunJobs
+{
+   private static WikiPageJob newJob(String className, String[] args) throws IOException {
+      if (className.indexOf('.') < 0) {
+         className = "org.werelate.scripts." + className;
+      }
+      try {
+         Method newJob = Class.forName(className).getMethod("newJob", String[].class);
+         return (WikiPageJob)newJob.invoke(null, (Object)args);
+      }
+      catch (InvocationTargetException e) {
+         if (e.getCause() instanceof IOException) {
+            throw (IOException)e.getCause();
+         }
+         throw new RuntimeException(e.getCause());
+      }
+      catch (ReflectiveOperationException e) {
+         throw new IllegalArgumentException("Not a job: " + className, e);
+      }
+   }
+
+   // 0=pages.xml 1=job file [2=true to run each job on its own thread]
+   public static void main(String[] args)
+           throws IOException, ParsingException
+   {
+      boolean parallel = (args.length > 2 && Boolean.parseBoolean(args[2]));
+      List<WikiPageJob> jobs = new ArrayList<WikiPageJob>();
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(args[1]), "UTF-8"));
+      String line;
+      while ((line = in.readLine()) != null) {
+         int pos = line.indexOf('#');
+         if (pos >= 0) {
+            line = line.substring(0, pos);
+         }
+         line = line.trim();
+         if (line.length() == 0) {
+            continue;
+         }
+         String[] fields = line.split("\\s+");
+         String[] jobArgs = new String[fields.length];
+         jobArgs[0] = args[0];
+         System.arraycopy(fields, 1, jobArgs, 1, fields.length - 1);
+         jobs.add(newJob(fields[0], jobArgs));
+      }
+      in.close();
+      WikiPageJob.run(args[0], jobs, parallel);
+   }
+}
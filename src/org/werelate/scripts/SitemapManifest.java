@@ -0,0 +1,311 @@
+package org.werelate.scripts;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Remembers which sitemap file each title was written to, along with the timestamp and length it was written with,
+ * so that GenerateSitemap can rewrite only the sitemap files whose contents have changed.
+ *
+ * The manifest is stored gzip-compressed, with entries sorted by title and each title stored as
+ * the length of the prefix it shares with the previous title followed by the remaining suffix.
+ */
+public class SitemapManifest {
+   private static final Logger logger = LogManager.getLogger("org.werelate.scripts");
+
+   private static final int VERSION = 1;
+   private static final int INITIAL_CAPACITY = 1024;
+
+   // sitemap files
+   private int numFiles;
+   private String[] lastmods;
+   private BitSet dirtyFiles;
+
+   // entries from the previous run, sorted by title
+   private int size;
+   private String[] titles;
+   private String[] timestamps;
+   private int[] lengths;
+   private int[] fileNumbers;
+   private BitSet seen;
+
+   // entries not in the previous run, in the order they were read
+   private int numAdded;
+   private String[] addedTitles;
+   private String[] addedTimestamps;
+   private int[] addedLengths;
+
+   // entry positions grouped by file, valid after finish
+   private int[] fileStarts;
+   private int[] fileEntries;
+
+   private SitemapManifest() {
+      numFiles = 0;
+      lastmods = new String[0];
+      size = 0;
+      titles = new String[0];
+      timestamps = new String[0];
+      lengths = new int[0];
+      fileNumbers = new int[0];
+      numAdded = 0;
+      addedTitles = new String[INITIAL_CAPACITY];
+      addedTimestamps = new String[INITIAL_CAPACITY];
+      addedLengths = new int[INITIAL_CAPACITY];
+   }
+
+   /**
+    * Read the manifest from the specified file; returns an empty manifest if the file doesn't exist
+    */
+   public static SitemapManifest load(File file) throws IOException {
+      SitemapManifest manifest = new SitemapManifest();
+      if (file.exists()) {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+         try {
+            manifest.read(in);
+         }
+         finally {
+            in.close();
+         }
+      }
+      manifest.dirtyFiles = new BitSet(manifest.numFiles);
+      manifest.seen = new BitSet(manifest.size);
+      return manifest;
+   }
+
+   private void read(DataInputStream in) throws IOException {
+      int version = in.readInt();
+      if (version != VERSION) {
+         throw new IOException("Unsupported sitemap manifest version: " + version);
+      }
+      numFiles = in.readInt();
+      lastmods = new String[numFiles];
+      for (int i = 0; i < numFiles; i++) {
+         lastmods[i] = in.readUTF();
+      }
+      size = in.readInt();
+      titles = new String[size];
+      timestamps = new String[size];
+      lengths = new int[size];
+      fileNumbers = new int[size];
+      String prevTitle = "";
+      for (int i = 0; i < size; i++) {
+         int prefixLen = in.readUnsignedShort();
+         titles[i] = prevTitle.substring(0, prefixLen) + in.readUTF();
+         timestamps[i] = in.readUTF();
+         lengths[i] = in.readInt();
+         fileNumbers[i] = in.readInt();
+         prevTitle = titles[i];
+      }
+   }
+
+   /**
+    * Write the manifest to the specified file; call after finish
+    */
+   public void save(File file) throws IOException {
+      File tmpFile = new File(file.getPath() + ".tmp");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))));
+      try {
+         out.writeInt(VERSION);
+         out.writeInt(numFiles);
+         for (int i = 0; i < numFiles; i++) {
+            out.writeUTF(lastmods[i]);
+         }
+         out.writeInt(size);
+         String prevTitle = "";
+         for (int i = 0; i < size; i++) {
+            String title = titles[i];
+            int prefixLen = 0;
+            int maxLen = Math.min(Math.min(prevTitle.length(), title.length()), 0xFFFF);
+            while (prefixLen < maxLen && prevTitle.charAt(prefixLen) == title.charAt(prefixLen)) {
+               prefixLen++;
+            }
+            out.writeShort(prefixLen);
+            out.writeUTF(title.substring(prefixLen));
+            out.writeUTF(timestamps[i]);
+            out.writeInt(lengths[i]);
+            out.writeInt(fileNumbers[i]);
+            prevTitle = title;
+         }
+      }
+      finally {
+         out.close();
+      }
+      if (file.exists() && !file.delete()) {
+         throw new IOException("Unable to replace " + file);
+      }
+      if (!tmpFile.renameTo(file)) {
+         throw new IOException("Unable to rename " + tmpFile + " to " + file);
+      }
+   }
+
+   /**
+    * Record that the specified title is in the current dump with the specified timestamp and length
+    */
+   public void update(String title, String timestamp, int length) {
+      int pos = Arrays.binarySearch(titles, 0, size, title);
+      if (pos >= 0) {
+         seen.set(pos);
+         if (lengths[pos] != length || !timestamps[pos].equals(timestamp)) {
+            timestamps[pos] = timestamp;
+            lengths[pos] = length;
+            dirtyFiles.set(fileNumbers[pos]);
+         }
+      }
+      else {
+         if (numAdded == addedTitles.length) {
+            int capacity = numAdded * 2;
+            addedTitles = Arrays.copyOf(addedTitles, capacity);
+            addedTimestamps = Arrays.copyOf(addedTimestamps, capacity);
+            addedLengths = Arrays.copyOf(addedLengths, capacity);
+         }
+         addedTitles[numAdded] = title;
+         addedTimestamps[numAdded] = timestamp;
+         addedLengths[numAdded] = length;
+         numAdded++;
+      }
+   }
+
+   /**
+    * Drop titles that weren't seen in the current dump, and assign new titles to sitemap files,
+    * first to existing files that have room and then to new files
+    */
+   public void finish(int maxUrls) {
+      // remove titles no longer present
+      int[] fileCounts = new int[numFiles];
+      int numKept = 0;
+      for (int i = 0; i < size; i++) {
+         if (seen.get(i)) {
+            titles[numKept] = titles[i];
+            timestamps[numKept] = timestamps[i];
+            lengths[numKept] = lengths[i];
+            fileNumbers[numKept] = fileNumbers[i];
+            fileCounts[fileNumbers[i]]++;
+            numKept++;
+         }
+         else {
+            dirtyFiles.set(fileNumbers[i]);
+         }
+      }
+      int numDeleted = size - numKept;
+
+      // assign new titles to files
+      int[] addedFileNumbers = new int[numAdded];
+      int fileNumber = 0;
+      for (int i = 0; i < numAdded; i++) {
+         while (fileNumber < numFiles && fileCounts[fileNumber] >= maxUrls) {
+            fileNumber++;
+         }
+         if (fileNumber == numFiles) {
+            numFiles++;
+            lastmods = Arrays.copyOf(lastmods, numFiles);
+            fileCounts = Arrays.copyOf(fileCounts, numFiles);
+         }
+         addedFileNumbers[i] = fileNumber;
+         fileCounts[fileNumber]++;
+         dirtyFiles.set(fileNumber);
+      }
+
+      // merge new titles into the sorted entries
+      Integer[] order = new Integer[numAdded];
+      for (int i = 0; i < numAdded; i++) {
+         order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            return addedTitles[a].compareTo(addedTitles[b]);
+         }
+      });
+      int newSize = numKept + numAdded;
+      String[] newTitles = new String[newSize];
+      String[] newTimestamps = new String[newSize];
+      int[] newLengths = new int[newSize];
+      int[] newFileNumbers = new int[newSize];
+      int i = 0;
+      int j = 0;
+      for (int k = 0; k < newSize; k++) {
+         if (j == numAdded || (i < numKept && titles[i].compareTo(addedTitles[order[j]]) <= 0)) {
+            newTitles[k] = titles[i];
+            newTimestamps[k] = timestamps[i];
+            newLengths[k] = lengths[i];
+            newFileNumbers[k] = fileNumbers[i];
+            i++;
+         }
+         else {
+            int a = order[j++];
+            newTitles[k] = addedTitles[a];
+            newTimestamps[k] = addedTimestamps[a];
+            newLengths[k] = addedLengths[a];
+            newFileNumbers[k] = addedFileNumbers[a];
+         }
+      }
+      titles = newTitles;
+      timestamps = newTimestamps;
+      lengths = newLengths;
+      fileNumbers = newFileNumbers;
+      size = newSize;
+      logger.info("Sitemap manifest: kept=" + numKept + " added=" + numAdded + " deleted=" + numDeleted +
+                  " dirtyFiles=" + dirtyFiles.cardinality() + " of " + numFiles);
+      numAdded = 0;
+      addedTitles = null;
+      addedTimestamps = null;
+      addedLengths = null;
+
+      // group entries by file
+      fileStarts = new int[numFiles+1];
+      for (int k = 0; k < size; k++) {
+         fileStarts[fileNumbers[k]+1]++;
+      }
+      for (int f = 0; f < numFiles; f++) {
+         fileStarts[f+1] += fileStarts[f];
+      }
+      int[] next = Arrays.copyOf(fileStarts, numFiles);
+      fileEntries = new int[size];
+      for (int k = 0; k < size; k++) {
+         fileEntries[next[fileNumbers[k]]++] = k;
+      }
+   }
+
+   public int getNumFiles() {
+      return numFiles;
+   }
+
+   public boolean isDirty(int fileNumber) {
+      return dirtyFiles.get(fileNumber);
+   }
+
+   public String getLastmod(int fileNumber) {
+      return lastmods[fileNumber];
+   }
+
+   public void setLastmod(int fileNumber, String lastmod) {
+      lastmods[fileNumber] = lastmod;
+   }
+
+   /**
+    * Return the number of titles in the specified file; call after finish
+    */
+   public int getFileSize(int fileNumber) {
+      return fileStarts[fileNumber+1] - fileStarts[fileNumber];
+   }
+
+   /**
+    * Copy the titles, timestamps, and lengths of the specified file into the specified arrays; call after finish
+    */
+   public void getFileEntries(int fileNumber, String[] fileTitles, String[] fileTimestamps, int[] fileLengths) {
+      int start = fileStarts[fileNumber];
+      int end = fileStarts[fileNumber+1];
+      for (int k = start; k < end; k++) {
+         int pos = fileEntries[k];
+         fileTitles[k-start] = titles[pos];
+         fileTimestamps[k-start] = timestamps[pos];
+         fileLengths[k-start] = lengths[pos];
+      }
+   }
+}
@@ -66,11 +66,11 @@ public class UpdateSourceRepos {
       editor.setPostVariable("religion", editor.readSelectVariable(RELIGION_PATTERN));
       editor.setPostVariable("occupation", editor.readSelectVariable(OCCUPATION_PATTERN));
       int number = 0;
-      while(editor.readVariable(Pattern.compile("<input [^>]*?name=\"repository_id"+number+"\"[^>]*?value=\"(.*?)\"[^/]*/>"), false) != null) {
+      while(editor.readVariable(PageEditor.inputPattern("repository_id" + number), false) != null) {
          editor.setPostVariable("repository_id" + number,String.valueOf(number + 1));
-         editor.setPostVariable("repository_title"+number, editor.readVariable(Pattern.compile("<input [^>]*?name=\"repository_title"+ number+ "\"[^>]*?value=\"(.*?)\"[^/]*/>")));
-         editor.setPostVariable("repository_location"+number, editor.readVariable(Pattern.compile("<input [^>]*?name=\"repository_location"+ number+ "\"[^>]*?value=\"(.*?)\"[^/]*/>")));
-         String availability = editor.readVariable(Pattern.compile("<select [^>]*?name=\"availability"+ number+ "\".*?<option value=\"([^\"]*)\" selected>", Pattern.DOTALL));
+         editor.setPostVariable("repository_title"+number, editor.readVariable(PageEditor.inputPattern("repository_title" + number)));
+         editor.setPostVariable("repository_location"+number, editor.readVariable(PageEditor.inputPattern("repository_location" + number)));
+         String availability = editor.readVariable(PageEditor.selectPattern("availability" + number));
          if (Util.isEmpty(availability)) availability = "Other";
          editor.setPostVariable("availability"+number, availability);
          number++;
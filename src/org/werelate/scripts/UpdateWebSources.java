@@ -89,10 +89,10 @@ public class UpdateWebSources {
       editor.setPostVariable("religion", religion);
       editor.setPostVariable("occupation", occupation);
       int number = 0;
-      while(editor.readVariable(Pattern.compile("<input [^>]*?name=\"repository_id"+number+"\"[^>]*?value=\"(.*?)\"[^/]*/>"), false) != null) {
-         String repoTitle = editor.readVariable(Pattern.compile("<input [^>]*?name=\"repository_title"+ number+ "\"[^>]*?value=\"(.*?)\"[^/]*/>"));
-         String repoLocation = editor.readVariable(Pattern.compile("<input [^>]*?name=\"repository_location"+ number+ "\"[^>]*?value=\"(.*?)\"[^/]*/>"));
-         String repoAvail = editor.readVariable(Pattern.compile("<select [^>]*?name=\"availability"+ number+ "\".*?<option value=\"([^\"]*)\" selected>", Pattern.DOTALL));
+      while(editor.readVariable(PageEditor.inputPattern("repository_id" + number), false) != null) {
+         String repoTitle = editor.readVariable(PageEditor.inputPattern("repository_title" + number));
+         String repoLocation = editor.readVariable(PageEditor.inputPattern("repository_location" + number));
+         String repoAvail = editor.readVariable(PageEditor.selectPattern("availability" + number));
          if (repoAvail.length() == 0) {
             repoAvail = "Free website";
          }
@@ -2,6 +2,7 @@ package org.werelate.source;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.werelate.utils.Romanizer;
 import org.werelate.utils.Util;
 import org.werelate.parser.StructuredDataParser;
 import org.werelate.parser.WikiReader;
@@ -141,9 +142,9 @@ public class CategoryVerifier extends StructuredDataParser{
          category = "Cemetery records";
       if(categoryMapping.containsKey(category)){
          mapping = categoryMapping.get(category);
-         title = Util.romanize(title).toLowerCase();
-         text = Util.romanize(text).toLowerCase();
-         subjects = Util.romanize(subjects).toLowerCase();
+         title = Romanizer.ROMANIZE_LOWERCASE.normalize(title);
+         text = Romanizer.ROMANIZE_LOWERCASE.normalize(text);
+         subjects = Romanizer.ROMANIZE_LOWERCASE.normalize(subjects);
          int question = mapping.indexOf('?');
          while(question > -1){
             mapping = mapping.substring(question + 1);
@@ -1,5 +1,6 @@
 package org.werelate.source;
 
+import org.werelate.utils.Romanizer;
 import org.werelate.utils.Util;
 
 import java.io.File;
@@ -177,8 +178,8 @@ public class OptionalFieldVerifier{
          //most of these are chinese or japanese
          return;
       }
-      page = Util.romanize(page).toLowerCase();
-      authors = Util.romanize(authors).toLowerCase();
+      page = Romanizer.ROMANIZE_LOWERCASE.normalize(page);
+      authors = Romanizer.ROMANIZE_LOWERCASE.normalize(authors);
       if (newCategory.equals("Church records")){
          boolean found = false;
          for (String[] religion : religionMapping) {
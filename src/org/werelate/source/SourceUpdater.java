@@ -3,6 +3,7 @@ package org.werelate.source;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.werelate.editor.PageEditor;
+import org.werelate.utils.Patterns;
 import org.werelate.utils.Util;
 
 import java.util.HashSet;
@@ -40,6 +41,11 @@ public class SourceUpdater {
    private static final Pattern SUBJECT_PATTERN = Pattern.compile("<select [^>]*?name=\"subject\"(.*?)<option value=\"([^\"]*)\" selected>",Pattern.DOTALL);
    private static final Pattern ETHNICITY_PATTERN = Pattern.compile("<select [^>]*?name=\"ethnicity\"(.*?)<option value=\"([^\"]*)\" selected>",Pattern.DOTALL);
    private static final Pattern RELIGION_PATTERN = Pattern.compile("<select [^>]*?name=\"religion\"(.*?)<option value=\"([^\"]*)\" selected>",Pattern.DOTALL);
+   private static final Pattern CATEGORY_PATTERN = Pattern.compile("\\[\\[Category:((Cemeteries)|(Cemetery records)|(Census records)|(Church records)|(Churches)|(Directories)|(Ethnic and Cultural)|(Ethnic and cultural)|" +
+           "(Family bibles)|(Family histories)|(Finding aids)|(Funeral homes)|(General history)|(Historic newspapers)|(Historic Newspapers)|(Historical societies)|" +
+           "(Land records)|(Legal records)|(Libraries and archives)|(Manuscripts)|(Maps and gazetteers)|(Migration records)|(Military)|(Obituaries)|" +
+           "(Occupations)|(Other records)|(Periodicals)|(Town and area histories)|(Vital records))\\]\\]");
+   private static final Pattern FILMED_BY_PATTERN = Pattern.compile("Gefilmd door de|Filmed by the|Film\\? par la|Filmet for the|Filmados por la|Film\\?s par la|Filmed by|Gefilmt durch The");
    private static final Pattern OCCUPATION_PATTERN = Pattern.compile("<select [^>]*?name=\"occupation\"(.*?)<option value=\"([^\"]*)\" selected>",Pattern.DOTALL);
 
    private Hashtable<String, Source> updateSources;
@@ -132,7 +138,7 @@ public class SourceUpdater {
                }
             }
             else if (fieldName.equals("publisher")) {
-               fieldValue = fieldValue.replaceAll("Gefilmd door de|Filmed by the|Film\\? par la|Filmet for the|Filmados por la|Film\\?s par la|Filmed by|Gefilmt durch The","").trim();
+               fieldValue = Patterns.replaceAll(fieldValue, FILMED_BY_PATTERN, "").trim();
             }
             if (fieldValue.length() == 0) {
                if (!fieldName.equals("place_issued")) {
@@ -214,11 +220,11 @@ public class SourceUpdater {
             String textbox = edit.readVariable(TEXTBOX1_PATTERN).trim();
 
             int number = 0;
-            while(edit.readVariable(Pattern.compile("<input [^>]*?name=\"repository_id"+number+"\"[^>]*?value=\"(.*?)\"[^/]*/>"), false) != null) {
+            while(edit.readVariable(PageEditor.inputPattern("repository_id" + number), false) != null) {
                edit.setPostVariable("repository_id" + number,String.valueOf(number + 1));
-               String repoTitle = edit.readVariable(Pattern.compile("<input [^>]*?name=\"repository_title"+ number+ "\"[^>]*?value=\"(.*?)\"[^/]*/>"));
-               edit.setPostVariable("repository_location"+number, edit.readVariable(Pattern.compile("<input [^>]*?name=\"repository_location"+ number+ "\"[^>]*?value=\"(.*?)\"[^/]*/>")));
-               String avail = edit.readVariable(Pattern.compile("<select [^>]*?name=\"availability"+ number+ "\".*?<option value=\"([^\"]*)\" selected>", Pattern.DOTALL));
+               String repoTitle = edit.readVariable(PageEditor.inputPattern("repository_title" + number));
+               edit.setPostVariable("repository_location"+number, edit.readVariable(PageEditor.inputPattern("repository_location" + number)));
+               String avail = edit.readVariable(PageEditor.selectPattern("availability" + number));
                if (avail.equals("")) {
                   if (repoTitle.contains("Ancestry.com")) {
                      avail = "Paid website";
@@ -237,10 +243,7 @@ public class SourceUpdater {
             }
 
 //            textbox = textbox.replaceAll("\\[\\[Category:((Cemeteries)|(Finding aids)|(Church records)|(Ethnic and Cultural)|(Military)|(Cemetery records)|(Census records)|(Family bibles)|(Family histories)|(Funeral homes)|(General history)|(Historic newspapers)|(Historical societies)|(Land records)|(Legal records)|(Libraries and archives)|(Maps and gazetteers)|(Migration records)|(Obituaries)|(Occupations)|(Other records)|(Periodicals)|(Town and area histories)|(Vital records))\\]\\]","");
-            textbox = textbox.replaceAll("\\[\\[Category:((Cemeteries)|(Cemetery records)|(Census records)|(Church records)|(Churches)|(Directories)|(Ethnic and Cultural)|(Ethnic and cultural)|" +
-                    "(Family bibles)|(Family histories)|(Finding aids)|(Funeral homes)|(General history)|(Historic newspapers)|(Historic Newspapers)|(Historical societies)|" +
-                    "(Land records)|(Legal records)|(Libraries and archives)|(Manuscripts)|(Maps and gazetteers)|(Migration records)|(Military)|(Obituaries)|" +
-                    "(Occupations)|(Other records)|(Periodicals)|(Town and area histories)|(Vital records))\\]\\]","");
+            textbox = Patterns.replaceAll(textbox, CATEGORY_PATTERN, "");
 
             edit.setPostVariable("wpTextbox1", textbox);
             edit.setPostVariable("wpSummary","automated edit to update source information");
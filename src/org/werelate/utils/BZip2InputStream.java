@@ -0,0 +1,413 @@
+package org.werelate.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decompresses bzip2 data.
+ * Reads either a single bzip2 stream, for reading one stream out of a multistream file, or a sequence of concatenated streams.
+ * Block and stream CRCs are checked. Randomized blocks, which bzip2 hasn't written since version 0.9.5, are not supported.
+ */
+public class BZip2InputStream extends InputStream {
+   private static final int MAX_GROUPS = 6;
+   private static final int MAX_ALPHA_SIZE = 258;
+   private static final int MAX_CODE_LEN = 23;
+   private static final int GROUP_SIZE = 50;
+   private static final int MAX_SELECTORS = 18002;
+   private static final int RUNA = 0;
+   private static final int RUNB = 1;
+   private static final long BLOCK_MAGIC = 0x314159265359L;
+   private static final long EOS_MAGIC = 0x177245385090L;
+
+   private static final int[] CRC_TABLE = new int[256];
+   static {
+      for (int i = 0; i < 256; i++) {
+         int c = i << 24;
+         for (int j = 0; j < 8; j++) {
+            c = (c < 0 ? (c << 1) ^ 0x04c11db7 : c << 1);
+         }
+         CRC_TABLE[i] = c;
+      }
+   }
+
+   private InputStream in;
+   private boolean concatenated;
+   private long bitBuffer;
+   private int bitCount;
+   private boolean eof;
+
+   // current block
+   private int blockSize;
+   private int[] tt;
+   private int blockLength;
+   private int blockPos;
+   private int tPos;
+   private int expectedBlockCrc;
+   private int blockCrc;
+   private int streamCrc;
+   // run-length decoding of the block output
+   private int lastByte;
+   private int runCount;
+   private int repeatByte;
+   private int repeatCount;
+
+   // decoding tables, reused between blocks
+   private final byte[] seqToUnseq = new byte[256];
+   private final byte[] selectors = new byte[MAX_SELECTORS];
+   private final int[][] limit = new int[MAX_GROUPS][MAX_CODE_LEN + 2];
+   private final int[][] base = new int[MAX_GROUPS][MAX_CODE_LEN + 2];
+   private final int[][] perm = new int[MAX_GROUPS][MAX_ALPHA_SIZE];
+   private final int[] minLens = new int[MAX_GROUPS];
+   private final byte[][] lengths = new byte[MAX_GROUPS][MAX_ALPHA_SIZE];
+
+   /**
+    * @param concatenated true to keep reading streams that follow the first one
+    */
+   public BZip2InputStream(InputStream in, boolean concatenated) throws IOException {
+      this.in = in;
+      this.concatenated = concatenated;
+      this.eof = false;
+      if (!readStreamHeader(true)) {
+         throw new IOException("Not bzip2 data");
+      }
+      this.repeatCount = 0;
+      this.blockLength = 0;
+      this.blockPos = 0;
+   }
+
+   private int bits(int n) throws IOException {
+      while (bitCount < n) {
+         int b = in.read();
+         if (b < 0) {
+            throw new IOException("Unexpected end of bzip2 data");
+         }
+         bitBuffer = (bitBuffer << 8) | b;
+         bitCount += 8;
+      }
+      bitCount -= n;
+      return (int)((bitBuffer >>> bitCount) & ((1L << n) - 1));
+   }
+
+   private boolean bit() throws IOException {
+      return bits(1) != 0;
+   }
+
+   // return false at the end of the input
+   private boolean readStreamHeader(boolean first) throws IOException {
+      bitCount = 0;
+      int b = in.read();
+      if (b < 0 && !first) {
+         return false;
+      }
+      if (b != 'B' || in.read() != 'Z' || in.read() != 'h') {
+         throw new IOException("Invalid bzip2 stream header");
+      }
+      int level = in.read() - '0';
+      if (level < 1 || level > 9) {
+         throw new IOException("Invalid bzip2 block size");
+      }
+      blockSize = level * 100000;
+      if (tt == null || tt.length < blockSize) {
+         tt = new int[blockSize];
+      }
+      streamCrc = 0;
+      return true;
+   }
+
+   // return false at the end of the stream
+   private boolean readBlock() throws IOException {
+      long magic = ((long)bits(24) << 24) | bits(24);
+      if (magic == EOS_MAGIC) {
+         if (bits(32) != streamCrc) {
+            throw new IOException("bzip2 stream CRC error");
+         }
+         return false;
+      }
+      if (magic != BLOCK_MAGIC) {
+         throw new IOException("Invalid bzip2 block header");
+      }
+      expectedBlockCrc = bits(32);
+      if (bit()) {
+         throw new IOException("Randomized bzip2 blocks are not supported");
+      }
+      int origPtr = bits(24);
+
+      // symbol map
+      int inUse16 = bits(16);
+      int numInUse = 0;
+      for (int i = 0; i < 16; i++) {
+         if ((inUse16 & (0x8000 >>> i)) != 0) {
+            int used = bits(16);
+            for (int j = 0; j < 16; j++) {
+               if ((used & (0x8000 >>> j)) != 0) {
+                  seqToUnseq[numInUse++] = (byte)(i * 16 + j);
+               }
+            }
+         }
+      }
+      if (numInUse == 0) {
+         throw new IOException("Invalid bzip2 symbol map");
+      }
+      int alphaSize = numInUse + 2;
+
+      // selectors
+      int numGroups = bits(3);
+      int numSelectors = bits(15);
+      if (numGroups < 2 || numGroups > MAX_GROUPS || numSelectors < 1) {
+         throw new IOException("Invalid bzip2 huffman groups");
+      }
+      byte[] groupMtf = new byte[MAX_GROUPS];
+      for (int i = 0; i < numGroups; i++) {
+         groupMtf[i] = (byte)i;
+      }
+      for (int i = 0; i < numSelectors; i++) {
+         int j = 0;
+         while (bit()) {
+            if (++j >= numGroups) {
+               throw new IOException("Invalid bzip2 selector");
+            }
+         }
+         byte g = groupMtf[j];
+         for (; j > 0; j--) {
+            groupMtf[j] = groupMtf[j - 1];
+         }
+         groupMtf[0] = g;
+         if (i < MAX_SELECTORS) {
+            selectors[i] = g;
+         }
+      }
+      numSelectors = Math.min(numSelectors, MAX_SELECTORS);
+
+      // code lengths and decoding tables
+      for (int t = 0; t < numGroups; t++) {
+         int len = bits(5);
+         for (int i = 0; i < alphaSize; i++) {
+            while (true) {
+               if (len < 1 || len > 20) {
+                  throw new IOException("Invalid bzip2 code length");
+               }
+               if (!bit()) {
+                  break;
+               }
+               len += (bit() ? -1 : 1);
+            }
+            lengths[t][i] = (byte)len;
+         }
+         createDecodeTables(t, alphaSize);
+      }
+
+      // huffman + move-to-front + run-length decoding of the symbols
+      int[] counts = new int[256];
+      byte[] mtf = new byte[256];
+      for (int i = 0; i < 256; i++) {
+         mtf[i] = (byte)i;
+      }
+      int eob = numInUse + 1;
+      int n = 0;
+      int selector = 0;
+      int groupLeft = 0;
+      int group = 0;
+      int runLength = 0;
+      int runWeight = 1;
+      while (true) {
+         if (groupLeft == 0) {
+            if (selector >= numSelectors) {
+               throw new IOException("Invalid bzip2 selector count");
+            }
+            group = selectors[selector++];
+            groupLeft = GROUP_SIZE;
+         }
+         groupLeft--;
+         int[] groupLimit = limit[group];
+         int len = minLens[group];
+         int code = bits(len);
+         while (code > groupLimit[len]) {
+            if (++len > MAX_CODE_LEN) {
+               throw new IOException("Invalid bzip2 huffman code");
+            }
+            code = (code << 1) | bits(1);
+         }
+         int sym = perm[group][code - base[group][len]];
+
+         if (sym == RUNA || sym == RUNB) {
+            runLength += (sym == RUNA ? runWeight : 2 * runWeight);
+            runWeight <<= 1;
+            if (runLength > blockSize) {
+               throw new IOException("Invalid bzip2 run length");
+            }
+            continue;
+         }
+         if (runLength > 0) {
+            int b = seqToUnseq[mtf[0] & 0xff] & 0xff;
+            if (n + runLength > blockSize) {
+               throw new IOException("bzip2 block too long");
+            }
+            counts[b] += runLength;
+            while (runLength-- > 0) {
+               tt[n++] = b;
+            }
+            runLength = 0;
+            runWeight = 1;
+         }
+         if (sym == eob) {
+            break;
+         }
+         int pos = sym - 1;
+         byte m = mtf[pos];
+         System.arraycopy(mtf, 0, mtf, 1, pos);
+         mtf[0] = m;
+         int b = seqToUnseq[m & 0xff] & 0xff;
+         if (n >= blockSize) {
+            throw new IOException("bzip2 block too long");
+         }
+         counts[b]++;
+         tt[n++] = b;
+      }
+      if (origPtr >= n) {
+         throw new IOException("Invalid bzip2 block origin");
+      }
+
+      // inverse burrows-wheeler transform: link each position to the next
+      int[] starts = new int[256];
+      for (int i = 0, sum = 0; i < 256; i++) {
+         starts[i] = sum;
+         sum += counts[i];
+      }
+      for (int i = 0; i < n; i++) {
+         int b = tt[i] & 0xff;
+         tt[starts[b]++] |= (i << 8);
+      }
+      tPos = tt[origPtr] >>> 8;
+      blockLength = n;
+      blockPos = 0;
+      blockCrc = -1;
+      lastByte = -1;
+      runCount = 0;
+      return true;
+   }
+
+   private void createDecodeTables(int t, int alphaSize) {
+      byte[] len = lengths[t];
+      int minLen = 32;
+      int maxLen = 0;
+      for (int i = 0; i < alphaSize; i++) {
+         minLen = Math.min(minLen, len[i]);
+         maxLen = Math.max(maxLen, len[i]);
+      }
+      int[] groupPerm = perm[t];
+      int[] groupBase = base[t];
+      int[] groupLimit = limit[t];
+      int pp = 0;
+      for (int i = minLen; i <= maxLen; i++) {
+         for (int j = 0; j < alphaSize; j++) {
+            if (len[j] == i) {
+               groupPerm[pp++] = j;
+            }
+         }
+      }
+      Arrays.fill(groupBase, 0);
+      for (int i = 0; i < alphaSize; i++) {
+         groupBase[len[i] + 1]++;
+      }
+      for (int i = 1; i < groupBase.length; i++) {
+         groupBase[i] += groupBase[i - 1];
+      }
+      // there are no codes longer than maxLen
+      Arrays.fill(groupLimit, -1);
+      int vec = 0;
+      for (int i = minLen; i <= maxLen; i++) {
+         vec += groupBase[i + 1] - groupBase[i];
+         groupLimit[i] = vec - 1;
+         vec <<= 1;
+      }
+      for (int i = minLen + 1; i <= maxLen; i++) {
+         groupBase[i] = ((groupLimit[i - 1] + 1) << 1) - groupBase[i];
+      }
+      minLens[t] = minLen;
+   }
+
+   // return the next byte of the block before run-length decoding, or -1 at the end of the block
+   private int nextBlockByte() {
+      if (blockPos >= blockLength) {
+         return -1;
+      }
+      int entry = tt[tPos];
+      tPos = entry >>> 8;
+      blockPos++;
+      return entry & 0xff;
+   }
+
+   private void updateCrc(int b) {
+      blockCrc = (blockCrc << 8) ^ CRC_TABLE[((blockCrc >>> 24) ^ b) & 0xff];
+   }
+
+   private void finishBlock() throws IOException {
+      blockCrc = ~blockCrc;
+      if (blockCrc != expectedBlockCrc) {
+         throw new IOException("bzip2 block CRC error");
+      }
+      streamCrc = ((streamCrc << 1) | (streamCrc >>> 31)) ^ blockCrc;
+   }
+
+   public int read() throws IOException {
+      while (true) {
+         if (repeatCount > 0) {
+            repeatCount--;
+            updateCrc(repeatByte);
+            return repeatByte;
+         }
+         if (eof) {
+            return -1;
+         }
+         int b = (blockLength > 0 ? nextBlockByte() : -1);
+         if (b < 0) {
+            if (blockLength > 0) {
+               finishBlock();
+               blockLength = 0;
+            }
+            if (!readBlock()) {
+               if (!concatenated || !readStreamHeader(false)) {
+                  eof = true;
+               }
+            }
+            continue;
+         }
+         if (runCount == 4) {
+            // the byte after four repeats is the number of additional repeats
+            repeatByte = lastByte;
+            repeatCount = b;
+            runCount = 0;
+            continue;
+         }
+         if (b == lastByte) {
+            runCount++;
+         }
+         else {
+            lastByte = b;
+            runCount = 1;
+         }
+         updateCrc(b);
+         return b;
+      }
+   }
+
+   public int read(byte[] buf, int off, int len) throws IOException {
+      if (len == 0) {
+         return 0;
+      }
+      int n = 0;
+      while (n < len) {
+         int b = read();
+         if (b < 0) {
+            break;
+         }
+         buf[off + n++] = (byte)b;
+      }
+      return (n == 0 ? -1 : n);
+   }
+
+   public void close() throws IOException {
+      in.close();
+   }
+}
@@ -0,0 +1,287 @@
+package org.werelate.utils;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a table written by ColumnTableWriter.
+ * A scan reads only the requested columns, and if given a range on an int column,
+ * decompresses only the blocks whose min and max overlap the range.
+ */
+public class ColumnTableReader {
+   private File dir;
+   // column name -> true for string columns
+   private Map<String,Boolean> isString;
+
+   public interface RowHandler {
+      public void handle(Row row) throws IOException;
+   }
+
+   /**
+    * The current row of a scan; values are indexed by position in the scan's column list
+    */
+   public static class Row {
+      private int rowNum;
+      private int blockRow;
+      private int[][] ints;
+      private String[][] strings;
+
+      public int getRowNum() {
+         return rowNum;
+      }
+
+      public int getInt(int column) {
+         return ints[column][blockRow];
+      }
+
+      public String getString(int column) {
+         return strings[column][blockRow];
+      }
+   }
+
+   private static class Block {
+      int rows;
+      int min;
+      int max;
+      byte[] compressed;
+   }
+
+   public ColumnTableReader(File dir) throws IOException {
+      this.dir = dir;
+      isString = new HashMap<String,Boolean>();
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(new File(dir, ColumnTableWriter.SCHEMA_FILE)), "UTF-8"));
+      String line;
+      while ((line = in.readLine()) != null) {
+         String[] fields = line.split("\t");
+         isString.put(fields[0], "string".equals(fields[1]));
+      }
+      in.close();
+   }
+
+   public boolean hasColumn(String column) {
+      return isString.containsKey(column);
+   }
+
+   private DataInputStream open(String column) throws IOException {
+      if (!hasColumn(column)) {
+         throw new IllegalArgumentException("Unknown column: " + column);
+      }
+      return new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir, column + ".col")), 65536));
+   }
+
+   // returns null at the end of the column
+   private static Block readBlockHeader(DataInputStream in) throws IOException {
+      Block block = new Block();
+      try {
+         block.rows = in.readInt();
+      }
+      catch (EOFException e) {
+         return null;
+      }
+      block.min = in.readInt();
+      block.max = in.readInt();
+      block.compressed = new byte[in.readInt()];
+      return block;
+   }
+
+   private static int readVarint(byte[] buf, int[] pos) {
+      int n = 0;
+      int shift = 0;
+      while (true) {
+         int b = buf[pos[0]++];
+         n |= (b & 0x7F) << shift;
+         if ((b & 0x80) == 0) {
+            return n;
+         }
+         shift += 7;
+      }
+   }
+
+   private static byte[] inflate(Inflater inflater, byte[] compressed) throws IOException {
+      inflater.reset();
+      inflater.setInput(compressed);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+      byte[] buf = new byte[65536];
+      try {
+         while (!inflater.finished()) {
+            int len = inflater.inflate(buf);
+            if (len == 0 && inflater.needsInput()) {
+               throw new IOException("Truncated column block");
+            }
+            out.write(buf, 0, len);
+         }
+      }
+      catch (DataFormatException e) {
+         throw new IOException("Corrupt column block", e);
+      }
+      return out.toByteArray();
+   }
+
+   private static int[] decodeInts(Inflater inflater, Block block) throws IOException {
+      byte[] buf = inflate(inflater, block.compressed);
+      int[] values = new int[block.rows];
+      int[] pos = new int[1];
+      int prev = 0;
+      for (int r = 0; r < block.rows; r++) {
+         int zigzag = readVarint(buf, pos);
+         prev += (zigzag >>> 1) ^ -(zigzag & 1);
+         values[r] = prev;
+      }
+      return values;
+   }
+
+   private static String[] decodeStrings(Inflater inflater, Block block) throws IOException {
+      byte[] buf = inflate(inflater, block.compressed);
+      String[] values = new String[block.rows];
+      int[] pos = new int[1];
+      for (int r = 0; r < block.rows; r++) {
+         int len = readVarint(buf, pos);
+         values[r] = new String(buf, pos[0], len, "UTF-8");
+         pos[0] += len;
+      }
+      return values;
+   }
+
+   /**
+    * Call the handler for every row
+    */
+   public void scan(String[] columns, RowHandler handler) throws IOException {
+      scan(columns, null, Integer.MIN_VALUE, Integer.MAX_VALUE, handler);
+   }
+
+   /**
+    * Call the handler for each row whose rangeColumn value is between min and max inclusive
+    * @param columns columns to read, in the order Row indexes them
+    * @param rangeColumn int column to filter on, or null for all rows; it needn't be one of columns
+    */
+   public void scan(String[] columns, String rangeColumn, int min, int max, RowHandler handler) throws IOException {
+      if (rangeColumn != null && !Boolean.FALSE.equals(isString.get(rangeColumn))) {
+         throw new IllegalArgumentException("Not an int column: " + rangeColumn);
+      }
+      DataInputStream[] ins = new DataInputStream[columns.length];
+      DataInputStream rangeIn = null;
+      Inflater inflater = new Inflater();
+      try {
+         for (int i = 0; i < columns.length; i++) {
+            ins[i] = open(columns[i]);
+         }
+         if (rangeColumn != null) {
+            rangeIn = open(rangeColumn);
+         }
+         Row row = new Row();
+         row.ints = new int[columns.length][];
+         row.strings = new String[columns.length][];
+         int firstRow = 0;
+         while (true) {
+            Block[] blocks = new Block[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+               blocks[i] = readBlockHeader(ins[i]);
+            }
+            Block rangeBlock = (rangeIn == null ? null : readBlockHeader(rangeIn));
+            int rows = (rangeIn != null ? (rangeBlock == null ? 0 : rangeBlock.rows) :
+                        (columns.length == 0 || blocks[0] == null ? 0 : blocks[0].rows));
+            if (rows == 0) {
+               break;
+            }
+
+            // decide which rows match before reading the other columns
+            boolean[] matches = null;
+            boolean anyMatch = true;
+            if (rangeBlock != null) {
+               anyMatch = (rangeBlock.max >= min && rangeBlock.min <= max);
+               if (anyMatch && (rangeBlock.min < min || rangeBlock.max > max)) {
+                  rangeIn.readFully(rangeBlock.compressed);
+                  int[] values = decodeInts(inflater, rangeBlock);
+                  matches = new boolean[rows];
+                  anyMatch = false;
+                  for (int r = 0; r < rows; r++) {
+                     matches[r] = (values[r] >= min && values[r] <= max);
+                     anyMatch |= matches[r];
+                  }
+               }
+               else {
+                  skipFully(rangeIn, rangeBlock.compressed.length);
+               }
+            }
+
+            for (int i = 0; i < columns.length; i++) {
+               if (anyMatch) {
+                  ins[i].readFully(blocks[i].compressed);
+                  if (isString.get(columns[i])) {
+                     row.strings[i] = decodeStrings(inflater, blocks[i]);
+                  }
+                  else {
+                     row.ints[i] = decodeInts(inflater, blocks[i]);
+                  }
+               }
+               else {
+                  skipFully(ins[i], blocks[i].compressed.length);
+               }
+            }
+            for (int r = 0; anyMatch && r < rows; r++) {
+               if (matches == null || matches[r]) {
+                  row.rowNum = firstRow + r;
+                  row.blockRow = r;
+                  handler.handle(row);
+               }
+            }
+            firstRow += rows;
+         }
+      }
+      finally {
+         inflater.end();
+         for (DataInputStream in : ins) {
+            if (in != null) {
+               in.close();
+            }
+         }
+         if (rangeIn != null) {
+            rangeIn.close();
+         }
+      }
+   }
+
+   private static void skipFully(DataInputStream in, int n) throws IOException {
+      while (n > 0) {
+         int skipped = in.skipBytes(n);
+         if (skipped <= 0) {
+            throw new EOFException();
+         }
+         n -= skipped;
+      }
+   }
+
+   /**
+    * Read a string column in full, indexed by row; for the dictionary tables
+    */
+   public String[] readStrings(String column) throws IOException {
+      if (!Boolean.TRUE.equals(isString.get(column))) {
+         throw new IllegalArgumentException("Not a string column: " + column);
+      }
+      final String[] values = new String[countRows(column)];
+      scan(new String[] {column}, new RowHandler() {
+         public void handle(Row row) {
+            values[row.getRowNum()] = row.getString(0);
+         }
+      });
+      return values;
+   }
+
+   private int countRows(String column) throws IOException {
+      DataInputStream in = open(column);
+      int rows = 0;
+      try {
+         for (Block block = readBlockHeader(in); block != null; block = readBlockHeader(in)) {
+            rows += block.rows;
+            skipFully(in, block.compressed.length);
+         }
+      }
+      finally {
+         in.close();
+      }
+      return rows;
+   }
+}
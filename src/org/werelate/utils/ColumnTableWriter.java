@@ -0,0 +1,151 @@
+package org.werelate.utils;
+
+import java.io.*;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a table as one file per column, so readers can load just the columns they need.
+ * A table is a directory holding schema.txt (one "name\ttype" line per column, type int or string) and a name.col file per column.
+ * Each column file is a sequence of blocks of up to BLOCK_ROWS rows, the same rows in every column.
+ * A block is: row count, min value, max value (0 for strings), compressed length, then the deflated values.
+ * Int values are stored as zigzag varints of the difference from the previous value; strings as varint length + UTF-8 bytes.
+ * The min and max let ColumnTableReader skip blocks that can't match a range.
+ */
+public class ColumnTableWriter {
+   public static final int BLOCK_ROWS = 4096;
+   public static final String SCHEMA_FILE = "schema.txt";
+
+   private String[] intColumns;
+   private String[] stringColumns;
+   private DataOutputStream[] intOuts;
+   private DataOutputStream[] stringOuts;
+   private int[][] intBlock;
+   private String[][] stringBlock;
+   private int blockRows;
+   private int numRows;
+   private Deflater deflater;
+   private ByteArrayOutputStream encoded;
+   private byte[] compressBuffer;
+
+   public ColumnTableWriter(File dir, String[] intColumns, String[] stringColumns) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Unable to create " + dir);
+      }
+      this.intColumns = intColumns;
+      this.stringColumns = stringColumns;
+      PrintWriter schema = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, SCHEMA_FILE)), "UTF-8"));
+      for (String column : intColumns) {
+         schema.println(column + "\tint");
+      }
+      for (String column : stringColumns) {
+         schema.println(column + "\tstring");
+      }
+      schema.close();
+      intOuts = new DataOutputStream[intColumns.length];
+      for (int i = 0; i < intColumns.length; i++) {
+         intOuts[i] = open(dir, intColumns[i]);
+      }
+      stringOuts = new DataOutputStream[stringColumns.length];
+      for (int i = 0; i < stringColumns.length; i++) {
+         stringOuts[i] = open(dir, stringColumns[i]);
+      }
+      intBlock = new int[intColumns.length][BLOCK_ROWS];
+      stringBlock = new String[stringColumns.length][BLOCK_ROWS];
+      blockRows = 0;
+      numRows = 0;
+      deflater = new Deflater();
+      encoded = new ByteArrayOutputStream();
+      compressBuffer = new byte[65536];
+   }
+
+   private static DataOutputStream open(File dir, String column) throws IOException {
+      return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, column + ".col")), 65536));
+   }
+
+   /**
+    * Add a row; the values are in the order the columns were given to the constructor
+    */
+   public void addRow(int[] ints, String[] strings) throws IOException {
+      for (int i = 0; i < intColumns.length; i++) {
+         intBlock[i][blockRows] = ints[i];
+      }
+      for (int i = 0; i < stringColumns.length; i++) {
+         stringBlock[i][blockRows] = (strings[i] == null ? "" : strings[i]);
+      }
+      blockRows++;
+      numRows++;
+      if (blockRows == BLOCK_ROWS) {
+         writeBlock();
+      }
+   }
+
+   public int getNumRows() {
+      return numRows;
+   }
+
+   static void writeVarint(OutputStream out, int n) throws IOException {
+      while ((n & ~0x7F) != 0) {
+         out.write((n & 0x7F) | 0x80);
+         n >>>= 7;
+      }
+      out.write(n);
+   }
+
+   private void writeBlock() throws IOException {
+      for (int i = 0; i < intColumns.length; i++) {
+         int[] values = intBlock[i];
+         int min = Integer.MAX_VALUE;
+         int max = Integer.MIN_VALUE;
+         int prev = 0;
+         encoded.reset();
+         for (int r = 0; r < blockRows; r++) {
+            int delta = values[r] - prev;
+            writeVarint(encoded, (delta << 1) ^ (delta >> 31));
+            prev = values[r];
+            min = Math.min(min, values[r]);
+            max = Math.max(max, values[r]);
+         }
+         writeBlock(intOuts[i], min, max);
+      }
+      for (int i = 0; i < stringColumns.length; i++) {
+         encoded.reset();
+         for (int r = 0; r < blockRows; r++) {
+            byte[] bytes = stringBlock[i][r].getBytes("UTF-8");
+            writeVarint(encoded, bytes.length);
+            encoded.write(bytes);
+            stringBlock[i][r] = null;
+         }
+         writeBlock(stringOuts[i], 0, 0);
+      }
+      blockRows = 0;
+   }
+
+   private void writeBlock(DataOutputStream out, int min, int max) throws IOException {
+      deflater.reset();
+      deflater.setInput(encoded.toByteArray());
+      deflater.finish();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      while (!deflater.finished()) {
+         int len = deflater.deflate(compressBuffer);
+         compressed.write(compressBuffer, 0, len);
+      }
+      out.writeInt(blockRows);
+      out.writeInt(min);
+      out.writeInt(max);
+      out.writeInt(compressed.size());
+      compressed.writeTo(out);
+   }
+
+   public void close() throws IOException {
+      if (blockRows > 0) {
+         writeBlock();
+      }
+      for (DataOutputStream out : intOuts) {
+         out.close();
+      }
+      for (DataOutputStream out : stringOuts) {
+         out.close();
+      }
+      deflater.end();
+   }
+}
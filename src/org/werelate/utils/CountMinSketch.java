@@ -0,0 +1,75 @@
+package org.werelate.utils;
+
+/**
+ * Count-min sketch: estimates the count of a string in fixed memory.
+ * An estimate is never below the true count, as long as no negative counts are added;
+ * with width w it is at most about 2*total/w too high, except with probability 2^-depth.
+ * Updates are conservative: a cell is raised only as far as the key's new estimate.
+ */
+public class CountMinSketch {
+   private int[][] rows;
+   private int mask;
+
+   /**
+    * @param width cells per row, rounded up to a power of 2
+    * @param depth number of rows (hash functions)
+    */
+   public CountMinSketch(int width, int depth) {
+      int w = 1;
+      while (w < width) {
+         w *= 2;
+      }
+      rows = new int[depth][w];
+      mask = w - 1;
+   }
+
+   // FNV-1a over the chars, then the murmur3 finalizer to spread it over all 64 bits
+   private static long hash(String key) {
+      long h = Util.fnv1a(key);
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }
+
+   // row i uses h1 + i*h2, so one hash gives every row's cell
+   private static int cell(long h, int row, int mask) {
+      int h1 = (int)h;
+      int h2 = (int)(h >>> 32) | 1;
+      return (h1 + row * h2) & mask;
+   }
+
+   /**
+    * Add count (>= 0) to the key
+    * @return the key's new estimate
+    */
+   public int add(String key, int count) {
+      if (count < 0) {
+         throw new IllegalArgumentException("Negative count: " + count);
+      }
+      long h = hash(key);
+      int estimate = Integer.MAX_VALUE;
+      for (int i = 0; i < rows.length; i++) {
+         estimate = Math.min(estimate, rows[i][cell(h, i, mask)]);
+      }
+      int newEstimate = (int)Math.min((long)estimate + count, Integer.MAX_VALUE);
+      for (int i = 0; i < rows.length; i++) {
+         int c = cell(h, i, mask);
+         if (rows[i][c] < newEstimate) {
+            rows[i][c] = newEstimate;
+         }
+      }
+      return newEstimate;
+   }
+
+   public int estimate(String key) {
+      long h = hash(key);
+      int estimate = Integer.MAX_VALUE;
+      for (int i = 0; i < rows.length; i++) {
+         estimate = Math.min(estimate, rows[i][cell(h, i, mask)]);
+      }
+      return estimate;
+   }
+}
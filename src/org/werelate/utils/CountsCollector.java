@@ -6,61 +6,114 @@ import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.IOException;
 
+/**
+ * Counts occurrences of strings.
+ * The counts are held in primitive StringIntHashMap stripes, each guarded by its own lock,
+ * so a collector with several stripes can be shared by worker threads; alternatively each thread can
+ * count into its own collector and merge them with addAll.
+ * An approximate collector counts in fixed memory instead, keeping only the most frequent keys,
+ * and can then recount those keys exactly in a second pass over the input.
+ */
 public class CountsCollector {
-   HashMap<String,Counter> hm;
+   private StringIntHashMap[] stripes;
+   private int stripeMask;
+   // set for an approximate collector; volatile so adding threads see beginRecount clear it, and set candidatesOnly first
+   private volatile HeavyHitters approx;
+   // set while recounting: count only the keys already in the stripes
+   private boolean candidatesOnly;
 
-   public class Counter {
-      int count;
-      Counter() {
-         count = 0;
-      }
-      public String toString() {
-         return String.valueOf(count);
+   // the keys and counts of the entries to be written
+   private static class Entries {
+      String[] keys;
+      int[] counts;
+      int size;
+
+      Entries(int capacity) {
+         keys = new String[capacity];
+         counts = new int[capacity];
+         size = 0;
       }
    }
 
-   public int size() {
-       return hm.size();
+   public CountsCollector() {
+      this(1);
    }
 
-   private class ValueComparator implements Comparator {
-      public int compare(Object o1, Object o2) {
-         Map.Entry me1 = (Map.Entry)o1;
-         Map.Entry me2 = (Map.Entry)o2;
-         if (((Counter)me1.getValue()).count < ((Counter)me2.getValue()).count ||
-             (((Counter)me1.getValue()).count == ((Counter)me2.getValue()).count &&
-              ((String)me1.getKey()).compareTo((String)me2.getKey()) < 0)) {
-            return 1;
-         }
-         else {
-            return -1;
-         }
+   /**
+    * @param numStripes number of separately-locked tables, rounded up to a power of 2;
+    * use about 4 per thread when the collector is shared by threads
+    */
+   public CountsCollector(int numStripes) {
+      int n = 1;
+      while (n < numStripes) {
+         n *= 2;
       }
-
-      public boolean equals(Object o1, Object o2) {
-         Map.Entry me1 = (Map.Entry)o1;
-         Map.Entry me2 = (Map.Entry)o2;
-         return (((Counter)me1.getValue()).count == ((Counter)me2.getValue()).count &&
-                 ((String)me1.getKey()).equals((String)me2.getKey()));
+      stripes = new StringIntHashMap[n];
+      for (int i = 0; i < n; i++) {
+         stripes[i] = new StringIntHashMap();
       }
+      stripeMask = n - 1;
+      approx = null;
+      candidatesOnly = false;
    }
 
-   private class KeyComparator implements Comparator {
-      public int compare(Object o1, Object o2) {
-         Map.Entry me1 = (Map.Entry)o1;
-         Map.Entry me2 = (Map.Entry)o2;
-         return (((String)me1.getKey()).compareTo((String)me2.getKey()));
-      }
+   /**
+    * Return a collector that keeps estimated counts for about the capacity most frequent keys in fixed memory (see HeavyHitters).
+    * Estimates are never low; a kept key's count can be high by up to the lowest kept count plus the sketch's error,
+    * so keys near the lowest kept count may be missing. Counts must not be negative.
+    * Updates share one lock, so prefer one collector per thread.
+    */
+   public static CountsCollector approximate(int capacity) {
+      return approximate(capacity, capacity * 8, 4);
+   }
+
+   /**
+    * @param capacity number of keys to keep
+    * @param sketchWidth cells per count-min sketch row; estimates are high by about 2*total/sketchWidth at most
+    * @param sketchDepth number of count-min sketch rows
+    */
+   public static CountsCollector approximate(int capacity, int sketchWidth, int sketchDepth) {
+      CountsCollector cc = new CountsCollector(1);
+      cc.approx = new HeavyHitters(capacity, sketchWidth, sketchDepth);
+      return cc;
+   }
 
-      public boolean equals(Object o1, Object o2) {
-         Map.Entry me1 = (Map.Entry)o1;
-         Map.Entry me2 = (Map.Entry)o2;
-         return (((String)me1.getKey()).equals((String)me2.getKey()));
+   /**
+    * Switch an approximate collector to exact counts of the keys it has kept, starting from zero.
+    * Add the same input again; keys that weren't kept are ignored.
+    */
+   public void beginRecount() {
+      if (approx == null) {
+         throw new IllegalStateException("Not an approximate collector");
+      }
+      synchronized (approx) {
+         for (int i = 0; i < approx.size(); i++) {
+            getStripe(approx.keyAt(i)).put(approx.keyAt(i), 0);
+         }
       }
+      candidatesOnly = true;
+      approx = null;
    }
 
-   public CountsCollector() {
-      hm = new HashMap<String,Counter>();
+   // use the high bits of the hash; StringIntHashMap uses the low bits
+   private StringIntHashMap getStripe(String key) {
+      return stripes[((key.hashCode() * 0x85EBCA6B) >>> 24) & stripeMask];
+   }
+
+   public int size() {
+      HeavyHitters approx = this.approx;
+      if (approx != null) {
+         synchronized (approx) {
+            return approx.size();
+         }
+      }
+      int size = 0;
+      for (StringIntHashMap stripe : stripes) {
+         synchronized (stripe) {
+            size += stripe.size();
+         }
+      }
+      return size;
    }
 
    public void add(String key) {
@@ -69,31 +122,59 @@ public class CountsCollector {
 
    public void add(String key, int count) {
       if (key != null) {
-         Counter c = (Counter)hm.get(key);
-         if (c == null) {
-            c = new Counter();
-            hm.put(key, c);
+         HeavyHitters approx = this.approx;
+         if (approx != null) {
+            synchronized (approx) {
+               approx.add(key, count);
+            }
+            return;
+         }
+         StringIntHashMap stripe = getStripe(key);
+         synchronized (stripe) {
+            if (!candidatesOnly || stripe.containsKey(key)) {
+               stripe.add(key, count);
+            }
          }
-         c.count += count;
       }
    }
 
    public void remove(String key) {
-      hm.remove(key);
+      HeavyHitters approx = this.approx;
+      if (approx != null) {
+         synchronized (approx) {
+            approx.remove(key);
+         }
+         return;
+      }
+      StringIntHashMap stripe = getStripe(key);
+      synchronized (stripe) {
+         stripe.remove(key);
+      }
    }
 
    public int getCount(String key) {
-      Counter c = (Counter)hm.get(key);
-      if (c == null) {
-         return 0;
+      HeavyHitters approx = this.approx;
+      if (approx != null) {
+         synchronized (approx) {
+            return approx.getCount(key);
+         }
       }
-      else {
-         return c.count;
+      StringIntHashMap stripe = getStripe(key);
+      synchronized (stripe) {
+         return stripe.get(key);
       }
    }
 
+   /**
+    * Returns a copy of the keys
+    */
    public Set<String> getKeys() {
-      return hm.keySet();
+      Entries entries = getEntries(Integer.MIN_VALUE);
+      Set<String> keys = new HashSet<String>();
+      for (int i = 0; i < entries.size; i++) {
+         keys.add(entries.keys[i]);
+      }
+      return keys;
    }
 
    public void addAll(Set<String> keys) {
@@ -103,28 +184,112 @@ public class CountsCollector {
       }
    }
 
+   /**
+    * Add the counts from another collector, for example one filled by a single thread
+    */
+   public void addAll(CountsCollector other) {
+      Entries entries = other.getEntries(Integer.MIN_VALUE);
+      for (int i = 0; i < entries.size; i++) {
+         add(entries.keys[i], entries.counts[i]);
+      }
+   }
+
+   private Entries getEntries(int minCount) {
+      HeavyHitters approx = this.approx;
+      if (approx != null) {
+         synchronized (approx) {
+            Entries entries = new Entries(approx.size());
+            for (int i = 0; i < approx.size(); i++) {
+               if (approx.countAt(i) >= minCount) {
+                  entries.keys[entries.size] = approx.keyAt(i);
+                  entries.counts[entries.size] = approx.countAt(i);
+                  entries.size++;
+               }
+            }
+            return entries;
+         }
+      }
+      Entries entries = new Entries(size());
+      for (StringIntHashMap stripe : stripes) {
+         synchronized (stripe) {
+            for (int i = 0; i < stripe.capacity(); i++) {
+               if (stripe.keyAt(i) != null && stripe.valueAt(i) >= minCount) {
+                  if (entries.size == entries.keys.length) {
+                     // keys were added since size() was read
+                     entries.keys = Arrays.copyOf(entries.keys, entries.size * 2 + 1);
+                     entries.counts = Arrays.copyOf(entries.counts, entries.size * 2 + 1);
+                  }
+                  entries.keys[entries.size] = stripe.keyAt(i);
+                  entries.counts[entries.size] = stripe.valueAt(i);
+                  entries.size++;
+               }
+            }
+         }
+      }
+      return entries;
+   }
+
+   /**
+    * Sort the specified entries descending by count, then descending by key
+    */
+   private static void sortByCount(Entries entries, int[] indexes, int n, String[] keys, int[] counts) {
+      // the count goes in the high half, so sorting the longs orders by count, then by index
+      long[] order = new long[n];
+      for (int i = 0; i < n; i++) {
+         order[i] = ((long)-entries.counts[indexes[i]] << 32) | indexes[i];
+      }
+      Arrays.sort(order);
+      for (int i = 0; i < n; i++) {
+         int index = (int)order[i];
+         keys[i] = entries.keys[index];
+         counts[i] = entries.counts[index];
+      }
+      // then sort the keys within each run of equal counts
+      int start = 0;
+      for (int i = 1; i <= n; i++) {
+         if (i == n || counts[i] != counts[start]) {
+            if (i - start > 1) {
+               Arrays.sort(keys, start, i, Collections.reverseOrder());
+            }
+            start = i;
+         }
+      }
+   }
+
+   // true if entry i would be written after entry j
+   private static boolean isAfter(Entries entries, int i, int j) {
+      return entries.counts[i] < entries.counts[j] ||
+             (entries.counts[i] == entries.counts[j] && entries.keys[i].compareTo(entries.keys[j]) < 0);
+   }
+
    /**
     * Returns the collection sorted and filtered
-    * @param byKey if true, sort by key; otherwise sort descending by count
+    * @param byKey if true, sort by key; otherwise sort descending by count, then descending by key
     * @param minCount only include items >= minCount
     */
-   public SortedSet getSortedSet(boolean byKey, int minCount) {
-   	  Comparator comp;
+   public SortedSet<Map.Entry<String,Integer>> getSortedSet(boolean byKey, int minCount) {
+      Comparator<Map.Entry<String,Integer>> comp;
       if (byKey) {
-         comp = new KeyComparator();
+         comp = new Comparator<Map.Entry<String,Integer>>() {
+            public int compare(Map.Entry<String,Integer> me1, Map.Entry<String,Integer> me2) {
+               return me1.getKey().compareTo(me2.getKey());
+            }
+         };
       }
       else {
-         comp = new ValueComparator();
+         comp = new Comparator<Map.Entry<String,Integer>>() {
+            public int compare(Map.Entry<String,Integer> me1, Map.Entry<String,Integer> me2) {
+               int cmp = me2.getValue().compareTo(me1.getValue());
+               return cmp != 0 ? cmp : me2.getKey().compareTo(me1.getKey());
+            }
+         };
       }
-   	  SortedSet ss = new TreeSet(comp);
-   	  Iterator iter = hm.entrySet().iterator();
-   	  while (iter.hasNext()) {
-   	  	Map.Entry entry = (Map.Entry)iter.next();
-   	  	if (((Counter)entry.getValue()).count >= minCount) {
-   	  		ss.add(entry);
-   	  	}
-   	  }
-   	  return ss;
+      SortedSet<Map.Entry<String,Integer>> ss = new TreeSet<Map.Entry<String,Integer>>(comp);
+      Entries entries = getEntries(minCount);
+      for (int i = 0; i < entries.size; i++) {
+         ss.add(new AbstractMap.SimpleImmutableEntry<String,Integer>(entries.keys[i], entries.counts[i]));
+      }
+      return ss;
    }
 
    /**
@@ -134,28 +299,103 @@ public class CountsCollector {
     * @param writer PrintWriter to write to
     */
    public void writeSorted(boolean byKey, int minCount, PrintWriter writer) {
-      // add all entries in the hash map appearing at least minCount times into the sorted set
-      SortedSet ss = getSortedSet(byKey, minCount);
-      Iterator iter = ss.iterator();
-      while (iter.hasNext()) {
-         Map.Entry entry = (Map.Entry)iter.next();
-         writer.println((String)entry.getKey() + "\t" + entry.getValue());
+      Entries entries = getEntries(minCount);
+      String[] keys = new String[entries.size];
+      int[] counts = new int[entries.size];
+      if (byKey) {
+         // keys are unique, so sorting them alone is enough
+         System.arraycopy(entries.keys, 0, keys, 0, entries.size);
+         Arrays.sort(keys);
+         StringIntHashMap countMap = new StringIntHashMap(entries.size);
+         for (int i = 0; i < entries.size; i++) {
+            countMap.put(entries.keys[i], entries.counts[i]);
+         }
+         for (int i = 0; i < keys.length; i++) {
+            counts[i] = countMap.get(keys[i]);
+         }
+      }
+      else {
+         int[] indexes = new int[entries.size];
+         for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+         }
+         sortByCount(entries, indexes, entries.size, keys, counts);
+      }
+      for (int i = 0; i < keys.length; i++) {
+         writer.println(keys[i] + "\t" + counts[i]);
       }
       writer.flush();
    }
 
-   // 0=file to read, 1=min count
-   public static void main(String[] args) throws IOException
-   {
-      CountsCollector cc = new CountsCollector();
+   /**
+    * Write the k entries having the highest counts, descending by count
+    * @param k number of entries to write
+    * @param minCount write out only those entries having count >= minCount
+    * @param writer PrintWriter to write to
+    */
+   public void writeTop(int k, int minCount, PrintWriter writer) {
+      Entries entries = getEntries(minCount);
+      // min-heap of the best k entries seen so far; heap[0] is the one that would be written last
+      int[] heap = new int[Math.min(k, entries.size)];
+      int n = 0;
+      for (int i = 0; i < entries.size; i++) {
+         int pos;
+         if (n < heap.length) {
+            pos = n++;
+            while (pos > 0 && isAfter(entries, i, heap[(pos - 1) / 2])) {
+               heap[pos] = heap[(pos - 1) / 2];
+               pos = (pos - 1) / 2;
+            }
+            heap[pos] = i;
+         }
+         else if (n > 0 && isAfter(entries, heap[0], i)) {
+            pos = 0;
+            while (2 * pos + 1 < n) {
+               int child = 2 * pos + 1;
+               if (child + 1 < n && isAfter(entries, heap[child + 1], heap[child])) {
+                  child++;
+               }
+               if (!isAfter(entries, heap[child], i)) {
+                  break;
+               }
+               heap[pos] = heap[child];
+               pos = child;
+            }
+            heap[pos] = i;
+         }
+      }
+      String[] keys = new String[n];
+      int[] counts = new int[n];
+      sortByCount(entries, heap, n, keys, counts);
+      for (int i = 0; i < n; i++) {
+         writer.println(keys[i] + "\t" + counts[i]);
+      }
+      writer.flush();
+   }
 
-      BufferedReader in = new BufferedReader(new FileReader(args[0]));
-      int minCount = Integer.parseInt(args[1]);
+   private static void addLines(CountsCollector cc, String filename) throws IOException {
+      BufferedReader in = new BufferedReader(new FileReader(filename));
       while (in.ready()) {
          String line = in.readLine();
          cc.add(line.trim());
       }
       in.close();
+   }
+
+   // 0=file to read, 1=min count [2=approximate: number of keys to keep, then recount them exactly]
+   public static void main(String[] args) throws IOException
+   {
+      CountsCollector cc;
+      if (args.length > 2) {
+         cc = CountsCollector.approximate(Integer.parseInt(args[2]));
+         addLines(cc, args[0]);
+         cc.beginRecount();
+      }
+      else {
+         cc = new CountsCollector();
+      }
+      int minCount = Integer.parseInt(args[1]);
+      addLines(cc, args[0]);
       cc.writeSorted(false, minCount, new PrintWriter(System.out));
    }
 }
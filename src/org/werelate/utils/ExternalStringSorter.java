@@ -0,0 +1,216 @@
+package org.werelate.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts and de-duplicates a stream of strings that may not fit in memory.
+ * Strings are buffered until the memory budget is reached, then written as a sorted, de-duplicated run to a temp file.
+ * Merging the runs returns the distinct strings in String.compareTo order, the same order a TreeSet would use.
+ */
+public class ExternalStringSorter {
+   private static final Logger logger = LogManager.getLogger("org.werelate.utils");
+
+   // approximate heap overhead of a buffered String beyond its characters
+   private static final int STRING_OVERHEAD = 64;
+   private static final int BUFFER_SIZE = 65536;
+
+   private long memoryBudget;
+   private File tempDir;
+   private List<String> buffer;
+   private long bufferedBytes;
+   private boolean bufferSorted;
+   private List<File> runs;
+
+   /**
+    * @param memoryBudget approximate number of bytes of strings to buffer before spilling a run to disk
+    * @param tempDir directory for run files; null for the default temp directory
+    */
+   public ExternalStringSorter(long memoryBudget, File tempDir) {
+      this.memoryBudget = memoryBudget;
+      this.tempDir = tempDir;
+      this.buffer = new ArrayList<String>();
+      this.bufferedBytes = 0;
+      this.bufferSorted = true;
+      this.runs = new ArrayList<File>();
+   }
+
+   public void add(String s) throws IOException {
+      buffer.add(s);
+      bufferSorted = false;
+      bufferedBytes += 2L * s.length() + STRING_OVERHEAD;
+      if (bufferedBytes >= memoryBudget) {
+         spill();
+      }
+   }
+
+   private void sortBuffer() {
+      if (!bufferSorted) {
+         Collections.sort(buffer);
+         int numDistinct = 0;
+         for (int i = 0; i < buffer.size(); i++) {
+            if (numDistinct == 0 || !buffer.get(i).equals(buffer.get(numDistinct-1))) {
+               buffer.set(numDistinct++, buffer.get(i));
+            }
+         }
+         buffer.subList(numDistinct, buffer.size()).clear();
+         bufferSorted = true;
+      }
+   }
+
+   private void spill() throws IOException {
+      sortBuffer();
+      File run = File.createTempFile("sortrun", ".tmp", tempDir);
+      run.deleteOnExit();
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+      try {
+         for (String s : buffer) {
+            out.writeUTF(s);
+         }
+      }
+      finally {
+         out.close();
+      }
+      logger.info("Wrote sort run " + runs.size() + ": " + buffer.size() + " strings");
+      runs.add(run);
+      buffer = new ArrayList<String>();
+      bufferedBytes = 0;
+   }
+
+   /**
+    * Return the number of distinct strings added
+    */
+   public int countDistinct() throws IOException {
+      int cnt = 0;
+      Merger merger = merge();
+      try {
+         while (merger.next() != null) {
+            cnt++;
+         }
+      }
+      finally {
+         merger.close();
+      }
+      return cnt;
+   }
+
+   /**
+    * Return a merger over the distinct strings added so far, in sorted order.
+    * May be called more than once; strings added after this call are not returned.
+    */
+   public Merger merge() throws IOException {
+      sortBuffer();
+      return new Merger();
+   }
+
+   /**
+    * Delete the run files
+    */
+   public void delete() {
+      for (File run : runs) {
+         if (!run.delete()) {
+            logger.warn("Unable to delete " + run);
+         }
+      }
+      runs.clear();
+      buffer.clear();
+      bufferedBytes = 0;
+   }
+
+   private static class Cursor implements Comparable<Cursor> {
+      private DataInputStream in;
+      private List<String> list;
+      private int pos;
+      private String head;
+
+      Cursor(DataInputStream in) {
+         this.in = in;
+      }
+
+      Cursor(List<String> list) {
+         this.list = list;
+         this.pos = 0;
+      }
+
+      boolean advance() throws IOException {
+         if (list != null) {
+            head = (pos < list.size() ? list.get(pos++) : null);
+         }
+         else {
+            try {
+               head = in.readUTF();
+            } catch (EOFException e) {
+               head = null;
+            }
+         }
+         return head != null;
+      }
+
+      void close() throws IOException {
+         if (in != null) {
+            in.close();
+         }
+      }
+
+      public int compareTo(Cursor c) {
+         return head.compareTo(c.head);
+      }
+   }
+
+   public class Merger {
+      private PriorityQueue<Cursor> queue;
+      private List<Cursor> cursors;
+      private String last;
+
+      private Merger() throws IOException {
+         queue = new PriorityQueue<Cursor>(runs.size()+1);
+         cursors = new ArrayList<Cursor>(runs.size()+1);
+         try {
+            for (File run : runs) {
+               cursors.add(new Cursor(new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE))));
+            }
+         } catch (IOException e) {
+            close();
+            throw e;
+         }
+         cursors.add(new Cursor(buffer));
+         for (Cursor cursor : cursors) {
+            if (cursor.advance()) {
+               queue.add(cursor);
+            }
+         }
+         last = null;
+      }
+
+      /**
+       * Return the next distinct string, or null when all strings have been returned
+       */
+      public String next() throws IOException {
+         while (!queue.isEmpty()) {
+            Cursor cursor = queue.poll();
+            String s = cursor.head;
+            if (cursor.advance()) {
+               queue.add(cursor);
+            }
+            if (last == null || !s.equals(last)) {
+               last = s;
+               return s;
+            }
+         }
+         return null;
+      }
+
+      public void close() throws IOException {
+         for (Cursor cursor : cursors) {
+            cursor.close();
+         }
+         queue.clear();
+      }
+   }
+}
@@ -0,0 +1,127 @@
+package org.werelate.utils;
+
+/**
+ * Tracks the most frequent strings of a stream in fixed memory.
+ * Every key is counted in a CountMinSketch, and up to capacity candidates are kept in a min-heap by estimated count.
+ * As in the space-saving algorithm, a key that isn't a candidate replaces the candidate with the lowest count
+ * once its own estimate exceeds it, so the candidates approximate the top keys rather than being exactly the top keys.
+ * Counts are estimates and never low; a candidate's count can be high by up to the lowest candidate count
+ * plus the sketch's error, so keys near the lowest candidate count may be missing or may rank in the wrong order.
+ * Not thread-safe.
+ */
+public class HeavyHitters {
+   private CountMinSketch sketch;
+   // min-heap of the candidates by count
+   private String[] keys;
+   private int[] counts;
+   private int size;
+   // key -> heap position + 1
+   private StringIntHashMap positions;
+
+   /**
+    * @param capacity number of candidates to keep
+    * @param sketchWidth cells per sketch row
+    * @param sketchDepth number of sketch rows
+    */
+   public HeavyHitters(int capacity, int sketchWidth, int sketchDepth) {
+      sketch = new CountMinSketch(sketchWidth, sketchDepth);
+      keys = new String[capacity];
+      counts = new int[capacity];
+      size = 0;
+      positions = new StringIntHashMap(capacity);
+   }
+
+   public void add(String key, int count) {
+      int estimate = sketch.add(key, count);
+      int pos = positions.get(key) - 1;
+      if (pos >= 0) {
+         counts[pos] = estimate;
+         siftDown(pos);
+      }
+      else if (size < keys.length) {
+         set(size++, key, estimate);
+         siftUp(size - 1);
+      }
+      else if (size > 0 && estimate > counts[0]) {
+         positions.remove(keys[0]);
+         set(0, key, estimate);
+         siftDown(0);
+      }
+   }
+
+   /**
+    * Return the estimated count of the key, whether or not it is a candidate
+    */
+   public int getCount(String key) {
+      int pos = positions.get(key) - 1;
+      return pos >= 0 ? counts[pos] : sketch.estimate(key);
+   }
+
+   /**
+    * Stop tracking the key; it can become a candidate again if it is added again
+    */
+   public boolean remove(String key) {
+      int pos = positions.get(key) - 1;
+      if (pos < 0) {
+         return false;
+      }
+      positions.remove(key);
+      size--;
+      if (pos < size) {
+         set(pos, keys[size], counts[size]);
+         siftDown(pos);
+         siftUp(pos);
+      }
+      keys[size] = null;
+      return true;
+   }
+
+   /**
+    * Number of candidates
+    */
+   public int size() {
+      return size;
+   }
+
+   public String keyAt(int i) {
+      return keys[i];
+   }
+
+   public int countAt(int i) {
+      return counts[i];
+   }
+
+   private void set(int pos, String key, int count) {
+      keys[pos] = key;
+      counts[pos] = count;
+      positions.put(key, pos + 1);
+   }
+
+   private void siftUp(int pos) {
+      String key = keys[pos];
+      int count = counts[pos];
+      while (pos > 0 && count < counts[(pos - 1) / 2]) {
+         int parent = (pos - 1) / 2;
+         set(pos, keys[parent], counts[parent]);
+         pos = parent;
+      }
+      set(pos, key, count);
+   }
+
+   private void siftDown(int pos) {
+      String key = keys[pos];
+      int count = counts[pos];
+      while (2 * pos + 1 < size) {
+         int child = 2 * pos + 1;
+         if (child + 1 < size && counts[child + 1] < counts[child]) {
+            child++;
+         }
+         if (counts[child] >= count) {
+            break;
+         }
+         set(pos, keys[child], counts[child]);
+         pos = child;
+      }
+      set(pos, key, count);
+   }
+}
@@ -0,0 +1,128 @@
+package org.werelate.utils;
+
+import java.util.Arrays;
+
+/**
+ * Directed graph over nodes 0..n-1, stored as parallel edge arrays and compacted into adjacency arrays on first use.
+ * Strongly-connected components are found with an iterative version of Tarjan's algorithm, so deep graphs don't overflow the stack.
+ */
+public class IntGraph {
+   private int numNodes;
+   private int numEdges;
+   private int[] edgeFrom;
+   private int[] edgeTo;
+   // adjacency: the targets of node i are targets[starts[i]] .. targets[starts[i+1]-1], in the order the edges were added
+   private int[] starts;
+   private int[] targets;
+
+   public IntGraph(int numNodes) {
+      this.numNodes = numNodes;
+      this.numEdges = 0;
+      this.edgeFrom = new int[Math.max(16, numNodes)];
+      this.edgeTo = new int[edgeFrom.length];
+   }
+
+   public int getNumNodes() {
+      return numNodes;
+   }
+
+   /**
+    * @return the edge number
+    */
+   public int addEdge(int from, int to) {
+      if (numEdges == edgeFrom.length) {
+         edgeFrom = Arrays.copyOf(edgeFrom, numEdges * 2);
+         edgeTo = Arrays.copyOf(edgeTo, numEdges * 2);
+      }
+      edgeFrom[numEdges] = from;
+      edgeTo[numEdges] = to;
+      starts = null;
+      return numEdges++;
+   }
+
+   public int getEdgeFrom(int edge) {
+      return edgeFrom[edge];
+   }
+
+   public int getEdgeTo(int edge) {
+      return edgeTo[edge];
+   }
+
+   private void compact() {
+      if (starts != null) {
+         return;
+      }
+      starts = new int[numNodes + 1];
+      for (int e = 0; e < numEdges; e++) {
+         starts[edgeFrom[e] + 1]++;
+      }
+      for (int i = 0; i < numNodes; i++) {
+         starts[i + 1] += starts[i];
+      }
+      targets = new int[numEdges];
+      int[] next = Arrays.copyOf(starts, numNodes);
+      for (int e = 0; e < numEdges; e++) {
+         targets[next[edgeFrom[e]]++] = edgeTo[e];
+      }
+   }
+
+   /**
+    * Return the strongly-connected component number of each node.
+    * Two nodes have the same number iff each can reach the other; a node on a cycle shares its number with the rest of the cycle.
+    */
+   public int[] getComponents() {
+      compact();
+      int[] index = new int[numNodes];         // dfs order + 1; 0 = not visited
+      int[] lowLink = new int[numNodes];
+      int[] component = new int[numNodes];
+      Arrays.fill(component, -1);
+      int[] stack = new int[numNodes];         // nodes not yet assigned to a component
+      int stackSize = 0;
+      int[] callNode = new int[numNodes];      // dfs call stack: node, and the next edge to follow
+      int[] callEdge = new int[numNodes];
+      int nextIndex = 1;
+      int numComponents = 0;
+
+      for (int root = 0; root < numNodes; root++) {
+         if (index[root] != 0) {
+            continue;
+         }
+         int depth = 0;
+         callNode[0] = root;
+         callEdge[0] = starts[root];
+         index[root] = lowLink[root] = nextIndex++;
+         stack[stackSize++] = root;
+         while (depth >= 0) {
+            int node = callNode[depth];
+            if (callEdge[depth] < starts[node + 1]) {
+               int target = targets[callEdge[depth]++];
+               if (index[target] == 0) {
+                  depth++;
+                  callNode[depth] = target;
+                  callEdge[depth] = starts[target];
+                  index[target] = lowLink[target] = nextIndex++;
+                  stack[stackSize++] = target;
+               }
+               else if (component[target] < 0 && index[target] < lowLink[node]) {
+                  lowLink[node] = index[target];
+               }
+            }
+            else {
+               if (lowLink[node] == index[node]) {
+                  int member;
+                  do {
+                     member = stack[--stackSize];
+                     component[member] = numComponents;
+                  } while (member != node);
+                  numComponents++;
+               }
+               depth--;
+               if (depth >= 0 && lowLink[node] < lowLink[callNode[depth]]) {
+                  lowLink[callNode[depth]] = lowLink[node];
+               }
+            }
+         }
+      }
+      return component;
+   }
+}
@@ -0,0 +1,245 @@
+package org.werelate.utils;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Finds which classes have a keyword in a text, as whole words, in one pass over the text.
+ * Each class is given as a keyword alternation "k1|k2|..." and matches a text iff Pattern "\b(k1|k2|...)\b" finds a match in it.
+ * Word boundaries follow java.util.regex before Java 19, by code point: a non-spacing mark after a letter or digit
+ * counts as a word character.
+ * The keywords of all classes go into one Aho-Corasick automaton; a class whose alternation uses other regex syntax is matched
+ * with its regex instead.
+ * A classifier is safe to share between threads once it has been built.
+ */
+public class KeywordClassifier {
+   private static final String REGEX_CHARS = "\\.[]{}()*+?^$";
+
+   private int numClasses;
+   // trie: the children of node n are children[n], labeled labels[n], sorted by label
+   private List<char[]> labelList;
+   private List<int[]> childList;
+   private volatile char[][] labels;   // set last by build
+   private int[][] children;
+   // fail[n] = node for the longest proper suffix of n's string that is in the trie;
+   // dictLink[n] = nearest node along the fail chain that ends a keyword, or -1
+   private int[] fail;
+   private int[] dictLink;
+   // keywords ending at each node: (keyword length, class) pairs
+   private List<int[]> outputList;
+   private int[][] outputs;
+   private List<Integer> regexClasses;
+   private List<Pattern> regexes;
+
+   public KeywordClassifier() {
+      numClasses = 0;
+      labelList = new ArrayList<char[]>();
+      childList = new ArrayList<int[]>();
+      outputList = new ArrayList<int[]>();
+      regexClasses = new ArrayList<Integer>();
+      regexes = new ArrayList<Pattern>();
+      newNode();
+   }
+
+   private int newNode() {
+      labelList.add(new char[0]);
+      childList.add(new int[0]);
+      outputList.add(new int[0]);
+      return childList.size() - 1;
+   }
+
+   private int getChild(char[] nodeLabels, int[] nodeChildren, char c) {
+      int i = Arrays.binarySearch(nodeLabels, c);
+      return i < 0 ? -1 : nodeChildren[i];
+   }
+
+   /**
+    * Add a class with the specified keyword alternation, which should be in the same case as the texts to classify
+    * @return the class number
+    */
+   public int addClass(String keywords) {
+      if (labels != null) {
+         throw new IllegalStateException("Classifier already built");
+      }
+      int classId = numClasses++;
+      boolean literal = true;
+      for (String keyword : keywords.split("\\|", -1)) {
+         if (keyword.length() == 0) {
+            literal = false;
+         }
+      }
+      for (int i = 0; literal && i < keywords.length(); i++) {
+         if (REGEX_CHARS.indexOf(keywords.charAt(i)) >= 0) {
+            literal = false;
+         }
+      }
+      if (!literal) {
+         regexClasses.add(classId);
+         regexes.add(Pattern.compile("\\b("+keywords+")\\b"));
+         return classId;
+      }
+      for (String keyword : keywords.split("\\|")) {
+         int node = 0;
+         for (int i = 0; i < keyword.length(); i++) {
+            char c = keyword.charAt(i);
+            char[] nodeLabels = labelList.get(node);
+            int[] nodeChildren = childList.get(node);
+            int pos = Arrays.binarySearch(nodeLabels, c);
+            if (pos >= 0) {
+               node = nodeChildren[pos];
+            }
+            else {
+               pos = -pos - 1;
+               int child = newNode();
+               labelList.set(node, insert(nodeLabels, pos, c));
+               childList.set(node, insert(nodeChildren, pos, child));
+               node = child;
+            }
+         }
+         int[] output = outputList.get(node);
+         output = Arrays.copyOf(output, output.length + 2);
+         output[output.length - 2] = keyword.length();
+         output[output.length - 1] = classId;
+         outputList.set(node, output);
+      }
+      return classId;
+   }
+
+   private static char[] insert(char[] a, int pos, char c) {
+      char[] result = new char[a.length + 1];
+      System.arraycopy(a, 0, result, 0, pos);
+      result[pos] = c;
+      System.arraycopy(a, pos, result, pos + 1, a.length - pos);
+      return result;
+   }
+
+   private static int[] insert(int[] a, int pos, int n) {
+      int[] result = new int[a.length + 1];
+      System.arraycopy(a, 0, result, 0, pos);
+      result[pos] = n;
+      System.arraycopy(a, pos, result, pos + 1, a.length - pos);
+      return result;
+   }
+
+   public int getNumClasses() {
+      return numClasses;
+   }
+
+   /**
+    * Compute the failure links; called on the first classify
+    */
+   private synchronized void build() {
+      if (labels != null) {
+         return;
+      }
+      int numNodes = childList.size();
+      char[][] nodeLabels = labelList.toArray(new char[numNodes][]);
+      children = childList.toArray(new int[numNodes][]);
+      outputs = outputList.toArray(new int[numNodes][]);
+      fail = new int[numNodes];
+      dictLink = new int[numNodes];
+      dictLink[0] = -1;
+      // breadth-first, so a node's fail link is computed before its children's
+      int[] queue = new int[numNodes];
+      int head = 0;
+      int tail = 0;
+      queue[tail++] = 0;
+      while (head < tail) {
+         int node = queue[head++];
+         for (int i = 0; i < children[node].length; i++) {
+            int child = children[node][i];
+            char c = nodeLabels[node][i];
+            int f = -1;
+            if (node != 0) {
+               for (int n = fail[node]; ; n = fail[n]) {
+                  f = getChild(nodeLabels[n], children[n], c);
+                  if (f >= 0 || n == 0) {
+                     break;
+                  }
+               }
+            }
+            fail[child] = (f < 0 ? 0 : f);
+            dictLink[child] = (outputs[fail[child]].length > 0 ? fail[child] : dictLink[fail[child]]);
+            queue[tail++] = child;
+         }
+      }
+      labelList = null;
+      childList = null;
+      outputList = null;
+      labels = nodeLabels;
+   }
+
+   // word characters for \b in java.util.regex before Java 19: _, letters and digits,
+   // and non-spacing marks that follow (through other marks) a letter or digit
+   private static boolean isWord(String text, int cp, int pos) {
+      return cp == '_' || Character.isLetterOrDigit(cp) ||
+             (Character.getType(cp) == Character.NON_SPACING_MARK && hasBaseCharacter(text, pos));
+   }
+
+   private static boolean hasBaseCharacter(String text, int pos) {
+      for (int i = pos; i >= 0; i--) {
+         int cp = text.codePointAt(i);
+         if (Character.isLetterOrDigit(cp)) {
+            return true;
+         }
+         if (Character.getType(cp) != Character.NON_SPACING_MARK) {
+            return false;
+         }
+      }
+      return false;
+   }
+
+   // whether the code point starting at pos is a word character
+   private static boolean isWordAt(String text, int pos) {
+      return pos < text.length() && isWord(text, text.codePointAt(pos), pos);
+   }
+
+   // whether the code point ending just before pos is a word character
+   private static boolean isWordBefore(String text, int pos) {
+      return pos > 0 && isWord(text, text.codePointBefore(pos), pos - 1);
+   }
+
+   /**
+    * Set the bits of the classes that match the text
+    */
+   public void classify(String text, BitSet matches) {
+      if (labels == null) {
+         build();
+      }
+      char[][] labels = this.labels;
+      int node = 0;
+      for (int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         int next = getChild(labels[node], children[node], c);
+         while (next < 0 && node != 0) {
+            node = fail[node];
+            next = getChild(labels[node], children[node], c);
+         }
+         node = (next < 0 ? 0 : next);
+         if ((outputs[node].length == 0 && dictLink[node] < 0) || isWordBefore(text, i + 1) == isWordAt(text, i + 1)) {
+            continue;
+         }
+         for (int n = (outputs[node].length > 0 ? node : dictLink[node]); n >= 0; n = dictLink[n]) {
+            int[] output = outputs[n];
+            for (int j = 0; j < output.length; j += 2) {
+               int start = i + 1 - output[j];
+               if (isWordBefore(text, start) != isWordAt(text, start)) {
+                  matches.set(output[j + 1]);
+               }
+            }
+         }
+      }
+      for (int i = 0; i < regexes.size(); i++) {
+         int classId = regexClasses.get(i);
+         if (!matches.get(classId) && regexes.get(i).matcher(text).find()) {
+            matches.set(classId);
+         }
+      }
+   }
+
+   public BitSet classify(String text) {
+      BitSet matches = new BitSet(numClasses);
+      classify(text, matches);
+      return matches;
+   }
+}
@@ -0,0 +1,117 @@
+package org.werelate.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from primitive long keys to primitive int values, using linear probing.
+ * Avoids the boxed keys, values, and entry objects of a HashMap&lt;Long,Integer&gt;.
+ */
+public class LongIntHashMap {
+   private static final long EMPTY = Long.MIN_VALUE;
+   private static final float LOAD_FACTOR = 0.6f;
+
+   private long[] keys;
+   private int[] values;
+   private int size;
+   private int threshold;
+   private int missingValue;
+   // EMPTY marks unused slots, so the key EMPTY itself is stored separately
+   private boolean hasEmptyKey;
+   private int emptyKeyValue;
+
+   /**
+    * @param expectedSize number of keys to size the table for
+    * @param missingValue value returned by get for keys not in the map
+    */
+   public LongIntHashMap(int expectedSize, int missingValue) {
+      int capacity = 16;
+      while (capacity * LOAD_FACTOR < expectedSize) {
+         capacity *= 2;
+      }
+      allocate(capacity);
+      this.size = 0;
+      this.missingValue = missingValue;
+      this.hasEmptyKey = false;
+   }
+
+   private void allocate(int capacity) {
+      keys = new long[capacity];
+      Arrays.fill(keys, EMPTY);
+      values = new int[capacity];
+      threshold = (int)(capacity * LOAD_FACTOR);
+   }
+
+   private static int hash(long key) {
+      key *= 0x9E3779B97F4A7C15L;
+      return (int)(key ^ (key >>> 32));
+   }
+
+   private int slot(long key) {
+      int mask = keys.length - 1;
+      int i = hash(key) & mask;
+      while (keys[i] != EMPTY && keys[i] != key) {
+         i = (i + 1) & mask;
+      }
+      return i;
+   }
+
+   public int get(long key) {
+      if (key == EMPTY) {
+         return hasEmptyKey ? emptyKeyValue : missingValue;
+      }
+      int i = slot(key);
+      return keys[i] == EMPTY ? missingValue : values[i];
+   }
+
+   public boolean containsKey(long key) {
+      if (key == EMPTY) {
+         return hasEmptyKey;
+      }
+      return keys[slot(key)] != EMPTY;
+   }
+
+   /**
+    * @return the previous value for the key, or missingValue
+    */
+   public int put(long key, int value) {
+      if (key == EMPTY) {
+         int prev = hasEmptyKey ? emptyKeyValue : missingValue;
+         if (!hasEmptyKey) {
+            size++;
+         }
+         hasEmptyKey = true;
+         emptyKeyValue = value;
+         return prev;
+      }
+      int i = slot(key);
+      if (keys[i] == key) {
+         int prev = values[i];
+         values[i] = value;
+         return prev;
+      }
+      keys[i] = key;
+      values[i] = value;
+      size++;
+      if (size > threshold) {
+         rehash();
+      }
+      return missingValue;
+   }
+
+   private void rehash() {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      allocate(oldKeys.length * 2);
+      for (int i = 0; i < oldKeys.length; i++) {
+         if (oldKeys[i] != EMPTY) {
+            int j = slot(oldKeys[i]);
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+         }
+      }
+   }
+
+   public int size() {
+      return size;
+   }
+}
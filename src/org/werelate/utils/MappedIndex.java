@@ -0,0 +1,68 @@
+package org.werelate.utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Helpers shared by the memory-mapped binary indexes (WordIndex, PlaceAbbrevIndex).
+ * Their keys are stored as a length (short) followed by the UTF-8 bytes, sorted as unsigned bytes.
+ */
+public class MappedIndex {
+   /**
+    * Map the whole file read-only
+    */
+   public static ByteBuffer map(String filename) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(filename, "r");
+      try {
+         FileChannel channel = raf.getChannel();
+         if (channel.size() > Integer.MAX_VALUE) {
+            throw new IOException("Index too large to map: " + filename);
+         }
+         return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      finally {
+         raf.close();
+      }
+   }
+
+   /**
+    * Compare as unsigned bytes; a prefix sorts before the longer keys it prefixes
+    */
+   public static int compareBytes(byte[] a, byte[] b) {
+      int len = Math.min(a.length, b.length);
+      for (int i = 0; i < len; i++) {
+         int c = (a[i] & 0xff) - (b[i] & 0xff);
+         if (c != 0) {
+            return c;
+         }
+      }
+      return a.length - b.length;
+   }
+
+   /**
+    * Compare the key stored at the specified record of buf with the query bytes, in compareBytes order
+    */
+   public static int compareKey(ByteBuffer buf, int record, byte[] query) {
+      int keyLength = buf.getShort(record) & 0xffff;
+      int len = Math.min(keyLength, query.length);
+      for (int i = 0; i < len; i++) {
+         int c = (buf.get(record + 2 + i) & 0xff) - (query[i] & 0xff);
+         if (c != 0) {
+            return c;
+         }
+      }
+      return keyLength - query.length;
+   }
+
+   /**
+    * Return the offset, which is the size of a DataOutputStream, or throw if the size has wrapped past Integer.MAX_VALUE
+    */
+   public static int checkOffset(int offset) throws IOException {
+      if (offset < 0) {
+         throw new IOException("Index would exceed 2GB");
+      }
+      return offset;
+   }
+}
@@ -0,0 +1,88 @@
+package org.werelate.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+
+/**
+ * Runs tasks that each produce a block of output text on a thread pool, and writes the blocks in the order the tasks were submitted.
+ * At most a few blocks per thread are held in memory; submit blocks while the oldest pending block is written.
+ * With a single thread, tasks run on the caller's thread.
+ */
+public class OrderedOutputExecutor {
+   private static final int PENDING_PER_THREAD = 4;
+
+   private Writer out;
+   private ExecutorService pool;
+   private ArrayDeque<Future<String>> pending;
+   private int maxPending;
+
+   public OrderedOutputExecutor(int numThreads, Writer out) {
+      this.out = out;
+      this.pending = new ArrayDeque<Future<String>>();
+      this.maxPending = numThreads * PENDING_PER_THREAD;
+      if (numThreads > 1) {
+         this.pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r);
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+   }
+
+   public void submit(Callable<String> task) throws IOException {
+      if (pool == null) {
+         try {
+            out.write(task.call());
+         } catch (IOException e) {
+            throw e;
+         } catch (Exception e) {
+            throw new RuntimeException(e);
+         }
+      }
+      else {
+         pending.add(pool.submit(task));
+         while (pending.size() > maxPending) {
+            writeNext();
+         }
+      }
+   }
+
+   private void writeNext() throws IOException {
+      Future<String> future = pending.poll();
+      try {
+         out.write(future.get());
+      } catch (InterruptedException e) {
+         throw new IOException("Interrupted waiting for output", e);
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof IOException) {
+            throw (IOException)cause;
+         }
+         else if (cause instanceof RuntimeException) {
+            throw (RuntimeException)cause;
+         }
+         throw new RuntimeException(cause);
+      }
+   }
+
+   /**
+    * Write the remaining output and shut down the pool
+    */
+   public void finish() throws IOException {
+      try {
+         while (!pending.isEmpty()) {
+            writeNext();
+         }
+      }
+      finally {
+         if (pool != null) {
+            pool.shutdownNow();
+         }
+      }
+      out.flush();
+   }
+}
@@ -0,0 +1,219 @@
+package org.werelate.utils;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Registry of compiled regular expressions, so regexes built at run time, and those passed to replaceAll and split,
+ * are compiled once instead of on every call.
+ * Matchers are reused per thread and pattern; release them after use so they don't hold on to their input.
+ * <p>
+ * If the system property werelate.regexStats is set, the find, replaceAll, and split calls made through this class
+ * record the number of calls and matches, the matched chars, and the time spent for each pattern,
+ * and a report, most time first, is written at exit to the file named by the property ("-" for standard error).
+ */
+public class Patterns {
+   public static final String STATS_PROPERTY = "werelate.regexStats";
+   // clear the caches rather than let regexes built from data grow them without limit
+   private static final int MAX_PATTERNS = 4096;
+
+   private static final ConcurrentHashMap<String,Pattern> PATTERNS = new ConcurrentHashMap<String,Pattern>();
+
+   private static final ThreadLocal<Map<Pattern,Matcher>> MATCHERS = new ThreadLocal<Map<Pattern,Matcher>>() {
+      protected Map<Pattern,Matcher> initialValue() {
+         return new HashMap<Pattern,Matcher>();
+      }
+   };
+
+   private static class Stats {
+      final Pattern pattern;
+      final LongAdder calls = new LongAdder();
+      final LongAdder matches = new LongAdder();
+      final LongAdder matchedChars = new LongAdder();
+      final LongAdder nanos = new LongAdder();
+
+      Stats(Pattern pattern) {
+         this.pattern = pattern;
+      }
+   }
+
+   private static final String STATS_FILE = System.getProperty(STATS_PROPERTY);
+   private static final ConcurrentHashMap<Pattern,Stats> STATS = new ConcurrentHashMap<Pattern,Stats>();
+   static {
+      if (STATS_FILE != null) {
+         Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+               try {
+                  writeStats();
+               }
+               catch (IOException e) {
+                  System.err.println("Unable to write regex stats: " + e);
+               }
+            }
+         });
+      }
+   }
+
+   public static Pattern get(String regex) {
+      return get(regex, 0);
+   }
+
+   /**
+    * @return the compiled pattern, compiling it only the first time
+    */
+   public static Pattern get(String regex, int flags) {
+      String key = flags + ":" + regex;
+      Pattern p = PATTERNS.get(key);
+      if (p == null) {
+         if (PATTERNS.size() >= MAX_PATTERNS) {
+            PATTERNS.clear();
+         }
+         p = Pattern.compile(regex, flags);
+         Pattern existing = PATTERNS.putIfAbsent(key, p);
+         if (existing != null) {
+            p = existing;
+         }
+      }
+      return p;
+   }
+
+   /**
+    * @return this thread's matcher for the pattern, reset to the input;
+    * it is valid until the next call for the same pattern on this thread.
+    * Call release when done with it, so the cached matcher doesn't keep the input (often a whole page) reachable.
+    */
+   public static Matcher matcher(Pattern p, CharSequence input) {
+      Map<Pattern,Matcher> matchers = MATCHERS.get();
+      Matcher m = matchers.get(p);
+      if (m == null) {
+         if (matchers.size() >= MAX_PATTERNS) {
+            matchers.clear();
+         }
+         m = p.matcher(input);
+         matchers.put(p, m);
+      }
+      else {
+         m.reset(input);
+      }
+      return m;
+   }
+
+   /**
+    * Reset a matcher returned by matcher to an empty input, dropping its reference to the last input
+    */
+   public static void release(Matcher m) {
+      m.reset("");
+   }
+
+   public static boolean isStatsEnabled() {
+      return STATS_FILE != null;
+   }
+
+   /**
+    * Same as m.find(), but recorded in the stats
+    */
+   public static boolean find(Matcher m) {
+      if (STATS_FILE == null) {
+         return m.find();
+      }
+      long start = System.nanoTime();
+      boolean found = m.find();
+      record(m.pattern(), 1, found ? 1 : 0, found ? m.end() - m.start() : 0, System.nanoTime() - start);
+      return found;
+   }
+
+   public static String replaceAll(String input, String regex, String replacement) {
+      return replaceAll(input, get(regex), replacement);
+   }
+
+   /**
+    * Same as input.replaceAll(p.pattern(), replacement), without compiling the regex
+    */
+   public static String replaceAll(String input, Pattern p, String replacement) {
+      Matcher m = matcher(p, input);
+      try {
+         if (STATS_FILE == null) {
+            return m.replaceAll(replacement);
+         }
+         long start = System.nanoTime();
+         int matches = 0;
+         long matchedChars = 0;
+         StringBuffer buf = new StringBuffer();
+         while (m.find()) {
+            matches++;
+            matchedChars += m.end() - m.start();
+            m.appendReplacement(buf, replacement);
+         }
+         m.appendTail(buf);
+         record(p, 1, matches, matchedChars, System.nanoTime() - start);
+         return buf.toString();
+      }
+      finally {
+         release(m);
+      }
+   }
+
+   /**
+    * Same as input.split(regex), without compiling the regex; Pattern.split uses its own matcher, so nothing is cached
+    */
+   public static String[] split(String input, String regex) {
+      Pattern p = get(regex);
+      if (STATS_FILE == null) {
+         return p.split(input);
+      }
+      long start = System.nanoTime();
+      String[] pieces = p.split(input);
+      record(p, 1, pieces.length - 1, 0, System.nanoTime() - start);
+      return pieces;
+   }
+
+   private static void record(Pattern p, int calls, int matches, long matchedChars, long nanos) {
+      Stats stats = STATS.get(p);
+      if (stats == null) {
+         stats = new Stats(p);
+         Stats existing = STATS.putIfAbsent(p, stats);
+         if (existing != null) {
+            stats = existing;
+         }
+      }
+      stats.calls.add(calls);
+      stats.matches.add(matches);
+      stats.matchedChars.add(matchedChars);
+      stats.nanos.add(nanos);
+   }
+
+   private static void writeStats() throws IOException {
+      List<Stats> all = new ArrayList<Stats>(STATS.values());
+      Collections.sort(all, new Comparator<Stats>() {
+         public int compare(Stats s1, Stats s2) {
+            return Long.compare(s2.nanos.sum(), s1.nanos.sum());
+         }
+      });
+      boolean toFile = !"-".equals(STATS_FILE);
+      PrintWriter out = (toFile ? new PrintWriter(new OutputStreamWriter(new FileOutputStream(STATS_FILE), "UTF-8"))
+                                : new PrintWriter(System.err));
+      out.println("millis\tcalls\tmatches\tmatched chars\tpattern");
+      for (Stats stats : all) {
+         out.println((stats.nanos.sum() / 1000000) + "\t" + stats.calls.sum() + "\t" + stats.matches.sum() + "\t" +
+                     stats.matchedChars.sum() + "\t" + stats.pattern.pattern().replace('\n', ' '));
+      }
+      if (toFile) {
+         out.close();
+      }
+      else {
+         out.flush();
+      }
+   }
+}
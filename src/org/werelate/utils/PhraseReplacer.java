@@ -0,0 +1,184 @@
+package org.werelate.utils;
+
+import java.util.Arrays;
+
+/**
+ * Replaces many literal phrases in a single left-to-right scan using a character trie.
+ *
+ * Matching behaves like a single regex alternation of the phrases in the order they were added:
+ * the leftmost match wins, and when several phrases match at the same position, the phrase added first wins.
+ * Each phrase may require a word boundary (as in regex \b) before and/or after it.
+ */
+public class PhraseReplacer {
+   private static final int INITIAL_NODES = 64;
+
+   // trie nodes; children of a node are kept in a linked list of siblings
+   private char[] labels;
+   private int[] firstChild;
+   private int[] nextSibling;
+   private int[] phraseIds; // lowest phrase id ending at the node, or -1
+   private int numNodes;
+
+   private String[] replacements;
+   private boolean[] boundaryBefore;
+   private boolean[] boundaryAfter;
+   private int numPhrases;
+
+   public PhraseReplacer() {
+      labels = new char[INITIAL_NODES];
+      firstChild = new int[INITIAL_NODES];
+      nextSibling = new int[INITIAL_NODES];
+      phraseIds = new int[INITIAL_NODES];
+      numNodes = 0;
+      newNode((char)0); // root
+      replacements = new String[16];
+      boundaryBefore = new boolean[16];
+      boundaryAfter = new boolean[16];
+      numPhrases = 0;
+   }
+
+   private int newNode(char label) {
+      if (numNodes == labels.length) {
+         int capacity = numNodes * 2;
+         labels = Arrays.copyOf(labels, capacity);
+         firstChild = Arrays.copyOf(firstChild, capacity);
+         nextSibling = Arrays.copyOf(nextSibling, capacity);
+         phraseIds = Arrays.copyOf(phraseIds, capacity);
+      }
+      labels[numNodes] = label;
+      firstChild[numNodes] = -1;
+      nextSibling[numNodes] = -1;
+      phraseIds[numNodes] = -1;
+      return numNodes++;
+   }
+
+   private int getChild(int node, char c) {
+      for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+         if (labels[child] == c) {
+            return child;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Add a phrase; phrases added earlier take precedence over phrases added later that match at the same position
+    * @param phrase literal text to match
+    * @param replacement text to replace it with
+    * @param boundaryBefore if true, match only at a word boundary
+    * @param boundaryAfter if true, match only if the phrase is followed by a word boundary
+    */
+   public void add(String phrase, String replacement, boolean boundaryBefore, boolean boundaryAfter) {
+      if (phrase.length() == 0) {
+         return;
+      }
+      int node = 0;
+      for (int i = 0; i < phrase.length(); i++) {
+         char c = phrase.charAt(i);
+         int child = getChild(node, c);
+         if (child < 0) {
+            child = newNode(c);
+            nextSibling[child] = firstChild[node];
+            firstChild[node] = child;
+         }
+         node = child;
+      }
+      if (numPhrases == replacements.length) {
+         int capacity = numPhrases * 2;
+         replacements = Arrays.copyOf(replacements, capacity);
+         this.boundaryBefore = Arrays.copyOf(this.boundaryBefore, capacity);
+         this.boundaryAfter = Arrays.copyOf(this.boundaryAfter, capacity);
+      }
+      replacements[numPhrases] = replacement;
+      this.boundaryBefore[numPhrases] = boundaryBefore;
+      this.boundaryAfter[numPhrases] = boundaryAfter;
+      if (phraseIds[node] < 0) {
+         phraseIds[node] = numPhrases;
+      }
+      numPhrases++;
+   }
+
+   /**
+    * Replace matching phrases in the input, appending the result to out
+    * @return the number of replacements made
+    */
+   public int replace(CharSequence in, StringBuilder out) {
+      int cnt = 0;
+      int len = in.length();
+      int i = 0;
+      while (i < len) {
+         int bestPhrase = -1;
+         int bestEnd = -1;
+         int node = getChild(0, in.charAt(i));
+         if (node >= 0) {
+            // the boundary test is only needed when some phrase starts with this character
+            boolean atBoundary = isWordBoundary(in, i);
+            int j = i;
+            while (node >= 0) {
+               j++;
+               int phraseId = phraseIds[node];
+               if (phraseId >= 0 && (bestPhrase < 0 || phraseId < bestPhrase) &&
+                   (atBoundary || !boundaryBefore[phraseId]) &&
+                   (!boundaryAfter[phraseId] || isWordBoundary(in, j))) {
+                  bestPhrase = phraseId;
+                  bestEnd = j;
+               }
+               node = (j < len ? getChild(node, in.charAt(j)) : -1);
+            }
+         }
+         if (bestPhrase >= 0) {
+            out.append(replacements[bestPhrase]);
+            i = bestEnd;
+            cnt++;
+         }
+         else {
+            out.append(in.charAt(i));
+            i++;
+         }
+      }
+      return cnt;
+   }
+
+   /**
+    * Replace matching phrases in the input
+    */
+   public String replace(String in) {
+      StringBuilder buf = new StringBuilder(in.length() + 16);
+      if (replace(in, buf) == 0) {
+         return in;
+      }
+      return buf.toString();
+   }
+
+   /**
+    * Return true if position i of s is a word boundary as defined by java.util.regex \b:
+    * a letter, digit, or underscore on exactly one side, where a non-spacing mark takes on the type of its base character
+    */
+   public static boolean isWordBoundary(CharSequence s, int i) {
+      boolean left = (i > 0 && isWordAt(s, i - Character.charCount(Character.codePointBefore(s, i))));
+      boolean right = (i < s.length() && isWordAt(s, i));
+      return left != right;
+   }
+
+   private static boolean isWordAt(CharSequence s, int i) {
+      int ch = Character.codePointAt(s, i);
+      if (isWordChar(ch)) {
+         return true;
+      }
+      if (Character.getType(ch) == Character.NON_SPACING_MARK) {
+         // look back for the base character
+         while (i > 0) {
+            ch = Character.codePointBefore(s, i);
+            if (Character.getType(ch) != Character.NON_SPACING_MARK) {
+               return Character.isLetterOrDigit(ch);
+            }
+            i -= Character.charCount(ch);
+         }
+      }
+      return false;
+   }
+
+   public static boolean isWordChar(int ch) {
+      return ch == '_' || Character.isLetterOrDigit(ch);
+   }
+}
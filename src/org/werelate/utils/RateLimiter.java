@@ -0,0 +1,32 @@
+package org.werelate.utils;
+
+/**
+ * Spaces out actions from any number of threads so that no more than one starts per interval
+ */
+public class RateLimiter {
+   private final long intervalNanos;
+   private long nextStart;
+
+   public RateLimiter(long intervalMillis) {
+      this.intervalNanos = intervalMillis * 1000000L;
+      this.nextStart = System.nanoTime();
+   }
+
+   /**
+    * Wait until the caller's turn to start an action
+    */
+   public void acquire() throws InterruptedException {
+      long wait;
+      synchronized (this) {
+         long now = System.nanoTime();
+         if (nextStart < now) {
+            nextStart = now;
+         }
+         wait = nextStart - now;
+         nextStart += intervalNanos;
+      }
+      if (wait > 0) {
+         Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+      }
+   }
+}
@@ -0,0 +1,225 @@
+package org.werelate.utils;
+
+/**
+ * Romanizes text (see Util.romanize), lowercasing it and folding punctuation in the same pass.
+ * Each profile precomputes the replacement of every BMP char, so normalizing is one table lookup per char.
+ * Lowercasing a char on its own gives the same result as String.toLowerCase except for a few context-sensitive chars
+ * (capital sigma, surrogates, and chars like dotted capital I whose lowercase is longer);
+ * text containing one of those is normalized with String.toLowerCase instead.
+ * Profiles are thread-safe.
+ */
+public class Romanizer {
+   private static final int KEEP_CASE = 0;
+   private static final int LOWERCASE_BEFORE = 1;
+   private static final int LOWERCASE_AFTER = 2;
+
+   // table entry for chars that need the String-based path
+   private static final String CONTEXTUAL = new String("");
+
+   private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+      protected StringBuilder initialValue() {
+         return new StringBuilder();
+      }
+   };
+
+   /** Util.romanize */
+   public static final Romanizer ROMANIZE;
+   /** Util.romanize(s).toLowerCase() */
+   public static final Romanizer ROMANIZE_LOWERCASE;
+   /** Util.romanize(s.toLowerCase()) */
+   public static final Romanizer LOWERCASE_ROMANIZE;
+   /** Romanize, lowercase, and trim; for sort keys */
+   public static final Romanizer SORT_KEY;
+   /** Lowercase, romanize, remove apostrophes, and separate the remaining a-z0-9 words with single spaces */
+   public static final Romanizer WORDS;
+
+   static {
+      String[] roman = new String[65536];
+      for (int i = 0; i < Util.CHARACTER_REPLACEMENTS.length; i += 2) {
+         char c = Util.CHARACTER_REPLACEMENTS[i].charAt(0);
+         if (c > 127) {
+            roman[c] = Util.CHARACTER_REPLACEMENTS[i+1];
+         }
+      }
+      ROMANIZE = new Romanizer(roman, KEEP_CASE, false, false);
+      ROMANIZE_LOWERCASE = new Romanizer(roman, LOWERCASE_AFTER, false, false);
+      LOWERCASE_ROMANIZE = new Romanizer(roman, LOWERCASE_BEFORE, false, false);
+      SORT_KEY = new Romanizer(roman, LOWERCASE_AFTER, false, true);
+      WORDS = new Romanizer(roman, LOWERCASE_BEFORE, true, true);
+   }
+
+   private int caseMode;
+   private boolean fold;
+   private boolean trim;
+   // pages[c >> 8][c & 0xFF] is the replacement of c, or null if c is kept as is; a null page keeps all of its chars
+   private String[][] pages;
+
+   private Romanizer(String[] roman, int caseMode, boolean fold, boolean trim) {
+      this.caseMode = caseMode;
+      this.fold = fold;
+      this.trim = trim;
+      pages = new String[256][];
+      for (int c = 0; c < 65536; c++) {
+         String replacement = replacement((char)c, roman);
+         if (replacement != null) {
+            if (pages[c >> 8] == null) {
+               pages[c >> 8] = new String[256];
+            }
+            pages[c >> 8][c & 0xFF] = replacement;
+         }
+      }
+   }
+
+   private static String romanize(String s, String[] roman) {
+      StringBuilder buf = new StringBuilder();
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         buf.append(roman[c] != null ? roman[c] : String.valueOf(c));
+      }
+      return buf.toString();
+   }
+
+   private static boolean isContextual(char c) {
+      return Character.isSurrogate(c) || c == 'Σ' || String.valueOf(c).toLowerCase().length() != 1;
+   }
+
+   private String replacement(char c, String[] roman) {
+      String s = String.valueOf(c);
+      if (caseMode == LOWERCASE_BEFORE) {
+         if (isContextual(c)) {
+            return CONTEXTUAL;
+         }
+         s = s.toLowerCase();
+      }
+      s = romanize(s, roman);
+      if (caseMode == LOWERCASE_AFTER) {
+         for (int i = 0; i < s.length(); i++) {
+            if (isContextual(s.charAt(i))) {
+               return CONTEXTUAL;
+            }
+         }
+         s = s.toLowerCase();
+      }
+      return s.length() == 1 && s.charAt(0) == c ? null : s;
+   }
+
+   /**
+    * @return the normalized string, or "" for null
+    */
+   public String normalize(String s) {
+      return normalize(s, Integer.MAX_VALUE);
+   }
+
+   /**
+    * @param maxLength keep at most this many romanized chars
+    * @return the normalized string, or "" for null
+    */
+   public String normalize(String s, int maxLength) {
+      if (s == null) {
+         return "";
+      }
+      StringBuilder buf = BUFFER.get();
+      buf.setLength(0);
+      append(s, maxLength, buf);
+      return s.contentEquals(buf) ? s : buf.toString();
+   }
+
+   public void append(CharSequence s, StringBuilder out) {
+      append(s, Integer.MAX_VALUE, out);
+   }
+
+   /**
+    * Append the normalized text to out
+    * @param maxLength keep at most this many romanized chars
+    */
+   public void append(CharSequence s, int maxLength, StringBuilder out) {
+      int start = out.length();
+      boolean pendingSpace = false;
+      int len = 0;
+      for (int i = 0; i < s.length() && len < maxLength; i++) {
+         char c = s.charAt(i);
+         String[] page = pages[c >> 8];
+         String replacement = (page == null ? null : page[c & 0xFF]);
+         if (replacement == null) {
+            if (fold) {
+               pendingSpace = emit(c, pendingSpace, start, out);
+            }
+            else {
+               out.append(c);
+            }
+            len++;
+         }
+         else if (replacement == CONTEXTUAL) {
+            out.setLength(start);
+            appendContextual(s.toString(), maxLength, out);
+            break;
+         }
+         else if (!fold && len + replacement.length() <= maxLength) {
+            out.append(replacement);
+            len += replacement.length();
+         }
+         else {
+            for (int j = 0; j < replacement.length() && len < maxLength; j++) {
+               pendingSpace = emit(replacement.charAt(j), pendingSpace, start, out);
+               len++;
+            }
+         }
+      }
+      if (trim) {
+         trim(out, start);
+      }
+   }
+
+   // append c to out, folding it if this profile folds; returns the new pendingSpace
+   private boolean emit(char c, boolean pendingSpace, int start, StringBuilder out) {
+      if (!fold) {
+         out.append(c);
+      }
+      else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+         if (pendingSpace && out.length() > start) {
+            out.append(' ');
+         }
+         out.append(c);
+         return false;
+      }
+      else if (c != '\'') {
+         return true;
+      }
+      return pendingSpace;
+   }
+
+   private void appendContextual(String s, int maxLength, StringBuilder out) {
+      if (caseMode == LOWERCASE_BEFORE) {
+         s = s.toLowerCase();
+      }
+      // out may be the normalize buffer, so romanize into a new one
+      StringBuilder romanized = new StringBuilder(s.length());
+      ROMANIZE.append(s, romanized);
+      s = romanized.toString();
+      if (s.length() > maxLength) {
+         s = s.substring(0, maxLength);
+      }
+      if (caseMode == LOWERCASE_AFTER) {
+         s = s.toLowerCase();
+      }
+      int start = out.length();
+      boolean pendingSpace = false;
+      for (int i = 0; i < s.length(); i++) {
+         pendingSpace = emit(s.charAt(i), pendingSpace, start, out);
+      }
+   }
+
+   // trim chars <= ' ' from the text appended after start, like String.trim
+   private static void trim(StringBuilder out, int start) {
+      int end = out.length();
+      while (end > start && out.charAt(end - 1) <= ' ') {
+         end--;
+      }
+      out.setLength(end);
+      int first = start;
+      while (first < end && out.charAt(first) <= ' ') {
+         first++;
+      }
+      out.delete(start, first);
+   }
+}
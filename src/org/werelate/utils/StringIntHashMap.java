@@ -0,0 +1,151 @@
+package org.werelate.utils;
+
+/**
+ * Open-addressing hash map from String keys to primitive int values, using linear probing.
+ * Avoids the entry and boxed value objects of a HashMap&lt;String,Integer&gt;.
+ * Slots can be scanned directly with capacity, keyAt, and valueAt; keyAt is null for unused slots.
+ */
+public class StringIntHashMap {
+   private static final float LOAD_FACTOR = 0.6f;
+
+   private String[] keys;
+   private int[] values;
+   private int size;
+   private int threshold;
+
+   public StringIntHashMap() {
+      this(16);
+   }
+
+   /**
+    * @param expectedSize number of keys to size the table for
+    */
+   public StringIntHashMap(int expectedSize) {
+      int capacity = 16;
+      while (capacity * LOAD_FACTOR < expectedSize) {
+         capacity *= 2;
+      }
+      allocate(capacity);
+      this.size = 0;
+   }
+
+   private void allocate(int capacity) {
+      keys = new String[capacity];
+      values = new int[capacity];
+      threshold = (int)(capacity * LOAD_FACTOR);
+   }
+
+   // String caches its hashCode, so this costs a multiply once the key has been hashed
+   private static int hash(String key) {
+      int h = key.hashCode() * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+
+   private int slot(String key) {
+      int mask = keys.length - 1;
+      int i = hash(key) & mask;
+      while (keys[i] != null && !keys[i].equals(key)) {
+         i = (i + 1) & mask;
+      }
+      return i;
+   }
+
+   /**
+    * @return the value for the key, or 0 if the key is not in the map
+    */
+   public int get(String key) {
+      int i = slot(key);
+      return keys[i] == null ? 0 : values[i];
+   }
+
+   public boolean containsKey(String key) {
+      return keys[slot(key)] != null;
+   }
+
+   /**
+    * Add delta to the value for the key, adding the key with value 0 first if it is not in the map
+    * @return the new value
+    */
+   public int add(String key, int delta) {
+      int i = slot(key);
+      if (keys[i] != null) {
+         values[i] += delta;
+         return values[i];
+      }
+      keys[i] = key;
+      values[i] = delta;
+      size++;
+      if (size > threshold) {
+         rehash();
+      }
+      return delta;
+   }
+
+   public void put(String key, int value) {
+      int i = slot(key);
+      if (keys[i] != null) {
+         values[i] = value;
+         return;
+      }
+      keys[i] = key;
+      values[i] = value;
+      size++;
+      if (size > threshold) {
+         rehash();
+      }
+   }
+
+   /**
+    * @return true if the key was in the map
+    */
+   public boolean remove(String key) {
+      int i = slot(key);
+      if (keys[i] == null) {
+         return false;
+      }
+      // shift later keys in the probe run back, so lookups never stop at the hole
+      int mask = keys.length - 1;
+      int hole = i;
+      for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+         int home = hash(keys[j]) & mask;
+         if (((j - home) & mask) >= ((j - hole) & mask)) {
+            keys[hole] = keys[j];
+            values[hole] = values[j];
+            hole = j;
+         }
+      }
+      keys[hole] = null;
+      values[hole] = 0;
+      size--;
+      return true;
+   }
+
+   private void rehash() {
+      String[] oldKeys = keys;
+      int[] oldValues = values;
+      allocate(oldKeys.length * 2);
+      for (int i = 0; i < oldKeys.length; i++) {
+         if (oldKeys[i] != null) {
+            int j = slot(oldKeys[i]);
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+         }
+      }
+   }
+
+   public int size() {
+      return size;
+   }
+
+   public int capacity() {
+      return keys.length;
+   }
+
+   public String keyAt(int slot) {
+      return keys[slot];
+   }
+
+   public int valueAt(int slot) {
+      return values[slot];
+   }
+}
@@ -0,0 +1,355 @@
+package org.werelate.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact multimap from strings to sets of strings, for mappings with millions of pairs.
+ * Keys and values are each stored once in a dictionary and referred to by int id.
+ * Puts are appended to a list of pending pairs. The next read sorts them into a packed (CSR) layout: for each key id,
+ * offsets[id] .. offsets[id+1] is the range of its value ids in values.
+ * The packed arrays can be kept off-heap in direct buffers.
+ * Interleaving puts and reads re-packs the whole map each time, so put everything first.
+ * Not thread-safe; call freeze before sharing a map between threads.
+ */
+public class StringMultiMap {
+   private boolean offHeap;
+   // dictionaries: name -> id + 1, and id -> name
+   private StringIntHashMap keyIds;
+   private String[] keyNames;
+   private int numKeyNames;
+   private StringIntHashMap valueIds;
+   private String[] valueNames;
+   private int numValueNames;
+   // packed pairs, covering key ids below numPackedKeys
+   private IntBuffer offsets;
+   private IntBuffer values;
+   private int numPackedKeys;
+   private int size;
+   // (key id << 32 | value id) pairs not yet packed
+   private long[] pending;
+   private int numPending;
+   // keys whose packed values are ignored, and dropped on the next pack
+   private boolean[] removed;
+
+   public StringMultiMap() {
+      this(false);
+   }
+
+   /**
+    * @param offHeap if true, keep the packed id arrays in direct buffers outside the Java heap
+    */
+   public StringMultiMap(boolean offHeap) {
+      this.offHeap = offHeap;
+      keyIds = new StringIntHashMap();
+      keyNames = new String[16];
+      numKeyNames = 0;
+      valueIds = new StringIntHashMap();
+      valueNames = new String[16];
+      numValueNames = 0;
+      offsets = allocate(1);
+      values = allocate(0);
+      numPackedKeys = 0;
+      size = 0;
+      pending = new long[16];
+      numPending = 0;
+      removed = new boolean[16];
+   }
+
+   private IntBuffer allocate(int n) {
+      if (offHeap) {
+         return ByteBuffer.allocateDirect(n * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+      }
+      return IntBuffer.allocate(n);
+   }
+
+   private int getKeyId(String key) {
+      return keyIds.get(key) - 1;
+   }
+
+   private int addKey(String key) {
+      int id = keyIds.get(key) - 1;
+      if (id < 0) {
+         id = numKeyNames++;
+         if (id == keyNames.length) {
+            keyNames = Arrays.copyOf(keyNames, id * 2);
+            removed = Arrays.copyOf(removed, id * 2);
+         }
+         keyNames[id] = key;
+         keyIds.put(key, id + 1);
+      }
+      return id;
+   }
+
+   private int addValue(String value) {
+      int id = valueIds.get(value) - 1;
+      if (id < 0) {
+         id = numValueNames++;
+         if (id == valueNames.length) {
+            valueNames = Arrays.copyOf(valueNames, id * 2);
+         }
+         valueNames[id] = value;
+         valueIds.put(value, id + 1);
+      }
+      return id;
+   }
+
+   private void addPair(int keyId, int valueId) {
+      if (numPending == pending.length) {
+         pending = Arrays.copyOf(pending, numPending * 2);
+      }
+      pending[numPending++] = ((long)keyId << 32) | valueId;
+   }
+
+   public void put(String key, String value) {
+      addPair(addKey(key), addValue(value));
+   }
+
+   /**
+    * Remove the key and all of its values
+    * @return true if the key was in the map
+    */
+   public boolean removeAll(String key) {
+      if (!containsKey(key)) {
+         return false;
+      }
+      removed[getKeyId(key)] = true;
+      size--;
+      return true;
+   }
+
+   /**
+    * Pack the pending pairs; done automatically by the next read
+    */
+   public void freeze() {
+      if (numPending == 0) {
+         return;
+      }
+      // gather the packed pairs that remain and the pending pairs, then sort and de-duplicate them
+      long[] pairs = new long[values.limit() + numPending];
+      int n = 0;
+      for (int k = 0; k < numPackedKeys; k++) {
+         if (!removed[k]) {
+            for (int i = offsets.get(k); i < offsets.get(k + 1); i++) {
+               pairs[n++] = ((long)k << 32) | values.get(i);
+            }
+         }
+      }
+      System.arraycopy(pending, 0, pairs, n, numPending);
+      n += numPending;
+      Arrays.sort(pairs, 0, n);
+      int numPairs = 0;
+      for (int i = 0; i < n; i++) {
+         if (numPairs == 0 || pairs[i] != pairs[numPairs - 1]) {
+            pairs[numPairs++] = pairs[i];
+         }
+      }
+
+      offsets = allocate(numKeyNames + 1);
+      values = allocate(numPairs);
+      size = 0;
+      int k = 0;
+      for (int i = 0; i < numPairs; i++) {
+         int keyId = (int)(pairs[i] >>> 32);
+         if (i == 0 || keyId != (int)(pairs[i - 1] >>> 32)) {
+            size++;
+         }
+         while (k <= keyId) {
+            offsets.put(k++, i);
+         }
+         values.put(i, (int)pairs[i]);
+      }
+      while (k <= numKeyNames) {
+         offsets.put(k++, numPairs);
+      }
+      numPackedKeys = numKeyNames;
+      pending = new long[16];
+      numPending = 0;
+      Arrays.fill(removed, false);
+   }
+
+   private int start(int keyId) {
+      return keyId < numPackedKeys ? offsets.get(keyId) : 0;
+   }
+
+   private int end(int keyId) {
+      return keyId < numPackedKeys ? offsets.get(keyId + 1) : 0;
+   }
+
+   // true if the packed key has values
+   private boolean hasValues(int keyId) {
+      return keyId >= 0 && keyId < numPackedKeys && !removed[keyId] && offsets.get(keyId + 1) > offsets.get(keyId);
+   }
+
+   public boolean containsKey(String key) {
+      freeze();
+      return hasValues(getKeyId(key));
+   }
+
+   /**
+    * Number of keys
+    */
+   public int size() {
+      freeze();
+      return size;
+   }
+
+   /**
+    * Number of key-value pairs
+    */
+   public int pairCount() {
+      freeze();
+      return values.limit();
+   }
+
+   /**
+    * @return the values of the key, or null if the key is not in the map; the set is a read-only view,
+    * valid until the next put
+    */
+   public Set<String> get(String key) {
+      freeze();
+      int keyId = getKeyId(key);
+      if (!hasValues(keyId)) {
+         return null;
+      }
+      return new ValueSet(start(keyId), end(keyId));
+   }
+
+   /**
+    * @return a read-only view of the keys; don't put or remove while iterating over it
+    */
+   public Set<String> keySet() {
+      freeze();
+      return new AbstractSet<String>() {
+         public int size() {
+            return size;
+         }
+
+         public boolean contains(Object o) {
+            return o instanceof String && containsKey((String)o);
+         }
+
+         public Iterator<String> iterator() {
+            return new Iterator<String>() {
+               private int next = advance(0);
+
+               private int advance(int keyId) {
+                  while (keyId < numPackedKeys && !hasValues(keyId)) {
+                     keyId++;
+                  }
+                  return keyId;
+               }
+
+               public boolean hasNext() {
+                  return next < numPackedKeys;
+               }
+
+               public String next() {
+                  if (!hasNext()) {
+                     throw new NoSuchElementException();
+                  }
+                  String key = keyNames[next];
+                  next = advance(next + 1);
+                  return key;
+               }
+
+               public void remove() {
+                  throw new UnsupportedOperationException();
+               }
+            };
+         }
+      };
+   }
+
+   private class ValueSet extends AbstractSet<String> {
+      private final int start;
+      private final int end;
+
+      ValueSet(int start, int end) {
+         this.start = start;
+         this.end = end;
+      }
+
+      public int size() {
+         return end - start;
+      }
+
+      public boolean contains(Object o) {
+         int valueId = (o instanceof String ? valueIds.get((String)o) - 1 : -1);
+         for (int i = start; valueId >= 0 && i < end; i++) {
+            if (values.get(i) == valueId) {
+               return true;
+            }
+         }
+         return false;
+      }
+
+      public Iterator<String> iterator() {
+         return new Iterator<String>() {
+            private int next = start;
+
+            public boolean hasNext() {
+               return next < end;
+            }
+
+            public String next() {
+               if (!hasNext()) {
+                  throw new NoSuchElementException();
+               }
+               return valueNames[values.get(next++)];
+            }
+
+            public void remove() {
+               throw new UnsupportedOperationException();
+            }
+         };
+      }
+   }
+
+   /**
+    * @return a2c consolidated multimap, kept on-heap or off-heap like a2b
+    */
+   public static StringMultiMap consolidateMap(StringMultiMap a2b, StringMultiMap b2c) {
+      a2b.freeze();
+      b2c.freeze();
+      StringMultiMap a2c = new StringMultiMap(a2b.offHeap);
+      // look each b and c up once, rather than once per pair
+      int[] bToKey = new int[a2b.numValueNames];
+      for (int b = 0; b < bToKey.length; b++) {
+         int keyId = b2c.getKeyId(a2b.valueNames[b]);
+         bToKey[b] = (b2c.hasValues(keyId) ? keyId : -1);
+      }
+      int[] cToValue = new int[b2c.numValueNames];
+      Arrays.fill(cToValue, -1);
+      for (int a = 0; a < a2b.numPackedKeys; a++) {
+         if (a2b.removed[a]) {
+            continue;
+         }
+         int aKey = -1;
+         for (int i = a2b.offsets.get(a); i < a2b.offsets.get(a + 1); i++) {
+            int b = bToKey[a2b.values.get(i)];
+            if (b < 0) {
+               continue;
+            }
+            for (int j = b2c.start(b); j < b2c.end(b); j++) {
+               int c = b2c.values.get(j);
+               if (cToValue[c] < 0) {
+                  cToValue[c] = a2c.addValue(b2c.valueNames[c]);
+               }
+               if (aKey < 0) {
+                  aKey = a2c.addKey(a2b.keyNames[a]);
+               }
+               a2c.addPair(aKey, cToValue[c]);
+            }
+         }
+      }
+      a2c.freeze();
+      return a2c;
+   }
+}
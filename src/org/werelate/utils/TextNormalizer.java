@@ -0,0 +1,116 @@
+package org.werelate.utils;
+
+/**
+ * Reduces free text to a compact matching key in a single pass over the characters instead of a chain of regex replacements.
+ * <ol>
+ * <li>expand phrases (e.g., abbreviations) in the raw text</li>
+ * <li>cut the text at the last occurrence of each cut-word</li>
+ * <li>romanize</li>
+ * <li>remove single letters other than a, A, and I; remove apostrophes; lowercase;
+ *     and turn each run of characters other than a-z and 0-9 into a single space</li>
+ * <li>replace words or word sequences (e.g., remove stop-words) in the folded text</li>
+ * <li>remove all spaces</li>
+ * </ol>
+ * Instances are thread-safe.
+ */
+public class TextNormalizer {
+   private PhraseReplacer phraseReplacer;
+   private String[] cutWords;
+   private PhraseReplacer wordReplacer;
+
+   private static final ThreadLocal<StringBuilder[]> BUFFERS = new ThreadLocal<StringBuilder[]>() {
+      protected StringBuilder[] initialValue() {
+         return new StringBuilder[] {new StringBuilder(), new StringBuilder(), new StringBuilder(), new StringBuilder()};
+      }
+   };
+
+   /**
+    * @param phraseReplacer replacements to apply to the raw text; may be null
+    * @param cutWords the text is cut at the last occurrence of each of these words; may be null
+    * @param wordReplacer replacements to apply to the folded text, which contains only a-z, 0-9, and single spaces between words; may be null
+    */
+   public TextNormalizer(PhraseReplacer phraseReplacer, String[] cutWords, PhraseReplacer wordReplacer) {
+      this.phraseReplacer = phraseReplacer;
+      this.cutWords = (cutWords == null ? new String[0] : cutWords);
+      this.wordReplacer = wordReplacer;
+   }
+
+   public String normalize(String s) {
+      StringBuilder[] buffers = BUFFERS.get();
+
+      // expand phrases
+      if (phraseReplacer != null) {
+         StringBuilder replaced = buffers[0];
+         replaced.setLength(0);
+         if (phraseReplacer.replace(s, replaced) > 0) {
+            s = replaced.toString();
+         }
+      }
+
+      // cut after cut-words
+      for (String cut : cutWords) {
+         int pos = s.lastIndexOf(cut);
+         if (pos > 0) {
+            s = s.substring(0, pos);
+         }
+      }
+
+      StringBuilder romanized = buffers[3];
+      romanized.setLength(0);
+      Romanizer.ROMANIZE.append(s, romanized);
+
+      StringBuilder folded = buffers[1];
+      folded.setLength(0);
+      fold(romanized, folded);
+
+      StringBuilder result;
+      if (wordReplacer != null) {
+         result = buffers[2];
+         result.setLength(0);
+         wordReplacer.replace(folded, result);
+      }
+      else {
+         result = folded;
+      }
+
+      // remove all spaces
+      int len = 0;
+      for (int i = 0; i < result.length(); i++) {
+         char c = result.charAt(i);
+         if (c != ' ') {
+            result.setCharAt(len++, c);
+         }
+      }
+      result.setLength(len);
+      return result.toString();
+   }
+
+   /**
+    * Remove single letters other than a, A, and I, remove apostrophes, lowercase,
+    * and separate the remaining a-z0-9 words with single spaces
+    */
+   static void fold(CharSequence s, StringBuilder out) {
+      boolean pendingSpace = false;
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         if (c == '\'') {
+            continue;
+         }
+         if (((c >= 'b' && c <= 'z') || (c >= 'B' && c <= 'Z' && c != 'I')) &&
+             PhraseReplacer.isWordBoundary(s, i) && PhraseReplacer.isWordBoundary(s, i+1)) {
+            continue;
+         }
+         char lc = Character.toLowerCase(c);
+         if ((lc >= 'a' && lc <= 'z') || (lc >= '0' && lc <= '9')) {
+            if (pendingSpace && out.length() > 0) {
+               out.append(' ');
+            }
+            pendingSpace = false;
+            out.append(lc);
+         }
+         else {
+            pendingSpace = true;
+         }
+      }
+   }
+}
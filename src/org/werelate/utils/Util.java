@@ -45,19 +45,7 @@ public class Util
       if (isAscii(s)) {
          return s;
       }
-
-      StringBuilder buf = new StringBuilder();
-      for (int i = 0; i < s.length(); i++) {
-         char c = s.charAt(i);
-         String replacement;
-         if ((int)c > 127 && (replacement = CHARACTER_MAPPINGS.get(c)) != null) {
-            buf.append(replacement);
-         }
-         else {
-            buf.append(c);
-         }
-      }
-      return buf.toString();
+      return Romanizer.ROMANIZE.normalize(s);
    }
 
    public static String translateHtmlCharacterEntities(String in) {
@@ -153,6 +141,33 @@ public class Util
       return cnt;
    }
 
+   public static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+   /**
+    * Return a 64-bit FNV-1a hash of the chars of the specified string
+    */
+   public static long fnv1a(CharSequence s) {
+      return fnv1a(FNV_OFFSET_BASIS, s);
+   }
+
+   /**
+    * Continue the 64-bit FNV-1a hash with the chars of the specified string, so several strings can be hashed as one
+    */
+   public static long fnv1a(long hash, CharSequence s) {
+      for (int i = 0; i < s.length(); i++) {
+         hash ^= s.charAt(i);
+         hash *= 0x100000001b3L;
+      }
+      return hash;
+   }
+
+   /**
+    * Return the default number of worker threads for scripts that take an optional thread count: one per processor
+    */
+   public static int getDefaultThreads() {
+      return Runtime.getRuntime().availableProcessors();
+   }
+
    public static void sleep(int miliseconds) {
       try
       {
@@ -185,68 +200,24 @@ public class Util
     * @return
     */
    public static String protectDollarSlash(String text) {
-      return text.replaceAll("\\\\", "\\\\\\\\").replaceAll("\\$", "\\\\\\$");
+      return Matcher.quoteReplacement(text);
    }
 
-   private static final Pattern OPEN_CLOSE_TEMPLATE = Pattern.compile("\\{\\{|\\}\\}");
-
+   /**
+    * @return the trimmed contents of the outermost templates in the text; see WikiTextScanner
+    */
    public static List<String> getTemplates(String text) {
-      List<String> templates = new ArrayList<String>();
-      int openTags = 0;
-      int outermostStart = 0;
-      Matcher openClose = OPEN_CLOSE_TEMPLATE.matcher(text);
-      while (openClose.find()) {
-         if (openClose.group(0).equals("{{")) {
-            if (openTags == 0) {
-               outermostStart = openClose.end();
-            }
-            openTags++;
-         }
-         else {
-            openTags--;
-            if (openTags == 0) {
-               templates.add(text.substring(outermostStart, openClose.start()).trim());
-            }
-            else if (openTags < 0) {
-               openTags = 0; // malformed
+      final List<String> templates = new ArrayList<String>();
+      WikiTextScanner.scan(text, new WikiTextScanner.Visitor() {
+         public void template(WikiTextScanner.Template template) {
+            if (template.getDepth() == 0) {
+               templates.add(template.getContent());
             }
          }
-      }
+      });
       return templates;
    }
 
-   private static final Map <String, Integer> MONTHS = new HashMap<String, Integer>();
-   static
-   {
-      MONTHS.put("january", 1);
-      MONTHS.put("february", 2);
-      MONTHS.put("march", 3);
-      MONTHS.put("april", 4);
-      MONTHS.put("may", 5);
-      MONTHS.put("june", 6);
-      MONTHS.put("june", 6);
-      MONTHS.put("july", 7);
-      MONTHS.put("august", 8);
-      MONTHS.put("september", 9);
-      MONTHS.put("october", 10);
-      MONTHS.put("november", 11);
-      MONTHS.put("december", 12);
-      MONTHS.put("jan", 1);
-      MONTHS.put("feb", 2);
-      MONTHS.put("mar", 3);
-      MONTHS.put("apr", 4);
-      MONTHS.put("may", 5);
-      MONTHS.put("jun", 6);
-      MONTHS.put("jul", 7);
-      MONTHS.put("aug", 8);
-      MONTHS.put("sep", 9);
-      MONTHS.put("oct", 10);
-      MONTHS.put("nov", 11);
-      MONTHS.put("dec", 12);
-      MONTHS.put("febr", 2);
-      MONTHS.put("sept", 9);
-   }
-
    private static final Map <Integer, Integer> MONTH_DAYS = new HashMap<Integer, Integer>();
    static
    {
@@ -264,16 +235,64 @@ public class Util
       MONTH_DAYS.put(12, 31);
    }
 
-   private static Pattern pAlphaNumRegExp =  Pattern.compile("\\d+|[^0-9\\s`~!@#$%^&*()_+\\-={}|:'<>?;,/\"\\[\\]\\.\\\\]+");
+   // characters between the tokens of a date; a token is a run of digits or a run of other characters
+   private static final boolean[] DATE_SEPARATORS = new boolean[128];
+   static
+   {
+      for (char c : " \t\n\u000B\f\r`~!@#$%^&*()_+-={}|:'<>?;,/\"[].\\".toCharArray()) {
+         DATE_SEPARATORS[c] = true;
+      }
+   }
+   private static boolean isDateSeparator(char c) {
+      return c < 128 && DATE_SEPARATORS[c];
+   }
    private static boolean isYear(int y) {
       return y >= 700 && y <= 2200;
    }
-   private static int getAlphaMonth(String mon) {
-     mon = mon.toLowerCase();
-     if (MONTHS.get(mon) != null) {
-             return MONTHS.get(mon);
-     }
-     return 0;
+   // true if text[start,end) equals the lower-case name, ignoring case
+   private static boolean isMonthName(CharSequence text, int start, int end, String name) {
+      if (end - start != name.length()) {
+         return false;
+      }
+      for (int i = 0; i < name.length(); i++) {
+         char c = text.charAt(start + i);
+         if (c != name.charAt(i) && c != name.charAt(i) - ('a' - 'A')) {
+            return false;
+         }
+      }
+      return true;
+   }
+   // month number of the token text[start,end): a month name or abbreviation, in any case; otherwise 0
+   private static int getAlphaMonth(CharSequence text, int start, int end) {
+      if (end - start < 3 || end - start > 9) {
+         return 0;
+      }
+      switch (text.charAt(start) | 0x20) {
+         case 'a':
+            return isMonthName(text, start, end, "apr") || isMonthName(text, start, end, "april") ? 4 :
+                   isMonthName(text, start, end, "aug") || isMonthName(text, start, end, "august") ? 8 : 0;
+         case 'd':
+            return isMonthName(text, start, end, "dec") || isMonthName(text, start, end, "december") ? 12 : 0;
+         case 'f':
+            return isMonthName(text, start, end, "feb") || isMonthName(text, start, end, "febr") ||
+                   isMonthName(text, start, end, "february") ? 2 : 0;
+         case 'j':
+            return isMonthName(text, start, end, "jan") || isMonthName(text, start, end, "january") ? 1 :
+                   isMonthName(text, start, end, "jun") || isMonthName(text, start, end, "june") ? 6 :
+                   isMonthName(text, start, end, "jul") || isMonthName(text, start, end, "july") ? 7 : 0;
+         case 'm':
+            return isMonthName(text, start, end, "mar") || isMonthName(text, start, end, "march") ? 3 :
+                   isMonthName(text, start, end, "may") ? 5 : 0;
+         case 'n':
+            return isMonthName(text, start, end, "nov") || isMonthName(text, start, end, "november") ? 11 : 0;
+         case 'o':
+            return isMonthName(text, start, end, "oct") || isMonthName(text, start, end, "october") ? 10 : 0;
+         case 's':
+            return isMonthName(text, start, end, "sep") || isMonthName(text, start, end, "sept") ||
+                   isMonthName(text, start, end, "september") ? 9 : 0;
+         default:
+            return 0;
+      }
    }
    private static boolean isDay(int d) {
       return d >= 1 && d <= 31;
@@ -282,89 +301,120 @@ public class Util
       return m >= 1 && m <= 12;
    }
 
-   private static final boolean isNumeric(final String s) {
-     final char[] numbers = s.toCharArray();
-     for (int x = 0; x < numbers.length; x++) {
-       final char c = numbers[x];
-       if ((c >= '0') && (c <= '9')) continue;
-       return false; // invalid
-     }
-     return true; // valid
-   }
-
-   private static int parseInt(String field)
-   {
-      if (isNumeric(field))
-      {
-         try {
-            return Integer.parseInt(field);
-         }
-         catch (NumberFormatException e) {
-            // ignore
-         }
+   /**
+    * Return the sort key of the date as an int, yyyymmdd, with 00 for an unknown month or day; 0 if the date has no year.
+    * The day is kept only if the month is known.
+    * Scans the date once, classifying each token once the next token is known; a number token is a year, or a day
+    * if it can't be a month or is next to a month name, or else a month unless it follows a year (as in 1963/4).
+    */
+   public static int getDateSortKeyInt(CharSequence date) {
+      if (date == null) {
+         return 0;
       }
-      return 0;
-   }
-
-   public static String getDateSortKey(String date) {
-      String result = "";
-      if (!Util.isEmpty(date))
-      {
-         int year = 0;
-         int month = 0;
-         int day = 0;
-         Matcher mFields = pAlphaNumRegExp.matcher(date);
-         List<String> fields = new ArrayList<String>();
-
-         while (mFields.find())
-         {
-            fields.add(mFields.group(0));
+      int year = 0;
+      int month = 0;
+      int day = 0;
+      int len = date.length();
+      int pos = 0;
+      // number (0 if not a number or too large) and month (0 if not a month name) of the previous, current, and next tokens
+      boolean hasCur = false;
+      int prevNum = 0;
+      int prevMonth = 0;
+      int curNum = 0;
+      int curMonth = 0;
+      while (true) {
+         while (pos < len && isDateSeparator(date.charAt(pos))) {
+            pos++;
          }
-
-         for (int i = 0; i < fields.size(); i++) {
-            String field = fields.get(i);
-            int num = parseInt(field);
-
-            if (isYear(num))
-            {
-               if (year == 0) year = num;
-            } else if (getAlphaMonth(field) > 0)
-            {
-               if (month == 0) {
-                  month = getAlphaMonth(field);
+         boolean hasNext = (pos < len);
+         int nextNum = 0;
+         int nextMonth = 0;
+         if (hasNext) {
+            int start = pos;
+            char c = date.charAt(pos);
+            if (c >= '0' && c <= '9') {
+               long n = 0;
+               while (pos < len && (c = date.charAt(pos)) >= '0' && c <= '9') {
+                  if (n <= Integer.MAX_VALUE) {
+                     n = n * 10 + (c - '0');
+                  }
+                  pos++;
                }
-            } else if (isDay(num) && (!isNumMonth(num) ||
-                  (i > 0 && getAlphaMonth(fields.get(i - 1)) > 0) ||
-                  (i < fields.size() - 1 && getAlphaMonth(fields.get(i + 1)) > 0)))
-            {
-               if (day == 0) {
-                  day = num;
+               nextNum = (n <= Integer.MAX_VALUE ? (int)n : 0);
+            }
+            else {
+               while (pos < len && !isDateSeparator(c = date.charAt(pos)) && (c < '0' || c > '9')) {
+                  pos++;
                }
-            } else if (i > 0 && isYear(parseInt(fields.get(i - 1))))
-            {
+               nextMonth = getAlphaMonth(date, start, pos);
+            }
+         }
+
+         if (hasCur) {
+            if (isYear(curNum)) {
+               if (year == 0) year = curNum;
+            }
+            else if (curMonth > 0) {
+               if (month == 0) month = curMonth;
+            }
+            else if (isDay(curNum) && (!isNumMonth(curNum) || prevMonth > 0 || nextMonth > 0)) {
+               if (day == 0) day = curNum;
+            }
+            else if (isYear(prevNum)) {
                // ignore -- probably 1963/4
-            } else if (isNumMonth(num))
-            {
-               if (month == 0) {
-                  month = num;
-               }
+            }
+            else if (isNumMonth(curNum)) {
+               if (month == 0) month = curNum;
             }
          }
 
-         if (year > 0) {
-            result = Integer.toString(year);
-            if (result.length() < 4) result = "0000".substring(0, 4 - result.length()) + result;
-            if (month > 0) {
-               result += (month < 10 ? "0" +
-                     Integer.toString(month) : Integer.toString(month));
-               if (day > 0) {
-                  result += (day < 10 ? "0" +
-                        Integer.toString(day) : Integer.toString(day));
-               }
+         if (!hasNext) {
+            break;
+         }
+         prevNum = curNum;
+         prevMonth = curMonth;
+         curNum = nextNum;
+         curMonth = nextMonth;
+         hasCur = true;
+      }
+
+      if (year == 0) {
+         return 0;
+      }
+      return year * 10000 + (month > 0 ? month * 100 + day : 0);
+   }
+
+   /**
+    * Append the sort key of the date to buf: yyyy, yyyymm, or yyyymmdd, or nothing if the date has no year
+    */
+   public static void appendDateSortKey(CharSequence date, StringBuilder buf) {
+      int key = getDateSortKeyInt(date);
+      if (key > 0) {
+         appendDigits(buf, key / 10000, 4);
+         int month = key / 100 % 100;
+         int day = key % 100;
+         if (month > 0) {
+            appendDigits(buf, month, 2);
+            if (day > 0) {
+               appendDigits(buf, day, 2);
             }
          }
       }
-      return result;
+   }
+
+   private static void appendDigits(StringBuilder buf, int n, int width) {
+      for (int d = 10; width > 1; d *= 10, width--) {
+         if (n < d) {
+            buf.append('0');
+         }
+      }
+      buf.append(n);
+   }
+
+   public static String getDateSortKey(String date) {
+      StringBuilder buf = new StringBuilder(8);
+      appendDateSortKey(date, buf);
+      return buf.toString();
    }
 
    public static String join(String glue, Collection<? extends Object> c, String encloseString) {
@@ -465,13 +515,19 @@ public class Util
       return fields;
    }
 
+   private static final Pattern PERCENT_HEX_PATTERN = Pattern.compile("%([0-9a-fA-F][0-9a-fA-F])");
+   private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+   private static final Pattern SLASHES_PATTERN = Pattern.compile("//+");
+
    /**
     * Convert a string into a form that can be used for a wiki title
     */
    public static String prepareWikiTitle(String title, int maxTitleLen) {
       title = title.replace('<','(').replace('[','(').replace('{','(').replace('>',')').replace(']',')').replace('}',')').
                     replace('|','-').replace('_',' ').replace('/','-').replace("#"," ").replace("?", " ").replace("+"," and ").replace("&"," and ");
-      title = title.replaceAll("%([0-9a-fA-F][0-9a-fA-F])", "% $1").replaceAll("\\s+", " ").replaceAll("//+", "/").trim();
+      title = Patterns.replaceAll(title, PERCENT_HEX_PATTERN, "% $1");
+      title = Patterns.replaceAll(title, WHITESPACE_PATTERN, " ");
+      title = Patterns.replaceAll(title, SLASHES_PATTERN, "/").trim();
       StringBuffer dest = new StringBuffer();
       for (int i = 0; i < title.length(); i++) {
          char c = title.charAt(i);
@@ -632,7 +688,8 @@ public class Util
       return target.replace('_',' ').trim();
    }
 
-   private static final String[] CHARACTER_REPLACEMENTS = {
+   // pairs of char, replacement; see Romanizer
+   static final String[] CHARACTER_REPLACEMENTS = {
       "æ","ae",
       "ǝ","ae",
       "ǽ","ae",
@@ -861,12 +918,6 @@ public class Util
       "Ž","Z",
       "Ż","Z"
    };
-   private static final HashMap<Character,String> CHARACTER_MAPPINGS = new HashMap<Character,String>();
-   static {
-      for (int i = 0; i < CHARACTER_REPLACEMENTS.length; i+=2) {
-         CHARACTER_MAPPINGS.put(CHARACTER_REPLACEMENTS[i].charAt(0), CHARACTER_REPLACEMENTS[i+1]);
-      }
-   }
 
    private static final String[][] HTML_ENTITIES = {
       {"nbsp","32"}, // use normal space instead of hard space
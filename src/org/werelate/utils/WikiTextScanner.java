@@ -0,0 +1,305 @@
+package org.werelate.utils;
+
+import java.util.Arrays;
+
+/**
+ * Finds the templates and links in wikitext in a single pass over the characters.
+ * Each {{...}} and [[...]] is reported to a Visitor when its closing braces or brackets are reached,
+ * so nested elements are reported before the elements that contain them.
+ * Elements give offsets into the text; their strings are only created when asked for.
+ * A }} closes the innermost open template, discarding any links left open inside it; a ]] closes a link only if
+ * it is the innermost open element; unmatched closings are ignored, and elements left open at the end are not reported.
+ * A | or = separates parameters only at the top level of the element, not inside nested templates or links.
+ */
+public class WikiTextScanner {
+   /**
+    * Receives the elements of a scan.
+    * The element objects are reused; they are valid only until the method returns.
+    */
+   public static abstract class Visitor {
+      public void template(Template template) {
+      }
+
+      public void link(Link link) {
+      }
+   }
+
+   public static abstract class Element {
+      String text;
+      int start;
+      int end;
+      // offset of the first top-level |, or -1
+      int firstBar;
+
+      /**
+       * @return offset of the opening braces or brackets
+       */
+      public int getStart() {
+         return start;
+      }
+
+      /**
+       * @return offset just past the closing braces or brackets
+       */
+      public int getEnd() {
+         return end;
+      }
+
+      /**
+       * @return text between the opening and closing braces or brackets, trimmed
+       */
+      public String getContent() {
+         return trimmed(start + 2, end - 2);
+      }
+
+      String trimmed(int from, int to) {
+         while (from < to && text.charAt(from) <= ' ') {
+            from++;
+         }
+         while (to > from && text.charAt(to - 1) <= ' ') {
+            to--;
+         }
+         return text.substring(from, to);
+      }
+
+      boolean trimmedEqualsIgnoreCase(int from, int to, String s) {
+         while (from < to && text.charAt(from) <= ' ') {
+            from++;
+         }
+         while (to > from && text.charAt(to - 1) <= ' ') {
+            to--;
+         }
+         return to - from == s.length() && text.regionMatches(true, from, s, 0, s.length());
+      }
+   }
+
+   /**
+    * {{name|param|name=value|...}}
+    */
+   public static class Template extends Element {
+      int depth;
+      // for each parameter: start, offset of the first top-level = or -1, end
+      int[] params = new int[3 * 8];
+      int numParams;
+
+      /**
+       * @return number of templates enclosing this one
+       */
+      public int getDepth() {
+         return depth;
+      }
+
+      /**
+       * @return template name, trimmed
+       */
+      public String getName() {
+         return trimmed(start + 2, firstBar >= 0 ? firstBar : end - 2);
+      }
+
+      public boolean nameEqualsIgnoreCase(String name) {
+         return trimmedEqualsIgnoreCase(start + 2, firstBar >= 0 ? firstBar : end - 2, name);
+      }
+
+      /**
+       * @return text between the first | and the closing braces, untrimmed, or "" if there are no parameters
+       */
+      public String getArguments() {
+         return firstBar >= 0 ? text.substring(firstBar + 1, end - 2) : "";
+      }
+
+      public int getParamCount() {
+         return numParams;
+      }
+
+      public int getParamStart(int i) {
+         return params[3 * i];
+      }
+
+      /**
+       * @return offset of the = ending the parameter's name, or -1 if the parameter is unnamed
+       */
+      public int getParamEquals(int i) {
+         return params[3 * i + 1];
+      }
+
+      public int getParamEnd(int i) {
+         return params[3 * i + 2];
+      }
+
+      /**
+       * @return the parameter's name, trimmed, or null if the parameter is unnamed
+       */
+      public String getParamName(int i) {
+         return params[3 * i + 1] >= 0 ? trimmed(params[3 * i], params[3 * i + 1]) : null;
+      }
+
+      public boolean paramNameEqualsIgnoreCase(int i, String name) {
+         return params[3 * i + 1] >= 0 && trimmedEqualsIgnoreCase(params[3 * i], params[3 * i + 1], name);
+      }
+
+      /**
+       * @return the parameter's value (after the = if it is named), trimmed
+       */
+      public String getParamValue(int i) {
+         int eq = params[3 * i + 1];
+         return trimmed(eq >= 0 ? eq + 1 : params[3 * i], params[3 * i + 2]);
+      }
+
+      /**
+       * @return index of the parameter with the specified name, or -1
+       */
+      public int findParamIgnoreCase(String name) {
+         for (int i = 0; i < numParams; i++) {
+            if (paramNameEqualsIgnoreCase(i, name)) {
+               return i;
+            }
+         }
+         return -1;
+      }
+
+      void addParam(int paramStart) {
+         if (3 * numParams + 3 > params.length) {
+            params = Arrays.copyOf(params, params.length * 2);
+         }
+         params[3 * numParams] = paramStart;
+         params[3 * numParams + 1] = -1;
+         numParams++;
+      }
+   }
+
+   /**
+    * [[target|text]]
+    */
+   public static class Link extends Element {
+      public int getTargetStart() {
+         return start + 2;
+      }
+
+      /**
+       * @return offset of the first top-level | or of the closing brackets
+       */
+      public int getTargetEnd() {
+         return firstBar >= 0 ? firstBar : end - 2;
+      }
+
+      /**
+       * @return link target, trimmed
+       */
+      public String getTarget() {
+         return trimmed(start + 2, getTargetEnd());
+      }
+
+      public boolean targetEqualsIgnoreCase(String target) {
+         return trimmedEqualsIgnoreCase(start + 2, getTargetEnd(), target);
+      }
+
+      /**
+       * @return the text after the first |, trimmed, or null if there is none
+       */
+      public String getLabel() {
+         return firstBar >= 0 ? trimmed(firstBar + 1, end - 2) : null;
+      }
+   }
+
+   // open elements, innermost last, and spare element objects above them
+   private Element[] stack;
+   private int depth;
+   private int templateDepth;
+
+   private WikiTextScanner() {
+      stack = new Element[16];
+   }
+
+   /**
+    * Report the templates and links of the text to the visitor
+    */
+   public static void scan(String text, Visitor visitor) {
+      if (text.indexOf('{') < 0 && text.indexOf('[') < 0) {
+         return;
+      }
+      new WikiTextScanner().run(text, visitor);
+   }
+
+   private Element push(boolean isTemplate, String text, int start) {
+      if (depth == stack.length) {
+         stack = Arrays.copyOf(stack, depth * 2);
+      }
+      Element e = stack[depth];
+      if (isTemplate ? !(e instanceof Template) : !(e instanceof Link)) {
+         e = (isTemplate ? new Template() : new Link());
+         stack[depth] = e;
+      }
+      depth++;
+      e.text = text;
+      e.start = start;
+      e.firstBar = -1;
+      if (isTemplate) {
+         Template t = (Template)e;
+         t.depth = templateDepth++;
+         t.numParams = 0;
+      }
+      return e;
+   }
+
+   private void run(String text, Visitor visitor) {
+      int len = text.length();
+      int i = 0;
+      while (i < len) {
+         char c = text.charAt(i);
+         char next = (i + 1 < len ? text.charAt(i + 1) : 0);
+         Element top = (depth > 0 ? stack[depth - 1] : null);
+         if (c == '{' && next == '{') {
+            push(true, text, i);
+            i += 2;
+         }
+         else if (c == '}' && next == '}') {
+            if (templateDepth > 0) {
+               while (!(stack[depth - 1] instanceof Template)) {
+                  depth--;
+               }
+               Template t = (Template)stack[--depth];
+               templateDepth--;
+               if (t.numParams > 0) {
+                  t.params[3 * t.numParams - 1] = i;
+               }
+               t.end = i + 2;
+               visitor.template(t);
+            }
+            i += 2;
+         }
+         else if (c == '[' && next == '[') {
+            push(false, text, i);
+            i += 2;
+         }
+         else if (c == ']' && next == ']') {
+            if (top instanceof Link) {
+               depth--;
+               top.end = i + 2;
+               visitor.link((Link)top);
+            }
+            i += 2;
+         }
+         else {
+            if (c == '|' && top != null) {
+               if (top.firstBar < 0) {
+                  top.firstBar = i;
+               }
+               if (top instanceof Template) {
+                  Template t = (Template)top;
+                  if (t.numParams > 0) {
+                     t.params[3 * t.numParams - 1] = i;
+                  }
+                  t.addParam(i + 1);
+               }
+            }
+            else if (c == '=' && top instanceof Template) {
+               Template t = (Template)top;
+               if (t.numParams > 0 && t.params[3 * t.numParams - 2] < 0) {
+                  t.params[3 * t.numParams - 2] = i;
+               }
+            }
+            i++;
+         }
+      }
+   }
+}
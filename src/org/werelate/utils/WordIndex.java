@@ -0,0 +1,100 @@
+package org.werelate.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Memory-mapped reader for an inverted word index written by WordIndexBuilder.writeBinary.
+ * find and getIds binary-search the word records and decode the posting deltas in place, allocating only the result,
+ * and keep no state between calls, so one WordIndex can serve several threads.
+ */
+public class WordIndex {
+   private ByteBuffer buf;
+   private int numWords;
+   private int offsetsPos;
+
+   public WordIndex(String filename) throws IOException {
+      buf = MappedIndex.map(filename);
+      if (buf.capacity() < WordIndexBuilder.HEADER_SIZE || buf.getInt(0) != WordIndexBuilder.MAGIC || buf.getInt(4) != WordIndexBuilder.VERSION) {
+         throw new IOException("Not a word index: " + filename);
+      }
+      numWords = buf.getInt(8);
+      offsetsPos = buf.getInt(12);
+   }
+
+   private int getRecord(int i) {
+      return buf.getInt(offsetsPos + 4 * i);
+   }
+
+   public int size() {
+      return numWords;
+   }
+
+   /**
+    * Return the i'th word in byte order
+    */
+   public String getWord(int i) {
+      int record = getRecord(i);
+      byte[] bytes = new byte[buf.getShort(record) & 0xffff];
+      for (int j = 0; j < bytes.length; j++) {
+         bytes[j] = buf.get(record + 2 + j);
+      }
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   /**
+    * Return the number of the word, or -1 if it isn't in the index
+    */
+   public int find(String word) {
+      byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+      int lo = 0;
+      int hi = numWords - 1;
+      while (lo <= hi) {
+         int mid = (lo + hi) >>> 1;
+         int c = MappedIndex.compareKey(buf, getRecord(mid), bytes);
+         if (c < 0) {
+            lo = mid + 1;
+         }
+         else if (c > 0) {
+            hi = mid - 1;
+         }
+         else {
+            return mid;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Return the sorted ids of the i'th word
+    */
+   public int[] getIds(int i) {
+      int pos = getRecord(i);
+      pos += 2 + (buf.getShort(pos) & 0xffff);
+      int[] ids = new int[buf.getInt(pos)];
+      pos += 8;
+      int id = 0;
+      for (int j = 0; j < ids.length; j++) {
+         int delta = 0;
+         int shift = 0;
+         byte b;
+         do {
+            b = buf.get(pos++);
+            delta |= (b & 0x7f) << shift;
+            shift += 7;
+         } while (b < 0);
+         id = (j == 0 ? delta : id + delta);
+         ids[j] = id;
+      }
+      return ids;
+   }
+
+   /**
+    * Return the sorted ids of the word, or an empty array if it isn't in the index
+    */
+   public int[] getIds(String word) {
+      int i = find(word);
+      return (i < 0 ? new int[0] : getIds(i));
+   }
+}
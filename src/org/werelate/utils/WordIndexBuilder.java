@@ -0,0 +1,188 @@
+package org.werelate.utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Builds an inverted index from words to sorted lists of int ids.
+ * Each posting list is held as variable-length deltas in a byte array instead of a set of boxed Integers,
+ * so ids must be added in non-decreasing order for each word; repeated ids are ignored.
+ * The index can be written as text (word, tab, [id,id,...]) or in the binary format read by WordIndex.
+ */
+public class WordIndexBuilder {
+   static final int MAGIC = 0x57494458;         // WIDX
+   static final int VERSION = 1;
+   static final int HEADER_SIZE = 16;
+
+   private static class Postings {
+      byte[] data = new byte[4];
+      int length = 0;
+      int count = 0;
+      int last = -1;
+   }
+
+   // a word's UTF-8 bytes and its postings, for writeBinary
+   private static class Record {
+      final byte[] word;
+      Postings postings;
+
+      Record(byte[] word, Postings postings) {
+         this.word = word;
+         this.postings = postings;
+      }
+   }
+
+   private Map<String,Postings> postings;
+
+   public WordIndexBuilder() {
+      postings = new HashMap<String,Postings>();
+   }
+
+   public void add(String word, int id) {
+      Postings p = postings.get(word);
+      if (p == null) {
+         p = new Postings();
+         postings.put(word, p);
+      }
+      if (id < p.last) {
+         throw new IllegalArgumentException("Ids out of order for " + word + ": " + p.last + " then " + id);
+      }
+      append(p, id);
+   }
+
+   // add an id >= p.last
+   private static void append(Postings p, int id) {
+      if (id == p.last) {
+         return;
+      }
+      if (p.length + 5 > p.data.length) {
+         p.data = Arrays.copyOf(p.data, p.data.length * 2);
+      }
+      p.length = writeVarInt(p.data, p.length, p.last < 0 ? id : id - p.last);
+      p.count++;
+      p.last = id;
+   }
+
+   static int writeVarInt(byte[] data, int pos, int value) {
+      while ((value & ~0x7f) != 0) {
+         data[pos++] = (byte)((value & 0x7f) | 0x80);
+         value >>>= 7;
+      }
+      data[pos++] = (byte)value;
+      return pos;
+   }
+
+   public int size() {
+      return postings.size();
+   }
+
+   /**
+    * Return the words in String.compareTo order
+    */
+   public List<String> getWords() {
+      List<String> words = new ArrayList<String>(postings.keySet());
+      Collections.sort(words);
+      return words;
+   }
+
+   public int[] getIds(String word) {
+      Postings p = postings.get(word);
+      return (p == null ? new int[0] : decode(p));
+   }
+
+   private static int[] decode(Postings p) {
+      int[] ids = new int[p.count];
+      int pos = 0;
+      int id = 0;
+      for (int i = 0; i < p.count; i++) {
+         int delta = 0;
+         int shift = 0;
+         byte b;
+         do {
+            b = p.data[pos++];
+            delta |= (b & 0x7f) << shift;
+            shift += 7;
+         } while (b < 0);
+         id = (i == 0 ? delta : id + delta);
+         ids[i] = id;
+      }
+      return ids;
+   }
+
+   /**
+    * Write the index in WordIndex format: header, word records sorted by word bytes, record offsets.
+    * A word record is the word length (short), the word bytes, the number of ids (int), the number of posting bytes (int), then the posting bytes.
+    */
+   public void writeBinary(String filename) throws IOException {
+      // sort by UTF-8 bytes, the order WordIndex searches in
+      List<Record> records = new ArrayList<Record>(postings.size());
+      for (Map.Entry<String,Postings> entry : postings.entrySet()) {
+         byte[] bytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+         if (bytes.length > 0xffff) {
+            throw new IOException("Word too long: " + entry.getKey());
+         }
+         records.add(new Record(bytes, entry.getValue()));
+      }
+      Collections.sort(records, new Comparator<Record>() {
+         public int compare(Record a, Record b) {
+            return MappedIndex.compareBytes(a.word, b.word);
+         }
+      });
+      // words with unpaired surrogates encode them as '?', so distinct words can have the same bytes; merge their ids
+      List<Record> words = new ArrayList<Record>(records.size());
+      for (Record record : records) {
+         Record prev = (words.size() > 0 ? words.get(words.size() - 1) : null);
+         if (prev != null && Arrays.equals(prev.word, record.word)) {
+            prev.postings = merge(prev.postings, record.postings);
+         }
+         else {
+            words.add(record);
+         }
+      }
+      records = null;
+
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 65536));
+      out.write(new byte[HEADER_SIZE]);
+      int[] offsets = new int[words.size()];
+      for (int i = 0; i < words.size(); i++) {
+         byte[] word = words.get(i).word;
+         Postings p = words.get(i).postings;
+         offsets[i] = MappedIndex.checkOffset(out.size());
+         out.writeShort(word.length);
+         out.write(word);
+         out.writeInt(p.count);
+         out.writeInt(p.length);
+         out.write(p.data, 0, p.length);
+      }
+      int offsetsPos = MappedIndex.checkOffset(out.size());
+      for (int offset : offsets) {
+         out.writeInt(offset);
+      }
+      out.close();
+
+      RandomAccessFile raf = new RandomAccessFile(filename, "rw");
+      raf.writeInt(MAGIC);
+      raf.writeInt(VERSION);
+      raf.writeInt(words.size());
+      raf.writeInt(offsetsPos);
+      raf.close();
+   }
+
+   private static Postings merge(Postings a, Postings b) {
+      int[] aIds = decode(a);
+      int[] bIds = decode(b);
+      Postings p = new Postings();
+      int i = 0;
+      int j = 0;
+      while (i < aIds.length || j < bIds.length) {
+         if (j == bIds.length || (i < aIds.length && aIds[i] <= bIds[j])) {
+            append(p, aIds[i++]);
+         }
+         else {
+            append(p, bIds[j++]);
+         }
+      }
+      return p;
+   }
+}
@@ -3,10 +3,12 @@ package org.werelate.wikipedia;
 import org.apache.commons.cli.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.werelate.parser.MultistreamDump;
 import org.werelate.parser.WikiReader;
 import org.werelate.parser.WikiPageParser;
 import org.werelate.utils.CountsCollector;
 import org.werelate.utils.Util;
+import org.werelate.utils.WikiTextScanner;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -21,8 +23,6 @@ public class AnalyzeWPPeople implements WikiPageParser
 {
    private static final Logger logger = LogManager.getLogger("org.werelate.wikipedia");
    public static Pattern pBirthsDeaths = Pattern.compile("\\[\\[\\s*Category:(\\d{3,4})s?\\s*(births|deaths)\\s*(\\]|\\|)", Pattern.CASE_INSENSITIVE);
-   public static Pattern pWpCategory = Pattern.compile("\\[\\[\\s*Category:([^\\]\\|]+)", Pattern.CASE_INSENSITIVE);
-   public static Pattern pSpouseParm = Pattern.compile("\\|\\s*spouse\\s*=", Pattern.CASE_INSENSITIVE);
    public static Pattern pParenthesized = Pattern.compile("\\((.*?)\\)");
    public static Pattern pLifetime = Pattern.compile("\\{\\{Lifetime\\s*\\|\\s*(\\d*)\\s*\\|\\s*(\\d*)", Pattern.CASE_INSENSITIVE);
 
@@ -234,33 +234,37 @@ public class AnalyzeWPPeople implements WikiPageParser
          // get name pieces
          String[] namePieces = getGivenSurname(title);
 
-         // gather all categories
-         StringBuilder catBuf = new StringBuilder();
-         m = pWpCategory.matcher(text);
-         while (m.find()) {
-            String catName = m.group(1);
-            if (catName.indexOf("\n") >= 0) catName = catName.substring(0, catName.indexOf("\n"));
-            if (catName.indexOf("births") < 0 && catName.indexOf("deaths") < 0 && catName.indexOf("People from") < 0) {
-               categoryCC.add(catName);
-               if (catBuf.length() > 0 ) catBuf.append('|');
-               catBuf.append(catName);
+         // gather all categories, and the templates with a spouse parameter, here or in a template nested inside them
+         final StringBuilder catBuf = new StringBuilder();
+         WikiTextScanner.scan(text, new WikiTextScanner.Visitor() {
+            private boolean nestedSpouse = false;
+
+            public void link(WikiTextScanner.Link link) {
+               String target = link.getTarget();
+               if (target.regionMatches(true, 0, "Category:", 0, "Category:".length())) {
+                  String catName = target.substring("Category:".length());
+                  if (catName.indexOf("\n") >= 0) catName = catName.substring(0, catName.indexOf("\n"));
+                  if (catName.indexOf("births") < 0 && catName.indexOf("deaths") < 0 && catName.indexOf("People from") < 0) {
+                     categoryCC.add(catName);
+                     if (catBuf.length() > 0 ) catBuf.append('|');
+                     catBuf.append(catName);
+                  }
+               }
             }
-         }
 
-         // gather all templates
-         for (String template : Util.getTemplates(text)) {
-            int pos = template.indexOf("|");
-            if (pos < 0) pos = template.length();
-            if (pos >= 0) {
-               String templateName = template.substring(0, pos).trim();
-//               templateCC.add(templateName);
-               // gather all templates with spouse field
-               m = pSpouseParm.matcher(template);
-               if (m.find()) {
-                  spouseTemplateCC.add(templateName);
+            public void template(WikiTextScanner.Template template) {
+               boolean spouse = nestedSpouse || template.findParamIgnoreCase("spouse") >= 0;
+               if (template.getDepth() > 0) {
+                  nestedSpouse = spouse;
+               }
+               else {
+                  if (spouse) {
+                     spouseTemplateCC.add(template.getName());
+                  }
+                  nestedSpouse = false;
                }
             }
-         }
+         });
 
          // save page title|gn|sn|bdate|ddate|categories
          pageTitles.println(title+"|"+namePieces[0]+"|"+namePieces[1]+"|"+birthDate+"|"+deathDate+"|"+catBuf.toString());
@@ -280,6 +284,7 @@ public class AnalyzeWPPeople implements WikiPageParser
       Options opt = new Options();
       // p is for WeRelate pages file.
       opt.addOption("wp", true, "wikipages.xml filename");
+      opt.addOption("wpi", true, "multistream index filename, if wp is a multistream .bz2 dump");
       opt.addOption("c", true, "Category counts file");
       opt.addOption("s", true, "Templates with spouses counts file");
       opt.addOption("p", true, "Page titles file");
@@ -301,7 +306,13 @@ public class AnalyzeWPPeople implements WikiPageParser
             AnalyzeWPPeople awp = new AnalyzeWPPeople();
             awp.setPageTitlesWriter(pageTitles);
             wr.addWikiPageParser(awp);
-            wr.read(wikipediaXML);
+            if (cl.hasOption("wpi")) {
+               // every page is analyzed, but the streams are decompressed in parallel
+               wr.read(new MultistreamDump(wikipediaXML, cl.getOptionValue("wpi")), null, Util.getDefaultThreads());
+            }
+            else {
+               wr.read(wikipediaXML);
+            }
             pageTitles.close();
             CountsCollector cc = awp.getCategoryCounts();
             PrintWriter out = new PrintWriter(categoryFilename);
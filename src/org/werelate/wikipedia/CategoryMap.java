@@ -1,25 +1,36 @@
 package org.werelate.wikipedia;
 
+import org.werelate.utils.KeywordClassifier;
+import org.werelate.utils.Util;
+
 import java.io.*;
 import java.util.regex.Pattern;
-import java.util.regex.Matcher;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.*;
 
 public class CategoryMap
 {
    public static class Category {
       public String name;
       public Pattern pattern;
+      public String keywords;
 
       public Category(String name, Pattern pattern) {
          this.name = name;
          this.pattern = pattern;
       }
+
+      public Category(String name, String keywords) {
+         this(name, Pattern.compile("\\b("+keywords+")\\b"));
+         this.keywords = keywords;
+      }
    }
 
+   private static final int BATCH_SIZE = 10000;
+
    public static List<Category> readCategoryMapFile(String filename) throws IOException
    {
       List<Category> categories = new ArrayList<Category>();
@@ -32,8 +43,7 @@ public class CategoryMap
             String[] fields = line.split(":");
             if (fields[1].endsWith("|")) fields[1] = fields[1].substring(0, fields[1].length()-1);
             String keywords = fields[1].toLowerCase();
-            Pattern pattern = Pattern.compile("\\b("+keywords+")\\b");
-            categories.add(new Category(fields[0], pattern));
+            categories.add(new Category(fields[0], keywords));
          }
       }
       in.close();
@@ -41,13 +51,51 @@ public class CategoryMap
       return categories;
    }
 
+   /**
+    * Return a classifier whose class numbers are the indexes of the categories; it matches lowercased category names
+    * the same way the category patterns do
+    */
+   public static KeywordClassifier getClassifier(List<Category> categories) {
+      KeywordClassifier classifier = new KeywordClassifier();
+      for (Category c : categories) {
+         if (c.keywords == null) {
+            throw new IllegalArgumentException("Category without keywords: "+c.name);
+         }
+         classifier.addClass(c.keywords);
+      }
+      return classifier;
+   }
+
+   private static class ClassifyBatch implements Callable<BitSet[]> {
+      private final KeywordClassifier classifier;
+      private final List<String> catNames;
+
+      ClassifyBatch(KeywordClassifier classifier, List<String> catNames) {
+         this.classifier = classifier;
+         this.catNames = catNames;
+      }
+
+      public BitSet[] call() {
+         BitSet[] matches = new BitSet[catNames.size()];
+         for (int i = 0; i < matches.length; i++) {
+            matches[i] = classifier.classify(catNames.get(i).toLowerCase());
+         }
+         return matches;
+      }
+   }
+
    // args[0] = category map
    // args[1] = category list
    // args[2] = output directory
-   public static void main(String[] args) throws IOException
+   // args[3] = number of threads (optional; default = number of processors)
+   public static void main(String[] args) throws IOException, InterruptedException, ExecutionException
    {
       // read category map
       List<Category> categories = readCategoryMapFile(args[0]);
+      KeywordClassifier classifier = getClassifier(categories);
+      int numThreads = (args.length > 3 ? Integer.parseInt(args[3]) : Util.getDefaultThreads());
+      ArrayDeque<Future<BitSet[]>> pending = new ArrayDeque<Future<BitSet[]>>();
+      ArrayDeque<List<String>> pendingLines = new ArrayDeque<List<String>>();
 
       // set up output files
       int[] counts = new int[categories.size()];
@@ -60,30 +108,37 @@ public class CategoryMap
       // set up otherWriter
       PrintWriter otherWriter = new PrintWriter(args[2]+"/other.txt");
 
-      // read categories file
-      int otherCnt = 0;
-      BufferedReader in = new BufferedReader(new FileReader(args[1]));
-      while (in.ready()) {
-         boolean found = false;
-         String line = in.readLine().trim();
-         int pos = line.lastIndexOf("\t");
-         String catName = line.substring(0, pos);
-         int cnt = Integer.parseInt(line.substring(pos+1));
-         for (int i = 0; i < categories.size(); i++) {
-            Category c = categories.get(i);
-            Matcher m = c.pattern.matcher(catName.toLowerCase());
-            if (m.find()) {
-               found = true;
-               counts[i] += cnt;
-               writers[i].println("* [[Wikipedia:Category:"+catName+"]] "+cnt);
+      // read categories file, classifying batches of lines in parallel and writing them in order
+      int[] otherCnt = new int[1];
+      ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+      try {
+         BufferedReader in = new BufferedReader(new FileReader(args[1]));
+         List<String> lines = new ArrayList<String>();
+         List<String> catNames = new ArrayList<String>();
+         while (in.ready()) {
+            String line = in.readLine().trim();
+            lines.add(line);
+            catNames.add(line.substring(0, line.lastIndexOf("\t")));
+            if (lines.size() == BATCH_SIZE) {
+               pending.add(pool.submit(new ClassifyBatch(classifier, catNames)));
+               pendingLines.add(lines);
+               lines = new ArrayList<String>();
+               catNames = new ArrayList<String>();
+               if (pending.size() > numThreads * 2) {
+                  writeBatch(pending.remove().get(), pendingLines.remove(), counts, writers, otherCnt, otherWriter);
+               }
             }
          }
-         if (!found) {
-            otherCnt += cnt;
-            otherWriter.println("* [[Wikipedia:Category:"+catName+"]] "+cnt);
+         pending.add(pool.submit(new ClassifyBatch(classifier, catNames)));
+         pendingLines.add(lines);
+         while (pending.size() > 0) {
+            writeBatch(pending.remove().get(), pendingLines.remove(), counts, writers, otherCnt, otherWriter);
          }
+         in.close();
+      }
+      finally {
+         pool.shutdown();
       }
-      in.close();
 
       // close everything
       for (int i = 0; i < categories.size(); i++) {
@@ -91,7 +146,24 @@ public class CategoryMap
          System.out.println("Category "+c.name+" = "+counts[i]);
          writers[i].close();
       }
-      System.out.println("Other = "+otherCnt);
+      System.out.println("Other = "+otherCnt[0]);
       otherWriter.close();
    }
+
+   private static void writeBatch(BitSet[] matches, List<String> lines, int[] counts, PrintWriter[] writers, int[] otherCnt, PrintWriter otherWriter) {
+      for (int j = 0; j < matches.length; j++) {
+         String line = lines.get(j);
+         int pos = line.lastIndexOf("\t");
+         String catName = line.substring(0, pos);
+         int cnt = Integer.parseInt(line.substring(pos+1));
+         if (matches[j].isEmpty()) {
+            otherCnt[0] += cnt;
+            otherWriter.println("* [[Wikipedia:Category:"+catName+"]] "+cnt);
+         }
+         for (int i = matches[j].nextSetBit(0); i >= 0; i = matches[j].nextSetBit(i+1)) {
+            counts[i] += cnt;
+            writers[i].println("* [[Wikipedia:Category:"+catName+"]] "+cnt);
+         }
+      }
+   }
 }
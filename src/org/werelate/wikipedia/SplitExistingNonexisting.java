@@ -1,6 +1,7 @@
 package org.werelate.wikipedia;
 
 import org.apache.commons.cli.*;
+import org.werelate.utils.KeywordClassifier;
 import org.werelate.utils.Util;
 
 import java.io.IOException;
@@ -30,20 +31,18 @@ public class SplitExistingNonexisting
       return titles;
    }
 
-   public static List<String> getFamousCategories(String catString, List<CategoryMap.Category> catMap) {
+   /**
+    * Return the names of the categories in catMap that match any of the |-separated category names in catString
+    * @param classifier from CategoryMap.getClassifier(catMap)
+    */
+   public static List<String> getFamousCategories(String catString, List<CategoryMap.Category> catMap, KeywordClassifier classifier) {
       List<String> famousCategories = new ArrayList<String>();
-      String[] categories = catString.toLowerCase().split("\\|");
-      for (CategoryMap.Category c : catMap) {
-         boolean found = false;
-         for (String catEntry : categories) {
-            if (c.pattern.matcher(catEntry).find()) {
-               found = true;
-               break;
-            }
-         }
-         if (found) {
-            famousCategories.add(c.name);
-         }
+      BitSet found = new BitSet(catMap.size());
+      for (String catEntry : catString.toLowerCase().split("\\|")) {
+         classifier.classify(catEntry, found);
+      }
+      for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i+1)) {
+         famousCategories.add(catMap.get(i).name);
       }
       return famousCategories;
    }
@@ -78,6 +77,7 @@ public class SplitExistingNonexisting
             String unmatchedFilename = cl.getOptionValue("u");
 
             List<CategoryMap.Category> categories = CategoryMap.readCategoryMapFile(categoryMapFilename);
+            KeywordClassifier classifier = CategoryMap.getClassifier(categories);
             Map<String,String> wp2wr = readWp2Wr(wp2wrFilename);
             Set<String> matchedWpTitles = new HashSet<String>();
 
@@ -93,7 +93,7 @@ public class SplitExistingNonexisting
                   String wrTitle = wp2wr.get(fields[0]);
                   if (wrTitle != null) {
                      matchedWpTitles.add(fields[0]);
-                     List<String> famousCategories = getFamousCategories(fields[5], categories);
+                     List<String> famousCategories = getFamousCategories(fields[5], categories, classifier);
                      if (famousCategories.size() > 0) {
                         existing.println(wrTitle+"|"+Util.join("|", famousCategories));
                      }
@@ -0,0 +1,190 @@
+package org.werelate.wikipedia;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.werelate.editor.PageEditor;
+import org.werelate.utils.RateLimiter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+
+/**
+ * Applies wp- template updates on worker threads, so reading the wikipedia dump doesn't wait for the wiki.
+ * Each worker has its own PageEditor; together they start no more than one template per delay interval.
+ * Up to QUEUE_PER_WORKER updates per worker are buffered; add blocks once the workers fall that far behind.
+ */
+public class TemplateUpdateQueue {
+   private static final Logger logger = LogManager.getLogger("org.werelate.wikipedia");
+   private static final int QUEUE_PER_WORKER = 10;
+
+   private static class Update {
+      final String wrTitle;
+      final String wpTitle;
+      final String copySection;
+      final String text;
+
+      Update(String wrTitle, String wpTitle, String copySection, String text) {
+         this.wrTitle = wrTitle;
+         this.wpTitle = wpTitle;
+         this.copySection = copySection;
+         this.text = text;
+      }
+   }
+
+   private static final Update END = new Update(null, null, null, null);
+
+   private BlockingQueue<Update> queue;
+   private List<Thread> workers;
+   private RateLimiter rateLimiter;
+   private AtomicInteger postCount;
+   private AtomicInteger unchangedCount;
+   private AtomicInteger sectionChangedCount;
+   private AtomicInteger errorCount;
+   private volatile RuntimeException failure;
+
+   public TemplateUpdateQueue(String host, String agentPassword, int numWorkers, long delayMillis) {
+      this.queue = new ArrayBlockingQueue<Update>(numWorkers * QUEUE_PER_WORKER);
+      this.workers = new ArrayList<Thread>();
+      this.rateLimiter = new RateLimiter(delayMillis);
+      this.postCount = new AtomicInteger();
+      this.unchangedCount = new AtomicInteger();
+      this.sectionChangedCount = new AtomicInteger();
+      this.errorCount = new AtomicInteger();
+      this.failure = null;
+      // create the editors first, so a failure shows up here rather than in a worker
+      List<PageEditor> editors = new ArrayList<PageEditor>();
+      for (int i = 0; i < numWorkers; i++) {
+         editors.add(new PageEditor(host, agentPassword));
+      }
+      for (int i = 0; i < numWorkers; i++) {
+         final PageEditor editor = editors.get(i);
+         Thread worker = new Thread("template-update-" + i) {
+            public void run() {
+               work(editor);
+            }
+         };
+         workers.add(worker);
+         worker.start();
+      }
+   }
+
+   /**
+    * Queue an update of Template:wrTitle to text, which was generated from the copySection section of wpTitle
+    * (null for the opening section). The update is skipped if the template now copies a different section.
+    */
+   public void add(String wrTitle, String wpTitle, String copySection, String text) throws IOException {
+      enqueue(new Update(wrTitle, wpTitle, copySection, text));
+   }
+
+   // a worker that fails stops taking updates, so don't wait on a full queue after that
+   private void enqueue(Update update) throws IOException {
+      try {
+         while (failure == null && !queue.offer(update, 1, TimeUnit.SECONDS)) {
+         }
+      }
+      catch (InterruptedException e) {
+         throw new IOException("Interrupted", e);
+      }
+      if (failure != null) {
+         throw failure;
+      }
+   }
+
+   private void work(PageEditor editor) {
+      try {
+         for (Update update = queue.take(); update != END; update = queue.take()) {
+            rateLimiter.acquire();
+            try {
+               apply(editor, update);
+            }
+            catch (Exception e) {
+               logger.error("Update failed: Template:" + update.wrTitle + " - " + e);
+               errorCount.incrementAndGet();
+            }
+         }
+      }
+      catch (InterruptedException e) {
+         logger.warn("Template update worker interrupted");
+      }
+      catch (Throwable e) {
+         logger.error("Template update worker failed: " + e);
+         failure = (e instanceof RuntimeException ? (RuntimeException)e : new RuntimeException(e));
+      }
+   }
+
+   private void apply(PageEditor editor, Update update) {
+      editor.doGet("Template:"+update.wrTitle, true);
+      String wrText = editor.readVariable(PageEditor.TEXTBOX1_PATTERN, true).trim();
+      Matcher mCopyWikipedia = WP2WRTitleParser.pCopyWikipedia.matcher(wrText);
+      String copySection = null;
+      if (mCopyWikipedia.find()) {
+         copySection = mCopyWikipedia.group(3);
+      }
+      else if (wrText.length() > 0) {
+         logger.warn("Updating a template page without a copy-wikipedia template: Template:"+update.wrTitle);
+      }
+      if (copySection == null ? update.copySection != null : !copySection.equals(update.copySection)) {
+         logger.warn("Not updated; Template:"+update.wrTitle+" now copies a different section of "+update.wpTitle);
+         sectionChangedCount.incrementAndGet();
+      }
+      else if (!update.text.trim().equals(wrText)) {
+         editor.setPostVariable("wpTextbox1", update.text);
+         editor.setPostVariable("wpSummary", "Updated from Wikipedia");
+         int posted = editor.getPostCount();
+         editor.doPost();
+         if (editor.getPostCount() == posted) {
+            errorCount.incrementAndGet();
+         }
+         else if (postCount.incrementAndGet() % 1000 == 0) {
+            System.out.print(".");
+         }
+      }
+      else {
+         unchangedCount.incrementAndGet();
+      }
+   }
+
+   /**
+    * Wait for the queued updates to be applied and stop the workers
+    * @throws RuntimeException the failure of a worker, if one died
+    */
+   public void finish() throws IOException {
+      try {
+         for (int i = 0; i < workers.size(); i++) {
+            enqueue(END);
+         }
+      }
+      finally {
+         for (Thread worker : workers) {
+            if (failure != null) {
+               // stop the remaining workers instead of applying the rest of the queue
+               worker.interrupt();
+            }
+            try {
+               worker.join();
+            }
+            catch (InterruptedException e) {
+               logger.warn(e);
+            }
+         }
+         logger.warn("Template updates: posted "+postCount.get()+", unchanged "+unchangedCount.get()+
+                 ", section changed "+sectionChangedCount.get()+", failed "+errorCount.get());
+      }
+      if (failure != null) {
+         throw failure;
+      }
+   }
+
+   /**
+    * @return number of templates posted successfully
+    */
+   public int getPostCount() {
+      return postCount.get();
+   }
+}
@@ -5,7 +5,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.werelate.parser.WikiReader;
 import org.werelate.parser.WikiPageParser;
-import org.werelate.utils.MultiMap;
+import org.werelate.utils.StringMultiMap;
 
 import java.io.PrintWriter;
 import java.io.IOException;
@@ -18,7 +18,7 @@ public class WP2WR
 {
    private static final Logger logger = LogManager.getLogger("org.werelate.wikipedia");
 
-   private static void outputFile(MultiMap<String,String> wp2t, MultiMap<String,String> t2wr, String filename) throws FileNotFoundException
+   private static void outputFile(StringMultiMap wp2t, StringMultiMap t2wr, String filename) throws FileNotFoundException
    {
       PrintWriter out = new PrintWriter(filename);
       for (String wpTitle : wp2t.keySet()) {
@@ -62,8 +62,8 @@ public class WP2WR
             WP2WRTitleParser titleParser = new WP2WRTitleParser();
             wr.addWikiPageParser(titleParser);
             wr.read(pagesXML);
-            MultiMap<String,String> wp2t = titleParser.getWp2templates();
-            MultiMap<String,String> t2wr = titleParser.getTemplate2Wr();
+            StringMultiMap wp2t = titleParser.getWp2templates();
+            StringMultiMap t2wr = titleParser.getTemplate2Wr();
 
             // read Wikipedia file looking for redirects
             WikipediaAltNamesParser wanp = new WikipediaAltNamesParser(wp2t.keySet());
@@ -10,7 +10,8 @@ import java.util.Set;
 import java.util.HashSet;
 import java.io.IOException;
 
-import org.werelate.utils.MultiMap;
+import org.werelate.utils.StringMultiMap;
+import org.werelate.utils.Util;
 import org.werelate.parser.WikiPageParser;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -34,23 +35,26 @@ public class WP2WRTitleParser implements WikiPageParser {
            Pattern.CASE_INSENSITIVE);
 
    // Map from wikipedia title to the werelate template titles
-   private MultiMap <String, String> wp2templates = new MultiMap <String, String>();
+   private StringMultiMap wp2templates = new StringMultiMap();
    // Map from WeRelate wikipedia template titles to the werelate article titles that point to them.
-   private MultiMap<String, String> template2Wr = new MultiMap <String, String>();
+   private StringMultiMap template2Wr = new StringMultiMap();
    private Map<String,String> source2template = new HashMap<String, String>();
    private Map<String,String> wp2wr = new HashMap<String, String>();
    private Set<String> sourceTargets = new HashSet<String>();
+   // wp- template title -> copy-wikipedia section (null for the opening section), and a hash of its text, as of the pages file
+   private Map<String,String> templateSections = new HashMap<String, String>();
+   private Map<String,Long> templateTextHashes = new HashMap<String, Long>();
 
    private Matcher copyMatcher = pCopyWikipedia.matcher("blah");
    private Matcher sourceMatcher = pSourceWikipedia.matcher("blah");
    private Matcher moreInfoMatcher = pMoreInfoWikipedia.matcher("blah");
    private Matcher templateRefMatcher = pWpTemplate.matcher("blah");
 
-   public MultiMap<String, String> getWp2templates() {
+   public StringMultiMap getWp2templates() {
       return wp2templates;
    }
 
-   public MultiMap<String, String> getTemplate2Wr() {
+   public StringMultiMap getTemplate2Wr() {
       return template2Wr;
    }
 
@@ -66,6 +70,21 @@ public class WP2WRTitleParser implements WikiPageParser {
       return sourceTargets; // targets of source-wikipedia templates (wikipedia titles)
    }
 
+   public Map<String, String> getTemplateSections() {
+      return templateSections;
+   }
+
+   public Map<String, Long> getTemplateTextHashes() {
+      return templateTextHashes;
+   }
+
+   /**
+    * Return a 64-bit FNV-1a hash of the text, for comparing template texts without keeping them
+    */
+   public static long hashText(String text) {
+      return Util.fnv1a(text);
+   }
+
    /**
     * This index method builds up the WP -> WR map ( call getWP2WR()), and also
     * builds a map which stores WR titles which do not refer to
@@ -106,8 +125,10 @@ public class WP2WRTitleParser implements WikiPageParser {
 
       if (title.startsWith("Template:Wp-")) {
          String wrTitle = title.substring("Template:".length());
+         templateTextHashes.put(WikiPage.standardizeTitle(wrTitle), hashText(text.trim()));
          copyMatcher.reset(text);
          if (copyMatcher.find()) {
+            templateSections.put(WikiPage.standardizeTitle(wrTitle), copyMatcher.group(3));
             wp2templates.put(WikiPage.standardizeTitle(copyMatcher.group(1)), WikiPage.standardizeTitle(wrTitle));
             if (copyMatcher.find())
             {
@@ -22,8 +22,6 @@ public class WikiPage {
    static final Pattern OUTERMOST_HEADING_PATTERN = Pattern.compile("(?<!=)==([^=].*?[^=])==(?!=)", Pattern.DOTALL);
    // match links within section headings. Used to remove them.
    static final Pattern OUTERMOST_HEADING_LINK = Pattern.compile("(?<=(\\n\\s{0,20}==[^=\\n\\[]{0,100}))\\[\\[(.*?)(\\|(.*?))?\\]\\]");
-   // match any section heading
-   private static final Pattern ANY_HEADING_PATTERN = Pattern.compile("={2,}([^=].*?[^=])={2,}", Pattern.DOTALL);
    // match section headings to save
    public static final Pattern SAVE_HEADING_PATTERN = Pattern.compile("[Hh]istor(?:y|ic)");
 
@@ -49,8 +47,19 @@ public class WikiPage {
    private static final Pattern PARA_ITAL_END = Pattern.compile("''|</p>|<p>|<p |(?:<br>|<br/>|\n)|(?:<br>|<br/>|\n)(?=---|\\{|\\[)");
    private static final Pattern JUNK_PATTERN = Pattern.compile("[\\s\\.,;\\?!\\}\\|]+");
 
-   // used to located templates and links
-   private static final Pattern OPEN_CLOSE_TEMPLATE_LINK_CDATA = Pattern.compile("\\{\\{|\\[\\[|<!\\[CDATA\\[|\\}\\}|\\]\\](?!>)|\\]\\]>");
+   // used in cleaning names and text
+   private static final Pattern AFTER_COMMA_PATTERN = Pattern.compile(",.*");
+   private static final Pattern PARENTHETICAL_PATTERN = Pattern.compile("\\(.*?\\)");
+   private static final Pattern SPACES_PATTERN = Pattern.compile("\\s+");
+   private static final Pattern SPACE_COMMA_PATTERN = Pattern.compile(" ,");
+   private static final Pattern WHITESPACE_CHAR_PATTERN = Pattern.compile("\\s");
+   private static final Pattern GALLERY_PATTERN = Pattern.compile("<gallery>[^<>]*</gallery>");
+   private static final Pattern REF_PATTERN = Pattern.compile("<ref[^<>]*>[^<>]*</ref>");
+   private static final Pattern EMPTY_LINK_PATTERN = Pattern.compile("\\s*\\[\\]");
+   private static final Pattern OPEN_PAREN_COMMA_PATTERN = Pattern.compile("\\(\\s*,\\s*");
+   private static final Pattern COMMA_CLOSE_PAREN_PATTERN = Pattern.compile("\\s*,\\s*\\)");
+   private static final Pattern IPA_PATTERN = Pattern.compile("\\s*\\([^()]*\\[\\[(IPA|International Phonetic Alphabet)\\|[^\\[\\]()]*\\]\\][^()]*\\)");
+   private static final Pattern EMPTY_PARENS_PATTERN = Pattern.compile("\\s*\\(([,;]|\\s)*\\)");
 
    // map phrases and words to types
    // if you add a new type, you must add it to WikiPage, PlaceStandard and StandardMerger
@@ -234,6 +243,21 @@ public class WikiPage {
       "{{Municipalities of Cape Verde}}",
       "{{Districts of Suriname}}"
    };
+   // category template numbers by the character after {{, so each {{ in a page is tried against only the templates it could start
+   private static final Map<Character, int[]> CATEGORY_TEMPLATE_STARTS = new HashMap<Character, int[]>();
+   static {
+      for (int i = 0; i < CATEGORY_TEMPLATES.length; i++) {
+         // each pattern starts with \{\{ followed by a literal character or a [..] class
+         String regex = CATEGORY_TEMPLATES[i].pattern();
+         String firstChars = (regex.charAt(4) == '[' ? regex.substring(5, regex.indexOf(']', 5)) : regex.substring(4, 5));
+         for (char c : firstChars.toCharArray()) {
+            int[] templates = CATEGORY_TEMPLATE_STARTS.get(c);
+            templates = (templates == null ? new int[1] : Arrays.copyOf(templates, templates.length + 1));
+            templates[templates.length - 1] = i;
+            CATEGORY_TEMPLATE_STARTS.put(c, templates);
+         }
+      }
+   }
 
    // added on the line after <!-- wikipedia(#section)
    private static final String COMMENT_START = "\n<!-- wikipedia";
@@ -252,6 +276,13 @@ public class WikiPage {
    private List categories;
    private String text;
    private String openingPara;
+   // offsets in text of the end of the prologue and of the opening section
+   private int prologueEnd;
+   private int openingSectionEnd;
+   // first-level headings after the prologue as (start, end) pairs, found when first needed
+   private int[] headings;
+   private boolean coordsFound;
+   private LatLong coords;
 
    public static String getCommentText(String header) {
       if (header == null || header.length() == 0) {
@@ -287,9 +318,19 @@ public class WikiPage {
             categories.add(standardizeTitle(category));
          }
       }
+      boolean[] found = new boolean[CATEGORY_TEMPLATES.length];
+      for (int pos = text.indexOf("{{"); pos >= 0 && pos + 2 < text.length(); pos = text.indexOf("{{", pos + 1)) {
+         int[] templates = CATEGORY_TEMPLATE_STARTS.get(text.charAt(pos + 2));
+         if (templates != null) {
+            for (int i : templates) {
+               if (!found[i] && CATEGORY_TEMPLATES[i].matcher(text).region(pos, text.length()).lookingAt()) {
+                  found[i] = true;
+               }
+            }
+         }
+      }
       for (int i = 0; i < CATEGORY_TEMPLATES.length; i++) {
-         m = CATEGORY_TEMPLATES[i].matcher(text);
-         if (m.find()) {
+         if (found[i]) {
             categories.add(standardizeTitle(CATEGORY_TEMPLATE_TITLES[i]));
          }
       }
@@ -304,14 +345,10 @@ public class WikiPage {
       return null;
    }
 
-   private static String getUpToHeading(String text) {
-      Matcher m = ANY_HEADING_PATTERN.matcher(text);
-      if (m.find()) {
-         return text.substring(0, m.start());
-      }
-      else {
-         return text;
-      }
+   // offset of the first heading at or after from, or the end of the text
+   private static int getUpToHeading(String text, int from) {
+      int start = WikiTextTokenizer.findAnyHeading(text, from);
+      return start < 0 ? text.length() : start;
    }
 
    public static String getFirstPara(String text) {
@@ -337,13 +374,14 @@ public class WikiPage {
 
    private static String cleanName(String name, boolean removeParenthetical) {
       // remove everything after comma
-      name = name.replaceAll(",.*", "");
+      name = AFTER_COMMA_PATTERN.matcher(name).replaceAll("");
       if (removeParenthetical) {
          // remove everything between parentheses
-         name = name.replaceAll("\\(.*?\\)", "");
+         name = PARENTHETICAL_PATTERN.matcher(name).replaceAll("");
       }
       // collapse multiple spaces to single space and trim
-      return name.replaceAll("\\s+", " ").replaceAll(" ,", ",").trim();
+      name = SPACES_PATTERN.matcher(name).replaceAll(" ");
+      return SPACE_COMMA_PATTERN.matcher(name).replaceAll(",").trim();
    }
 
 //   private String removeOutermostHeadingLinks(String text) {
@@ -362,11 +400,13 @@ public class WikiPage {
       this.title = title;
       this.text = text;
       this.categories = getCategories(text);
-      String postPrologue = skipPrologue(text);
-      String openingSection = getUpToHeading(postPrologue);
-      this.openingPara = getFirstPara(openingSection);
+      this.prologueEnd = skipPrologue(text);
+      this.openingSectionEnd = getUpToHeading(text, prologueEnd);
+      this.openingPara = getFirstPara(text.substring(prologueEnd, openingSectionEnd));
       // get early links from the prologue and opening section
-      this.earlyLinks = getLinks(text.substring(0, text.length() - postPrologue.length() + openingSection.length()));
+      this.earlyLinks = getLinks(text.substring(0, openingSectionEnd));
+      this.headings = null;
+      this.coordsFound = false;
    }
 
    public String getTitle() {
@@ -512,6 +552,14 @@ public class WikiPage {
    }
 
    private LatLong getCoords() {
+      if (!coordsFound) {
+         coords = findCoords();
+         coordsFound = true;
+      }
+      return coords;
+   }
+
+   private LatLong findCoords() {
       Matcher m = COOR_PATTERN.matcher(text);
       while (m.find()) {
          String[] fields = m.group(1).split("\\|");
@@ -555,6 +603,10 @@ public class WikiPage {
          }
       }
 
+      // every lat/long has a degree sign
+      if (text.indexOf('°') < 0 && text.indexOf("&deg;") < 0) {
+         return null;
+      }
       m = LAT_LONG_PATTERN.matcher(text);
       while (m.find()) {
          double latitude = parseLatLong(m.group(1));
@@ -588,63 +640,79 @@ public class WikiPage {
 
    // Remove templates and links to other namespaces and CData sections
    public static String cleanText(StringBuffer buf) {
-      List templatesLinks = locateOutermostTemplatesLinksCdata(buf);
-      for (int i = templatesLinks.size()-1; i >= 0; i--) {
-         StartEnd range = (StartEnd)templatesLinks.get(i);
-         String tag = buf.substring(range.start, range.end);
-         if (tag.startsWith("{{")) {
+      String text = buf.toString();
+      StringBuilder cleaned = new StringBuilder(text.length());
+      int[] templatesLinks = WikiTextTokenizer.getOutermostTemplatesLinksCdata(text);
+      int copied = 0;
+      for (int i = 0; i < templatesLinks.length; i += 2) {
+         int start = templatesLinks[i];
+         int end = templatesLinks[i+1];
+         boolean keep = false;
+         if (text.startsWith("{{", start)) {
             // keep only coordinate templates
-            Matcher m = COOR_PATTERN.matcher(tag);
-            if (!m.matches()) {
-               buf.delete(range.start, range.end);
-            }
+            keep = COOR_PATTERN.matcher(text).region(start, end).matches();
          }
-         else if (tag.startsWith("[[")) {
+         else if (text.startsWith("[[", start)) {
+            String tag = text.substring(start, end);
             Matcher m = LINK_PATTERN.matcher(tag);
             String href = null;
             if (m.lookingAt()) {
                href = m.group(1);
             }
-            if (href == null || href.indexOf(":") >= 0 || tag.indexOf("[[", 2) >= 0 || tag.indexOf("{{") >= 0) {
-               // malformed or points to another namespace
-               buf.delete(range.start, range.end);
-            }
+            // drop if malformed or points to another namespace
+            keep = !(href == null || href.indexOf(":") >= 0 || tag.indexOf("[[", 2) >= 0 || tag.indexOf("{{") >= 0);
          }
-         else { // CData
-            buf.delete(range.start, range.end);
+         // drop CData
+         if (!keep) {
+            cleaned.append(text, copied, start);
+            copied = end;
          }
       }
-      return buf.toString().replaceAll("''''", "").replaceAll("<gallery>[^<>]*</gallery>", "").
-            replaceAll("<ref[^<>]*>[^<>]*</ref>", "").replaceAll("\\s*\\[\\]", "").
-            replaceAll("\\(\\s*,\\s*", "(").replaceAll("\\s*,\\s*\\)", ")").
-            replaceAll("\\s*\\([^()]*\\[\\[(IPA|International Phonetic Alphabet)\\|[^\\[\\]()]*\\]\\][^()]*\\)", "").
-            replaceAll("\\s*\\(([,;]|\\s)*\\)", "");
+      cleaned.append(text, copied, text.length());
+      text = cleaned.toString().replace("''''", "");
+      text = GALLERY_PATTERN.matcher(text).replaceAll("");
+      text = REF_PATTERN.matcher(text).replaceAll("");
+      text = EMPTY_LINK_PATTERN.matcher(text).replaceAll("");
+      text = OPEN_PAREN_COMMA_PATTERN.matcher(text).replaceAll("(");
+      text = COMMA_CLOSE_PAREN_PATTERN.matcher(text).replaceAll(")");
+      text = IPA_PATTERN.matcher(text).replaceAll("");
+      return EMPTY_PARENS_PATTERN.matcher(text).replaceAll("");
+   }
+
+   // first-level headings after the prologue
+   private int[] getHeadings() {
+      if (headings == null) {
+         headings = WikiTextTokenizer.getOutermostHeadings(text, prologueEnd);
+      }
+      return headings;
+   }
+
+   private String getHeadingName(int heading) {
+      return WHITESPACE_CHAR_PATTERN.matcher(text.substring(headings[heading] + 2, headings[heading+1] - 2)).replaceAll(" ");
    }
 
    public String getReducedText() {
       StringBuffer buf = new StringBuffer();
 
-      String postPrologue = skipPrologue(text);
-
       // add the opening section
-      String openingSection = getUpToHeading(postPrologue);
+      String openingSection = getOpeningSection();
       if (openingSection.length() > 0) {
          buf.insert(0, getCommentText(null));
       }
       buf.append(openingSection);
 
-      Matcher headMatch = OUTERMOST_HEADING_PATTERN.matcher(postPrologue);
+      int[] headings = getHeadings();
       int saveHeadingStart = -1;
       int saveHeadingEnd = -1;
       String saveHeading = null;
-      while (headMatch.find()) {
-         int headingStart = headMatch.start();
-         int headingEnd = headMatch.end();
-         String heading = headMatch.group(1).replaceAll("\\s", " ").trim();
+      for (int i = 0; i < headings.length; i += 2) {
+         int headingStart = headings[i];
+         int headingEnd = headings[i+1];
+         String heading = getHeadingName(i).trim();
          if (saveHeadingStart >=0) {
-            buf.append(postPrologue.substring(saveHeadingStart, saveHeadingEnd));
+            buf.append(text, saveHeadingStart, saveHeadingEnd);
             buf.append(getCommentText(saveHeading));
-            buf.append(postPrologue.substring(saveHeadingEnd, headingStart));
+            buf.append(text, saveHeadingEnd, headingStart);
             saveHeadingStart = -1;
          }
 
@@ -656,16 +724,16 @@ public class WikiPage {
          }
       }
       if (saveHeadingStart >= 0) {
-         buf.append(postPrologue.substring(saveHeadingStart, saveHeadingEnd));
+         buf.append(text, saveHeadingStart, saveHeadingEnd);
          buf.append(getCommentText(saveHeading));
-         buf.append(postPrologue.substring(saveHeadingEnd));
+         buf.append(text, saveHeadingEnd, text.length());
       }
 
       return cleanText(buf);
    }
 
    public String getOpeningSection() {
-      return getUpToHeading(skipPrologue(text));
+      return text.substring(prologueEnd, openingSectionEnd);
    }
 
    public String getOpeningPara() {
@@ -675,11 +743,9 @@ public class WikiPage {
    public Set <String> getSectionHeadings() {
       Set <String> sectionHeadings = new HashSet <String> ();
 
-      String postPrologue = skipPrologue(text);
-      Matcher headMatch = OUTERMOST_HEADING_PATTERN.matcher(postPrologue);
-      while (headMatch.find()) {
-         String heading = headMatch.group(1).replaceAll("\\s", " ").trim();
-         sectionHeadings.add(heading);
+      int[] headings = getHeadings();
+      for (int i = 0; i < headings.length; i += 2) {
+         sectionHeadings.add(getHeadingName(i).trim());
       }
 
       return sectionHeadings;
@@ -687,22 +753,19 @@ public class WikiPage {
 
    // case-insensitive match on the secionName
    public String getSection(String sectionName) {
-      String postPrologue = skipPrologue(text);
-      Matcher headMatch = OUTERMOST_HEADING_PATTERN.matcher(postPrologue);
-      int startFrom = 0;
+      int[] headings = getHeadings();
       sectionName = sectionName.toLowerCase();
-      while (headMatch.find(startFrom)) {
-         String heading = headMatch.group(1).replaceAll("\\s", " ").toLowerCase();
+      for (int i = 0; i < headings.length; i += 2) {
+         String heading = getHeadingName(i).toLowerCase();
          if (heading.indexOf(sectionName) != -1)
          {
-             int secStart = headMatch.end();
-             if (headMatch.find(secStart))
+             int secStart = headings[i+1];
+             if (i + 2 < headings.length)
              {
-                 return postPrologue.substring(secStart, headMatch.start());
+                 return text.substring(secStart, headings[i+2]);
              }
-             else return postPrologue.substring(secStart, postPrologue.length());
+             else return text.substring(secStart);
          }
-         startFrom = headMatch.end();
       }
       return null;
    }
@@ -716,32 +779,6 @@ public class WikiPage {
       }
    }
 
-   private static List locateOutermostTemplatesLinksCdata(CharSequence text) {
-      List templatesLinks = new ArrayList();
-      int openTags = 0;
-      int outermostStart = 0;
-      Matcher openClose = OPEN_CLOSE_TEMPLATE_LINK_CDATA.matcher(text);
-      while (openClose.find()) {
-         String tag = openClose.group(0);
-         if (tag.equals("{{") || tag.equals("[[") || tag.equals("<![CDATA[")) {
-            if (openTags == 0) {
-               outermostStart = openClose.start();
-            }
-            openTags++;
-         }
-         else {
-            openTags--;
-            if (openTags == 0) {
-               templatesLinks.add(new StartEnd(outermostStart, openClose.end()));
-            }
-            else if (openTags < 0) {
-               openTags = 0;  // malformed
-            }
-         }
-      }
-      return templatesLinks;
-   }
-
    // Skip [[*]], {{*}}, tables (all of which can be nested), <tag *>, --- lines, and paragraphs that begin with : or ''
    // also line breaks, spaces, and .,; (junk)
    private static final String [][] openCloseTable = {
@@ -753,21 +790,26 @@ public class WikiPage {
    };
    private static final Map <String, String> closeOpenMap = new HashMap <String, String>();
    { for (String [] tableEntry : openCloseTable) closeOpenMap.put(tableEntry[1], tableEntry[0]); }
-   private String skipPrologue(String text) {
-      StringBuffer buf = new StringBuffer(text);
+   // return the offset of the text following the prologue, or the length of the text if the prologue is malformed;
+   // the matchers work on regions of the text rather than on copies with the skipped part deleted
+   private int skipPrologue(String text) {
+      int len = text.length();
+      int pos = 0;
       int openTags = 0;
       boolean match = true;
       Stack <String> tagStack = new Stack <String> ();
-      while (match && buf.length() > 0) {
+      Matcher open = OPEN_TAG_PATTERN.matcher(text);
+      Matcher openClose = OPEN_CLOSE_TAG_PATTERN.matcher(text);
+      Matcher dashLine = DASH_LINE_PATTERN.matcher(text);
+      Matcher junk = JUNK_PATTERN.matcher(text);
+      Matcher close = CLOSE_TAG_PATTERN.matcher(text);
+      Matcher paraEnd = PARA_END_PATTERN.matcher(text);
+      Matcher paraItalEnd = PARA_ITAL_END.matcher(text);
+      while (match && pos < len) {
          match = false;
-         Matcher open = OPEN_TAG_PATTERN.matcher(buf);
-         Matcher dashLine = DASH_LINE_PATTERN.matcher(buf);
-         Matcher junk = JUNK_PATTERN.matcher(buf);
-         Matcher close = CLOSE_TAG_PATTERN.matcher(buf);
-         if (open.lookingAt()) { // must match at the beginning
+         if (open.region(pos, len).lookingAt()) { // must match at the beginning
             String openTag = open.group(1);
-            buf.delete(0, open.end());
-            Matcher openClose = OPEN_CLOSE_TAG_PATTERN.matcher(buf);
+            pos = open.end();
             if (tagStack.size() > 0 && tagStack.peek().compareTo("[[") == 0
                     && openTag.compareTo("[[") == 0)
             {
@@ -780,17 +822,17 @@ public class WikiPage {
                else tagStack.push(openTag);
                openTags++;  // don't require that the closing tag is the counterpart to this opening tag - too much trouble
             }
-            if (openClose.find()) {
-               buf.delete(0, openClose.start());  // delete up to but not including the next open/close tag
+            if (openClose.region(pos, len).find()) {
+               pos = openClose.start();  // skip up to but not including the next open/close tag
                match = true;
             }
             else {
                // malformed
-               return "";
+               return len;
             }
          }
          else if (openTags > 0) {
-            if (close.lookingAt()) {
+            if (close.region(pos, len).lookingAt()) {
                String closeTag = close.group(1);
                String openTag = closeOpenMap.get(closeTag);
                String interTag;
@@ -810,76 +852,73 @@ public class WikiPage {
                    openTags--;
                    tagStack.pop();
                }
-               buf.delete(0, close.end());
+               pos = close.end();
                // if we're nested, the skip up to the next open/close tag
                if (openTags > 0) {
-                  Matcher openClose = OPEN_CLOSE_TAG_PATTERN.matcher(buf);
-                  if (openClose.find()) {
-                     buf.delete(0, openClose.start());
+                  if (openClose.region(pos, len).find()) {
+                     pos = openClose.start();
                   }
                   else {
                      // malformed
-                     return "";
+                     return len;
                   }
                }
                match = true;
             }
             else {
                // malformed
-               return "";
+               return len;
             }
-         } else if (close.lookingAt())
+         } else if (close.region(pos, len).lookingAt())
          {
              String closeTag = close.group(1);
              String openTag = closeOpenMap.get(closeTag);
              logger.info("Wikipedia article \"" + getTitle() + "\" has " + closeTag +
                            " with no opening " + openTag);
              // We're going to skip it and move on, ignoring this tag.
-             buf.delete(0, close.end());
+             pos = close.end();
              match = true;
          }
          // for <tag>'s, skip everything up to the end > of the tag
-         else if (buf.charAt(0) == '<' && buf.length() >= 2 && (buf.charAt(1) == '/' || Character.isLetter(buf.charAt(1)))) {
-            int pos = buf.indexOf(">");
-            if (pos != -1) {
-               buf.delete(0, pos+1);
+         else if (text.charAt(pos) == '<' && len - pos >= 2 && (text.charAt(pos+1) == '/' || Character.isLetter(text.charAt(pos+1)))) {
+            int end = text.indexOf('>', pos);
+            if (end != -1) {
+               pos = end+1;
                match = true;
             }
             else {
                // malformed
-               return "";
+               return len;
             }
          }
-         else if (junk.lookingAt()) {
-            buf.delete(0, junk.end());
+         else if (junk.region(pos, len).lookingAt()) {
+            pos = junk.end();
             match = true;
          }
-         else if (dashLine.lookingAt()) {
-            buf.delete(0, dashLine.end());
+         else if (dashLine.region(pos, len).lookingAt()) {
+            pos = dashLine.end();
             match = true;
          }
-         else if (buf.indexOf(":") == 0) {
-            Matcher m = PARA_END_PATTERN.matcher(buf);
-            if (m.find()) {
-               buf.delete(0, m.end());
+         else if (text.startsWith(":", pos)) {
+            if (paraEnd.region(pos, len).find()) {
+               pos = paraEnd.end();
                match = true;
             }
             else {
-               return "";
+               return len;
             }
          }
-         else if (buf.indexOf("''") == 0 && buf.length() >= 3 && buf.charAt(2) != '\'') {
-            buf.delete(0, 2);
-            Matcher m = PARA_ITAL_END.matcher(buf);
-            if (m.find()) {
-               buf.delete(0, m.end());
+         else if (text.startsWith("''", pos) && len - pos >= 3 && text.charAt(pos+2) != '\'') {
+            pos += 2;
+            if (paraItalEnd.region(pos, len).find()) {
+               pos = paraItalEnd.end();
                match = true;
             }
             else {
-               return "";
+               return len;
             }
          }
       }
-      return buf.toString();
+      return pos;
    }
 }
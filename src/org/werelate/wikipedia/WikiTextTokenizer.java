@@ -0,0 +1,162 @@
+package org.werelate.wikipedia;
+
+import java.util.Arrays;
+
+/**
+ * Locates structures in wikitext by scanning characters, returning offset ranges into the text instead of copies.
+ * Each method finds the same ranges as the regex noted on it, in one pass over the text.
+ */
+public class WikiTextTokenizer {
+   private WikiTextTokenizer() {
+   }
+
+   // end of the run of = characters starting at pos
+   private static int runEnd(CharSequence text, int pos) {
+      int len = text.length();
+      while (pos < len && text.charAt(pos) == '=') {
+         pos++;
+      }
+      return pos;
+   }
+
+   // [^=].*?[^=] must match at least two code points
+   private static boolean isHeadingName(CharSequence text, int start, int end) {
+      return end - start >= 4 || (end - start >= 2 && Character.codePointCount(text, start, end) >= 2);
+   }
+
+   /**
+    * Return the start of the first heading at or after from, or -1 if there isn't one.
+    * Same as the start of the first match of ={2,}([^=].*?[^=])={2,} (DOTALL) in text.subSequence(from, text.length()).
+    */
+   public static int findAnyHeading(CharSequence text, int from) {
+      int len = text.length();
+      int openStart = -1;
+      int openEnd = -1;
+      int pos = from;
+      while (pos < len) {
+         if (text.charAt(pos) != '=') {
+            pos++;
+            continue;
+         }
+         int end = runEnd(text, pos);
+         if (end - pos >= 2) {
+            // any later run of two or more closes the first opening run, as long as the name between them is long enough
+            if (openStart >= 0 && isHeadingName(text, openEnd, pos)) {
+               return openStart;
+            }
+            if (openStart < 0 && end < len) {
+               openStart = pos;
+               openEnd = end;
+            }
+         }
+         pos = end;
+      }
+      return -1;
+   }
+
+   /**
+    * Return the first-level headings at or after from as (start, end) pairs; the heading name is start+2 .. end-2.
+    * Same as the successive matches of (?<!=)==([^=].*?[^=])==(?!=) (DOTALL) in text.subSequence(from, text.length()).
+    */
+   public static int[] getOutermostHeadings(CharSequence text, int from) {
+      int len = text.length();
+      int[] headings = new int[16];
+      int numHeadings = 0;
+      int openStart = -1;
+      int pos = from;
+      while (pos < len) {
+         if (text.charAt(pos) != '=') {
+            pos++;
+            continue;
+         }
+         int end = runEnd(text, pos);
+         // only runs of exactly two open or close a first-level heading
+         if (end - pos == 2) {
+            if (openStart >= 0 && isHeadingName(text, openStart + 2, pos)) {
+               if (numHeadings + 2 > headings.length) {
+                  headings = Arrays.copyOf(headings, headings.length * 2);
+               }
+               headings[numHeadings++] = openStart;
+               headings[numHeadings++] = end;
+               openStart = -1;
+            }
+            else if (openStart < 0 && end < len) {
+               openStart = pos;
+            }
+         }
+         pos = end;
+      }
+      return Arrays.copyOf(headings, numHeadings);
+   }
+
+   /**
+    * Return the outermost templates, links, and CDATA sections as (start, end) pairs.
+    * Nesting is counted across all three kinds, and an unmatched close is ignored.
+    * Same as counting the matches of \{\{|\[\[|<!\[CDATA\[|\}\}|\]\](?!>)|\]\]> in text.
+    */
+   public static int[] getOutermostTemplatesLinksCdata(CharSequence text) {
+      int len = text.length();
+      int[] ranges = new int[16];
+      int numRanges = 0;
+      int openTags = 0;
+      int outermostStart = 0;
+      int pos = 0;
+      while (pos < len - 1) {
+         char c = text.charAt(pos);
+         char next = text.charAt(pos + 1);
+         int tagLength = 0;
+         boolean isOpen = false;
+         if ((c == '{' && next == '{') || (c == '[' && next == '[')) {
+            tagLength = 2;
+            isOpen = true;
+         }
+         else if (c == '<' && next == '!' && startsWith(text, pos, "<![CDATA[")) {
+            tagLength = 9;
+            isOpen = true;
+         }
+         else if (c == '}' && next == '}') {
+            tagLength = 2;
+         }
+         else if (c == ']' && next == ']') {
+            tagLength = (pos + 2 < len && text.charAt(pos + 2) == '>' ? 3 : 2);
+         }
+         if (tagLength == 0) {
+            pos++;
+         }
+         else if (isOpen) {
+            if (openTags == 0) {
+               outermostStart = pos;
+            }
+            openTags++;
+            pos += tagLength;
+         }
+         else {
+            pos += tagLength;
+            openTags--;
+            if (openTags == 0) {
+               if (numRanges + 2 > ranges.length) {
+                  ranges = Arrays.copyOf(ranges, ranges.length * 2);
+               }
+               ranges[numRanges++] = outermostStart;
+               ranges[numRanges++] = pos;
+            }
+            else if (openTags < 0) {
+               openTags = 0;  // malformed
+            }
+         }
+      }
+      return Arrays.copyOf(ranges, numRanges);
+   }
+
+   private static boolean startsWith(CharSequence text, int pos, String prefix) {
+      if (pos + prefix.length() > text.length()) {
+         return false;
+      }
+      for (int i = 0; i < prefix.length(); i++) {
+         if (text.charAt(pos + i) != prefix.charAt(i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+}
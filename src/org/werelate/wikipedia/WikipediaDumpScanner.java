@@ -0,0 +1,291 @@
+package org.werelate.wikipedia;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.werelate.parser.WikiPageParser;
+import org.werelate.utils.Util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import nu.xom.ParsingException;
+
+/**
+ * Reads the wikipedia dump once for WikipediaUpdate, in place of two WikipediaAltNamesParser passes and a WikipediaUpdateParser pass.
+ * Redirects and article titles are written to a spill file, and the text of every article that is wanted at the time it is read
+ * (a wp title, a source target, or the target of a redirect from one of these) is written to a second spill file.
+ * Afterward the redirects are resolved from the spill file, and the saved articles are replayed to another parser.
+ * Articles that were wanted only because of a later redirect can be saved by a second read of the dump (see getLateArticleSaver);
+ * each saved article carries its position in the dump, so replay passes them all to the parser in dump order.
+ * Set the reader to not skip redirects.
+ */
+public class WikipediaDumpScanner implements WikiPageParser {
+   private static final Logger logger = LogManager.getLogger("org.werelate.wikipedia");
+
+   private static final byte REDIRECT = 'R';
+   private static final byte ARTICLE = 'A';
+   // passes over the titles spill file in getAlt2wp; each pass follows redirect chains one more step against the dump order
+   private static final int MAX_REDIRECT_PASSES = 8;
+
+   // wp titles and redirects to and from them; grows as redirects are read, as in WikipediaAltNamesParser
+   private Set<String> titles;
+   private Set<String> sourceTargets;
+   private Set<String> savedTitles;
+   // dump position (article number) of each wanted article that wasn't saved; see getUnsavedTitles
+   private Map<String,Integer> unsavedPositions;
+   private File tempDir;
+   private File titlesFile;
+   private File articlesFile;
+   private File lateArticlesFile;
+   private DataOutputStream titlesOut;
+   private DataOutputStream articlesOut;
+   private DataOutputStream lateArticlesOut;
+   private int numRedirects;
+   private int numArticles;
+   private int numSaved;
+   private int numLateSaved;
+
+   /**
+    * @param tempDir directory for the spill files; null for the default temp directory
+    */
+   public WikipediaDumpScanner(Set<String> wpTitles, Set<String> sourceTargets, File tempDir) throws IOException {
+      this.titles = new HashSet<String>(wpTitles);
+      this.sourceTargets = sourceTargets;
+      this.savedTitles = new HashSet<String>();
+      this.unsavedPositions = new HashMap<String,Integer>();
+      this.tempDir = tempDir;
+      this.titlesFile = File.createTempFile("wptitles", ".gz", tempDir);
+      this.articlesFile = File.createTempFile("wparticles", ".gz", tempDir);
+      this.titlesOut = openOut(titlesFile);
+      this.articlesOut = openOut(articlesFile);
+      this.lateArticlesFile = null;
+      this.lateArticlesOut = null;
+      this.numRedirects = 0;
+      this.numArticles = 0;
+      this.numSaved = 0;
+      this.numLateSaved = 0;
+   }
+
+   private static DataOutputStream openOut(File file) throws IOException {
+      return new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file), 65536)));
+   }
+
+   private static DataInputStream openIn(File file) throws IOException {
+      return new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 65536)));
+   }
+
+   private static void writeString(DataOutputStream out, String s) throws IOException {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   private static String readString(DataInputStream in) throws IOException {
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   public void parse(String title, String text, int pageId, int latestRevId, String username, String timestamp, String comment) throws IOException, ParsingException {
+      Matcher mRedirect = Util.REDIRECT_PATTERN.matcher(text);
+      if (mRedirect.lookingAt()) {
+         String target = WikiPage.standardizeTitle(mRedirect.group(1));
+         titlesOut.writeByte(REDIRECT);
+         writeString(titlesOut, title);
+         writeString(titlesOut, target);
+         numRedirects++;
+         if (titles.contains(title) || titles.contains(target)) {
+            titles.add(title);
+            titles.add(target);
+         }
+      }
+      else {
+         String trimmedTitle = title.trim();
+         titlesOut.writeByte(ARTICLE);
+         writeString(titlesOut, trimmedTitle);
+         numArticles++;
+         if (titles.contains(trimmedTitle) || sourceTargets.contains(trimmedTitle)) {
+            writeArticle(articlesOut, numArticles - 1, title, text, pageId, latestRevId, username, timestamp, comment);
+            savedTitles.add(trimmedTitle);
+            numSaved++;
+         }
+      }
+   }
+
+   private static void writeArticle(DataOutputStream out, int position, String title, String text, int pageId, int latestRevId,
+                                    String username, String timestamp, String comment) throws IOException {
+      out.writeInt(position);
+      writeString(out, title);
+      writeString(out, text);
+      out.writeInt(pageId);
+      out.writeInt(latestRevId);
+      writeString(out, username);
+      writeString(out, timestamp);
+      writeString(out, comment);
+   }
+
+   /**
+    * Call after the dump has been read
+    */
+   public void finishReading() throws IOException {
+      titlesOut.close();
+      articlesOut.close();
+      logger.warn("Read " + numArticles + " articles and " + numRedirects + " redirects; saved " + numSaved + " articles");
+   }
+
+   /**
+    * Return redirect -> target for redirects to and from the wp titles, following chains of redirects in either direction
+    * until no more are found or MAX_REDIRECT_PASSES passes over the titles spill file have been made
+    * (WikipediaAltNamesParser stopped after two passes over the dump)
+    */
+   public Map<String,String> getAlt2wp() throws IOException {
+      Map<String,String> alt2wp = new HashMap<String,String>();
+      int prevSize = -1;
+      for (int pass = 1; alt2wp.size() > prevSize; pass++) {
+         if (pass > MAX_REDIRECT_PASSES) {
+            logger.warn("Stopped following redirect chains after " + MAX_REDIRECT_PASSES + " passes; the last pass found " +
+                        (alt2wp.size() - prevSize) + " more redirects");
+            break;
+         }
+         prevSize = alt2wp.size();
+         DataInputStream in = openIn(titlesFile);
+         for (int i = numRedirects + numArticles; i > 0; i--) {
+            if (in.readByte() == REDIRECT) {
+               String title = readString(in);
+               String target = readString(in);
+               if (titles.contains(title) || titles.contains(target)) {
+                  alt2wp.put(title, target);
+                  titles.add(title);
+                  titles.add(target);
+               }
+            }
+            else {
+               readString(in);
+            }
+         }
+         in.close();
+         logger.warn("Redirect pass " + pass + " over the titles spill file found " + (alt2wp.size() - prevSize) + " new redirects");
+      }
+      return alt2wp;
+   }
+
+   /**
+    * Return the wanted titles that are articles in the dump but weren't saved, because the redirect that made them wanted
+    * came after them in the dump
+    */
+   public Set<String> getUnsavedTitles(Collection<String> wantedTitles) throws IOException {
+      Set<String> unsaved = new HashSet<String>();
+      for (String title : wantedTitles) {
+         if (!savedTitles.contains(title)) {
+            unsaved.add(title);
+         }
+      }
+      unsavedPositions.clear();
+      if (unsaved.size() > 0) {
+         DataInputStream in = openIn(titlesFile);
+         int position = 0;
+         for (int i = numRedirects + numArticles; i > 0; i--) {
+            if (in.readByte() == REDIRECT) {
+               readString(in);
+               readString(in);
+            }
+            else {
+               String title = readString(in);
+               if (unsaved.contains(title) && !unsavedPositions.containsKey(title)) {
+                  unsavedPositions.put(title, position);
+               }
+               position++;
+            }
+         }
+         in.close();
+      }
+      return new HashSet<String>(unsavedPositions.keySet());
+   }
+
+   /**
+    * Return a parser that saves the articles returned by getUnsavedTitles, for replay in their dump order.
+    * Read the dump with it after calling getUnsavedTitles and before calling replay.
+    */
+   public WikiPageParser getLateArticleSaver() throws IOException {
+      if (lateArticlesFile == null) {
+         lateArticlesFile = File.createTempFile("wplate", ".gz", tempDir);
+         lateArticlesOut = openOut(lateArticlesFile);
+      }
+      return new WikiPageParser() {
+         public void parse(String title, String text, int pageId, int latestRevId, String username, String timestamp, String comment) throws IOException, ParsingException {
+            // the dump is read in order, so the late articles are written in order; remove so each is saved once
+            Integer position = unsavedPositions.remove(title.trim());
+            if (position != null) {
+               writeArticle(lateArticlesOut, position, title, text, pageId, latestRevId, username, timestamp, comment);
+               numLateSaved++;
+            }
+         }
+      };
+   }
+
+   /**
+    * @return number of articles saved by getLateArticleSaver
+    */
+   public int getNumLateSaved() {
+      return numLateSaved;
+   }
+
+   /**
+    * Pass the saved articles, including those saved by getLateArticleSaver, to the parser in dump order
+    */
+   public void replay(WikiPageParser parser) throws IOException, ParsingException {
+      if (lateArticlesOut != null) {
+         lateArticlesOut.close();
+         lateArticlesOut = null;
+      }
+      DataInputStream in = openIn(articlesFile);
+      DataInputStream lateIn = (lateArticlesFile == null ? null : openIn(lateArticlesFile));
+      int remaining = numSaved;
+      int lateRemaining = (lateIn == null ? 0 : numLateSaved);
+      int position = (remaining > 0 ? in.readInt() : -1);
+      int latePosition = (lateRemaining > 0 ? lateIn.readInt() : -1);
+      while (remaining > 0 || lateRemaining > 0) {
+         if (lateRemaining == 0 || (remaining > 0 && position < latePosition)) {
+            replayArticle(in, parser);
+            remaining--;
+            position = (remaining > 0 ? in.readInt() : -1);
+         }
+         else {
+            replayArticle(lateIn, parser);
+            lateRemaining--;
+            latePosition = (lateRemaining > 0 ? lateIn.readInt() : -1);
+         }
+      }
+      in.close();
+      if (lateIn != null) {
+         lateIn.close();
+      }
+   }
+
+   // read the rest of an article record, after its position, and pass it to the parser
+   private static void replayArticle(DataInputStream in, WikiPageParser parser) throws IOException, ParsingException {
+      String title = readString(in);
+      String text = readString(in);
+      int pageId = in.readInt();
+      int latestRevId = in.readInt();
+      String username = readString(in);
+      String timestamp = readString(in);
+      String comment = readString(in);
+      parser.parse(title, text, pageId, latestRevId, username, timestamp, comment);
+   }
+
+   /**
+    * Delete the spill files
+    */
+   public void delete() {
+      titlesFile.delete();
+      articlesFile.delete();
+      if (lateArticlesFile != null) {
+         lateArticlesFile.delete();
+      }
+   }
+}
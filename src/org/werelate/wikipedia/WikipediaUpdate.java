@@ -3,16 +3,19 @@ package org.werelate.wikipedia;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.commons.cli.*;
+import org.werelate.parser.MultistreamDump;
 import org.werelate.parser.WikiReader;
-import org.werelate.utils.MultiMap;
+import org.werelate.utils.StringMultiMap;
 import org.werelate.utils.Util;
 import org.werelate.editor.PageEditor;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Iterator;
-import java.util.HashSet;
 import java.util.regex.Matcher;
 
 import nu.xom.ParsingException;
@@ -27,6 +30,7 @@ public class WikipediaUpdate {
       // p is for WeRelate pages file.
       opt.addOption("wr", true, "pages.xml filename");
       opt.addOption("wp", true, "wikipages.xml filename");
+      opt.addOption("wpi", true, "multistream index filename, if wp is a multistream .bz2 dump");
       opt.addOption("h", true, "wiki host");
       opt.addOption("p", true, "agent password");
       // This sets whether the input-output class is allowed to write the
@@ -34,6 +38,8 @@ public class WikipediaUpdate {
       opt.addOption("u", false, "Really update");
       opt.addOption("a", false, "Update all templates");
       opt.addOption("s", true, "Starting title");
+      opt.addOption("t", true, "Number of template update threads (default 1)");
+      opt.addOption("d", true, "Minimum millis between template updates (default "+UPDATE_DELAY_MILLIS+")");
       opt.addOption("?", false, "Print out help information");
 
       BasicParser parser = new BasicParser();
@@ -46,14 +52,18 @@ public class WikipediaUpdate {
          } else {
             String pagesXML = cl.getOptionValue("wr");
             String wikipediaXML = cl.getOptionValue("wp");
+            String wikipediaIndex = cl.getOptionValue("wpi");
             String host = cl.getOptionValue("h");
             String password = cl.getOptionValue("p");
             boolean reallyUpdate = cl.hasOption("u");
             boolean updateAllTemplates = cl.hasOption("a");
             String startTitle = cl.getOptionValue("s");
+            int editThreads = Integer.parseInt(cl.getOptionValue("t", "1"));
+            long editDelayMillis = Long.parseLong(cl.getOptionValue("d", Integer.toString(UPDATE_DELAY_MILLIS)));
             logger.info("werelate="+pagesXML+" wikipedia="+wikipediaXML+" host="+host+" password="+password+" update="+(reallyUpdate ? "t" : "f")+
                     " startTitle="+(startTitle != null ? startTitle : "null"));
-            updatePages(pagesXML, wikipediaXML, reallyUpdate, updateAllTemplates, startTitle, host, password);
+            updatePages(pagesXML, wikipediaXML, wikipediaIndex, reallyUpdate, updateAllTemplates, startTitle, host, password,
+                    editThreads, editDelayMillis);
          }
       }
       catch (ParseException e) {
@@ -76,28 +86,28 @@ public class WikipediaUpdate {
    }
 
    // replace wp titles in wp2t with redirect targets
-   public static int updateRedirects(MultiMap<String,String> wp2t, Set<String> sourceTargets, Map<String,String> alt2wp) {
+   public static int updateRedirects(StringMultiMap wp2t, Set<String> sourceTargets, Map<String,String> alt2wp) {
       int count = 0;
-      MultiMap<String,String> temp = new MultiMap<String,String>();
+      StringMultiMap temp = new StringMultiMap();
+      List<String> oldTitles = new ArrayList<String>();
 
       // update wp2t with final redirects
-      Iterator<String> i = wp2t.keySet().iterator();
-      while (i.hasNext()) {
-         String title = i.next();
+      for (String title : wp2t.keySet()) {
          if (alt2wp.containsKey(title)) {
             count++;
-            Set<String> templates = wp2t.get(title);
-            // update title with final redir target
-            title = getFinalRedirTarget(alt2wp, title);
-            // add templates to new title
-            for (String template : templates) {
-               temp.put(title, template);
+            // add templates to the final redir target
+            String target = getFinalRedirTarget(alt2wp, title);
+            for (String template : wp2t.get(title)) {
+               temp.put(target, template);
             }
-            // remove old target
-            i.remove();
+            oldTitles.add(title);
          }
       }
 
+      // remove old targets
+      for (String title : oldTitles) {
+         wp2t.removeAll(title);
+      }
       for (String title : temp.keySet()) {
          for (String template : temp.get(title)) {
             wp2t.put(title, template);
@@ -107,7 +117,7 @@ public class WikipediaUpdate {
       // update sourceTargets with final redirects
       if (sourceTargets != null) {
          Set<String> targets = new HashSet<String>();
-         i = sourceTargets.iterator();
+         Iterator<String> i = sourceTargets.iterator();
          while (i.hasNext()) {
             String title = i.next();
             if (alt2wp.containsKey(title)) {
@@ -198,8 +208,23 @@ public class WikipediaUpdate {
       return updateCount;
    }
 
-   public static void updatePages(String werelateXML, String wikipediaXML,
-                                  boolean reallyUpdate, boolean refreshTemplates, String startTitle, String host, String password)
+   // read the whole dump, or just the streams holding the titles when reading a multistream dump
+   private static void readWikipedia(WikiReader wr, String wikipediaXML, MultistreamDump dump, Set<String> titles)
+           throws ParsingException, IOException {
+      if (dump != null) {
+         wr.read(dump, titles, Util.getDefaultThreads());
+      }
+      else {
+         wr.read(wikipediaXML);
+      }
+   }
+
+   /**
+    * @param wikipediaIndex index of a multistream wikipedia dump; null if wikipediaXML is an uncompressed dump
+    */
+   public static void updatePages(String werelateXML, String wikipediaXML, String wikipediaIndex,
+                                  boolean reallyUpdate, boolean refreshTemplates, String startTitle, String host, String password,
+                                  int editThreads, long editDelayMillis)
            throws ParsingException, IOException {
       // This class is designed to build the wp2wr mapping by adding entries
       // as it finds copy-wikipedia or source-wikipedia templates in the
@@ -210,8 +235,8 @@ public class WikipediaUpdate {
       WP2WRTitleParser tp = new WP2WRTitleParser();
       wr.addWikiPageParser(tp);
       wr.read(werelateXML);
-      MultiMap<String,String> wp2t = tp.getWp2templates();
-      MultiMap<String,String> t2wr = tp.getTemplate2Wr();
+      StringMultiMap wp2t = tp.getWp2templates();
+      StringMultiMap t2wr = tp.getTemplate2Wr();
       Map<String,String> s2t = tp.getSource2template();
       Set<String> sourceTargets = tp.getSourceTargets();
       Map<String,String> wp2wr = tp.getWp2Wr(); // moreinfo wikipedia templates link wp -> wr pages directly, without an intermediate template
@@ -223,30 +248,57 @@ public class WikipediaUpdate {
       Set<String>wpTitles = new HashSet<String>();
       wpTitles.addAll(wp2t.keySet());
       wpTitles.addAll(wp2wr.keySet());
-      WikipediaAltNamesParser wanp = new WikipediaAltNamesParser(wpTitles);
-      for (int i=0; i < 2; i++) {
-         logger.warn("Starting run "+i+" through the wikipedia file to add redirects for wp titles.");
-         wr = new WikiReader();
-         wr.setSkipRedirects(false);
-         wr.addWikiPageParser(wanp);
-         wr.read(wikipediaXML);
-         logger.warn("Found " + wanp.getAlt2wp().size() + " redirects.");
-      }
-      Map<String,String> alt2wp = wanp.getAlt2wp();
+      MultistreamDump dump = (wikipediaIndex == null ? null : new MultistreamDump(wikipediaXML, wikipediaIndex));
+      // read the wikipedia file once, saving redirects and the articles we may need
+      logger.warn("Starting run through the wikipedia file to read redirects and save articles for wp titles.");
+      WikipediaDumpScanner scanner = new WikipediaDumpScanner(wpTitles, sourceTargets, null);
+      wr = new WikiReader();
+      wr.setSkipRedirects(false);
+      wr.addWikiPageParser(scanner);
+      readWikipedia(wr, wikipediaXML, dump, null);
+      scanner.finishReading();
+      Map<String,String> alt2wp = scanner.getAlt2wp();
+      logger.warn("Found " + alt2wp.size() + " redirects.");
 
       // UpdateRedirects
       int updatedCount = updateRedirects(wp2t, sourceTargets, alt2wp);
       logger.warn("Updated "+ updatedCount +" redirects");
 
+      // an article is missed only if it came before the redirect that made it wanted; read the file again just for those,
+      // and save them so they are replayed in dump order with the others, which startTitle relies on
+      Set<String> wantedTitles = new HashSet<String>(sourceTargets);
+      if (refreshTemplates) {
+         wantedTitles.addAll(wp2t.keySet());
+      }
+      Set<String> unsavedTitles = scanner.getUnsavedTitles(wantedTitles);
+      if (unsavedTitles.size() > 0) {
+         // at most one extra read: every missed title is known before it starts
+         logger.warn("Starting second and last run through the wikipedia file for "+unsavedTitles.size()+
+                 " articles that preceded their redirects.");
+         wr = new WikiReader();
+         wr.addWikiPageParser(scanner.getLateArticleSaver());
+         readWikipedia(wr, wikipediaXML, dump, unsavedTitles);
+         logger.warn("Saved "+scanner.getNumLateSaved()+" of them in the second run.");
+      }
+      else {
+         logger.warn("No articles preceded their redirects; the wikipedia file was read once.");
+      }
+
       //Now we're ready to get down to actually Updating!
-      logger.warn("Starting final run through the wikipedia files to actually update pages.");
+      logger.warn("Updating pages from the saved wikipedia articles.");
       // This class is designed to go through each Wikipedia page and update the corresponding WeRelate page(s).
       WikipediaUpdateParser p =  new WikipediaUpdateParser(wp2t, t2wr, wp2wr, alt2wp, sourceTargets, host, password, refreshTemplates);
       if (reallyUpdate) p.setWriteEnabled();
       p.setStartTitle(startTitle);
-      wr = new WikiReader();
-      wr.addWikiPageParser(p);
-      wr.read(wikipediaXML);
+      p.setEditWorkers(editThreads, editDelayMillis);
+      p.setTemplateState(tp.getTemplateSections(), tp.getTemplateTextHashes());
+      try {
+         scanner.replay(p);
+      }
+      finally {
+         scanner.delete();
+      }
+      p.finish();
       Set<String> foundWpTitles = p.getFoundWpTitles();
 
       logger.warn("Completed updates from wiki pages.  Updated "+ p.getUpdateCount()+" template pages");
@@ -3,9 +3,8 @@ package org.werelate.wikipedia;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.werelate.parser.WikiPageParser;
-import org.werelate.utils.MultiMap;
+import org.werelate.utils.StringMultiMap;
 import org.werelate.utils.Util;
-import org.werelate.editor.PageEditor;
 
 import java.util.Map;
 import java.util.Set;
@@ -22,8 +21,8 @@ public class WikipediaUpdateParser implements WikiPageParser {
 
    private static Logger logger = LogManager.getLogger("org.werelate.wikipedia");
 
-   private MultiMap<String, String> wp2t;
-   private MultiMap<String, String> t2wr;
+   private StringMultiMap wp2t;
+   private StringMultiMap t2wr;
    private Map<String, String> wp2wr; // moreinfo wikipedia template references
    private Map<String, String> alt2wp;
    private Set<String> sourceTargets;
@@ -32,11 +31,19 @@ public class WikipediaUpdateParser implements WikiPageParser {
    // Whether we're allowed to post to the web server
    private boolean writeEnabled = false;
    private int updateCount;
-   private PageEditor editor;
+   private String host;
+   private String agentPassword;
+   private TemplateUpdateQueue updateQueue;
+   private int numEditWorkers;
+   private long editDelayMillis;
+   // template state from the pages file, to skip templates that wouldn't change without fetching them
+   private Map<String, String> templateSections;
+   private Map<String, Long> templateTextHashes;
+   private int unchangedCount;
    private String startTitle;
 
-   public WikipediaUpdateParser(MultiMap<String, String> wp2t,
-                                MultiMap<String, String> t2wr,
+   public WikipediaUpdateParser(StringMultiMap wp2t,
+                                StringMultiMap t2wr,
                                 Map<String, String> wp2wr,
                                 Map<String, String> alt2wp,
                                 Set<String> sourceTargets,
@@ -47,7 +54,14 @@ public class WikipediaUpdateParser implements WikiPageParser {
       this.wp2wr = wp2wr;
       this.alt2wp = alt2wp;
       this.sourceTargets = sourceTargets;
-      this.editor = new PageEditor(host, agentPassword);
+      this.host = host;
+      this.agentPassword = agentPassword;
+      this.updateQueue = null;
+      this.numEditWorkers = 1;
+      this.editDelayMillis = WikipediaUpdate.UPDATE_DELAY_MILLIS;
+      this.templateSections = null;
+      this.templateTextHashes = null;
+      this.unchangedCount = 0;
       this.updateAllTemplates = updateAllTemplates;
       this.updateCount = 0;
       this.foundWpTitles = new HashSet<String>();
@@ -58,6 +72,25 @@ public class WikipediaUpdateParser implements WikiPageParser {
       writeEnabled = true;
    }
 
+   /**
+    * Templates are updated by numWorkers threads, which together start at most one template update per delayMillis
+    */
+   public void setEditWorkers(int numWorkers, long delayMillis) {
+      this.numEditWorkers = numWorkers;
+      this.editDelayMillis = delayMillis;
+   }
+
+   /**
+    * Set the copy-wikipedia sections and text hashes of the templates in the pages file (see WP2WRTitleParser)
+    */
+   public void setTemplateState(Map<String, String> templateSections, Map<String, Long> templateTextHashes) {
+      this.templateSections = templateSections;
+      this.templateTextHashes = templateTextHashes;
+   }
+
+   /**
+    * @return number of templates posted, or that would have been updated if writing is not enabled
+    */
    public int getUpdateCount() {
       return updateCount;
    }
@@ -149,6 +182,27 @@ public class WikipediaUpdateParser implements WikiPageParser {
    }
 
 
+   private TemplateUpdateQueue getUpdateQueue() {
+      if (updateQueue == null) {
+         updateQueue = new TemplateUpdateQueue(host, agentPassword, numEditWorkers, editDelayMillis);
+      }
+      return updateQueue;
+   }
+
+   /**
+    * Wait for the queued template updates to be applied
+    */
+   public void finish() throws IOException {
+      if (updateQueue != null) {
+         updateQueue.finish();
+         updateCount += updateQueue.getPostCount();
+         updateQueue = null;
+      }
+      if (unchangedCount > 0) {
+         logger.warn("Skipped "+unchangedCount+" templates that were unchanged in the pages file");
+      }
+   }
+
    /**
     * This method updates all WeRelate articles that happen to have
     * copy-wikipedia templates that point to the wikipedia article
@@ -172,42 +226,23 @@ public class WikipediaUpdateParser implements WikiPageParser {
                startTitle = null;
             }
             Set<String> s = wp2t.get(title);
+            WikiPage wp = null;
             for (String wrTitle : s) {
                if (writeEnabled) {
-                  editor.doGet("Template:"+wrTitle, true);
-                  String wrText = editor.readVariable(PageEditor.TEXTBOX1_PATTERN, true).trim();
-                  Matcher mCopyWikipedia = WP2WRTitleParser.pCopyWikipedia.matcher(wrText);
-                  String copySection = null;
-                  if (mCopyWikipedia.find()) {
-                     copySection = mCopyWikipedia.group(3);
-                  }
-                  else if (wrText.length() > 0) {
-                     logger.warn("Updating a template page without a copy-wikipedia template: Template:"+wrTitle);
+                  if (wp == null) {
+                     wp = new WikiPage(title, WikiPage.cleanText(new StringBuffer(text)));
                   }
-                  String wpText;
-                  WikiPage wp = new WikiPage(title, WikiPage.cleanText(new StringBuffer(text)));
-                  String copyWikipediaTag = "{{copy-wikipedia|" + title;
-                  if (copySection == null) {
-                     wpText = wp.getOpeningSection();
-                  } else {
-                     wpText = wp.getSection(copySection);
-                     copyWikipediaTag += '#' + copySection;
+                  // assume the template copies the same section it did in the pages file; the update queue checks
+                  String copySection = (templateSections == null ? null : templateSections.get(wrTitle));
+                  String wpText = getTemplateText(wp, title, copySection);
+                  Long prevHash = (templateTextHashes == null ? null : templateTextHashes.get(wrTitle));
+                  if (prevHash != null && prevHash.longValue() == WP2WRTitleParser.hashText(wpText.trim())) {
+                     unchangedCount++;
                   }
-                  if (wpText == null) {
-                     wpText = "";
+                  else {
+                     getUpdateQueue().add(wrTitle, title, copySection, wpText);
                   }
-                  copyWikipediaTag += "}}";
-                  wpText = copyWikipediaTag + '\n' + COMMENT + '\n' + updateLinks(wpText).trim();
-
-                  if (!wpText.trim().equals(wrText.trim())) {
-                     editor.setPostVariable("wpTextbox1", wpText);
-                     editor.setPostVariable("wpSummary", "Updated from Wikipedia");
-                     editor.doPost();
-                  }
-                  Util.sleep(WikipediaUpdate.UPDATE_DELAY_MILLIS);
-                  updateCount++;
                   logger.info("update: "+wrTitle+"  ->  "+title);
-                  if (updateCount % 1000 == 0) System.out.print(".");
                }
                else {
                   updateCount++;
@@ -217,4 +252,21 @@ public class WikipediaUpdateParser implements WikiPageParser {
          }
       }
    }
+
+   // copy-wikipedia template text for the copySection section of the wikipedia page (null for the opening section)
+   private String getTemplateText(WikiPage wp, String title, String copySection) {
+      String wpText;
+      String copyWikipediaTag = "{{copy-wikipedia|" + title;
+      if (copySection == null) {
+         wpText = wp.getOpeningSection();
+      } else {
+         wpText = wp.getSection(copySection);
+         copyWikipediaTag += '#' + copySection;
+      }
+      if (wpText == null) {
+         wpText = "";
+      }
+      copyWikipediaTag += "}}";
+      return copyWikipediaTag + '\n' + COMMENT + '\n' + updateLinks(wpText).trim();
+   }
 }